@@ -0,0 +1,172 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.gui;
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import javax.swing.DefaultListModel;
+import javax.swing.JButton;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTabbedPane;
+import javax.swing.SwingUtilities;
+import uk.co.petertribble.pctgemini.network.GeminiFeed;
+import uk.co.petertribble.pctgemini.network.GeminiFeedEntry;
+import uk.co.petertribble.pctgemini.network.GeminiFeedManager;
+
+/**
+ * A window showing the merged timeline of subscribed feeds, and the
+ * list of subscriptions.
+ */
+public final class FeedFrame extends JFrame implements ActionListener {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The feed manager being displayed.
+     */
+    private final transient GeminiFeedManager manager;
+    /**
+     * The frame in which entries are opened.
+     */
+    private final SimpleGeminiFrame gframe;
+    /**
+     * The timeline entries.
+     */
+    private final DefaultListModel<GeminiFeedEntry> entryModel =
+	new DefaultListModel<>();
+    /**
+     * The subscribed feeds.
+     */
+    private final DefaultListModel<GeminiFeed> feedModel =
+	new DefaultListModel<>();
+    /**
+     * The list of subscribed feeds.
+     */
+    private final JList<GeminiFeed> feedList;
+    /**
+     * A button to refresh all feeds.
+     */
+    private final JButton refreshButton;
+    /**
+     * A button to remove the selected subscription.
+     */
+    private final JButton removeButton;
+    /**
+     * Shows the state of the last refresh.
+     */
+    private final JLabel statusLabel;
+
+    /**
+     * Create a window showing the feeds of the given manager, and start
+     * a refresh.
+     *
+     * @param manager the GeminiFeedManager holding the subscriptions
+     * @param gframe the frame in which to open entries
+     */
+    public FeedFrame(final GeminiFeedManager manager,
+		     final SimpleGeminiFrame gframe) {
+	super("Feeds");
+	this.manager = manager;
+	this.gframe = gframe;
+
+	JList<GeminiFeedEntry> entryList = new JList<>(entryModel);
+	entryList.addMouseListener(new MouseAdapter() {
+		@Override
+		public void mouseClicked(final MouseEvent e) {
+		    if (e.getClickCount() == 2) {
+			GeminiFeedEntry entry = entryList.getSelectedValue();
+			if (entry != null) {
+			    gframe.openTab(entry.getUrl(), true);
+			}
+		    }
+		}
+	    });
+	feedList = new JList<>(feedModel);
+
+	JTabbedPane jtp = new JTabbedPane();
+	jtp.add("Timeline", new JScrollPane(entryList));
+	jtp.add("Subscriptions", new JScrollPane(feedList));
+
+	refreshButton = new JButton("Refresh");
+	refreshButton.addActionListener(this);
+	removeButton = new JButton("Unsubscribe");
+	removeButton.addActionListener(this);
+	statusLabel = new JLabel();
+	JPanel bpanel = new JPanel();
+	bpanel.add(refreshButton);
+	bpanel.add(removeButton);
+	bpanel.add(statusLabel);
+
+	setLayout(new BorderLayout());
+	add(jtp, BorderLayout.CENTER);
+	add(bpanel, BorderLayout.PAGE_END);
+
+	manager.addListener(() -> SwingUtilities.invokeLater(this::update));
+	update();
+	refresh();
+
+	setSize(640, 480);
+	setVisible(true);
+    }
+
+    /*
+     * Refresh all the feeds in the background.
+     */
+    private void refresh() {
+	refreshButton.setEnabled(false);
+	statusLabel.setText("Refreshing "
+			    + manager.getFeeds().size() + " feeds");
+	final long t0 = System.currentTimeMillis();
+	manager.refreshAll().whenComplete((v, ex) ->
+		SwingUtilities.invokeLater(() -> {
+			refreshButton.setEnabled(true);
+			statusLabel.setText("Refreshed in "
+				+ (System.currentTimeMillis() - t0) + "ms");
+			update();
+		    }));
+    }
+
+    /*
+     * Update the lists from the manager.
+     */
+    private void update() {
+	entryModel.clear();
+	entryModel.addAll(manager.getTimeline());
+	feedModel.clear();
+	feedModel.addAll(manager.getFeeds());
+    }
+
+    @Override
+    public void actionPerformed(final ActionEvent e) {
+	if (refreshButton.equals(e.getSource())) {
+	    refresh();
+	}
+	if (removeButton.equals(e.getSource())) {
+	    GeminiFeed feed = feedList.getSelectedValue();
+	    if (feed != null) {
+		manager.unsubscribe(feed);
+		update();
+	    }
+	}
+    }
+}
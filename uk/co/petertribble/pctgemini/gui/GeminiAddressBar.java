@@ -0,0 +1,259 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.gui;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.FocusAdapter;
+import java.awt.event.FocusEvent;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import javax.swing.DefaultListModel;
+import javax.swing.JList;
+import javax.swing.JPopupMenu;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import uk.co.petertribble.pctgemini.network.GeminiHistory;
+
+/**
+ * An editable address bar, which suggests urls from the history and
+ * bookmarks as the user types. The suggestions are looked up on a
+ * background thread, and a lookup that finishes after the text has
+ * changed again is ignored, so typing is never held up.
+ */
+public final class GeminiAddressBar extends JTextField
+    implements ActionListener, DocumentListener {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The most suggestions shown.
+     */
+    private static final int MAX_SUGGESTIONS = 10;
+
+    /**
+     * The thread that looks up suggestions, shared by all address bars.
+     */
+    private static final ExecutorService LOOKUP =
+	Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "address-lookup");
+		t.setDaemon(true);
+		return t;
+	    });
+
+    /**
+     * Where suggestions come from.
+     */
+    private final transient GeminiHistory history;
+    /**
+     * Called with the url to go to.
+     */
+    private final transient Consumer<String> target;
+    /**
+     * The suggestions.
+     */
+    private final DefaultListModel<String> model = new DefaultListModel<>();
+    /**
+     * Displays the suggestions.
+     */
+    private final JList<String> list = new JList<>(model);
+    /**
+     * Pops up the suggestions below the address bar.
+     */
+    private final JPopupMenu popup = new JPopupMenu();
+    /**
+     * Counts changes to the text, so stale suggestions can be ignored.
+     */
+    private int generation;
+    /**
+     * Set while the text is being set programmatically.
+     */
+    private boolean updating;
+
+    /**
+     * Create an address bar.
+     *
+     * @param history the history to suggest urls from
+     * @param target called on the event thread with the url to go to
+     */
+    public GeminiAddressBar(final GeminiHistory history,
+			    final Consumer<String> target) {
+	this.history = history;
+	this.target = target;
+	list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+	list.setFocusable(false);
+	list.addMouseListener(new MouseAdapter() {
+		@Override
+		public void mouseClicked(final MouseEvent me) {
+		    int i = list.locationToIndex(me.getPoint());
+		    if (i >= 0) {
+			go(model.get(i));
+		    }
+		}
+	    });
+	popup.setFocusable(false);
+	popup.add(new JScrollPane(list));
+	addActionListener(this);
+	getDocument().addDocumentListener(this);
+	addKeyListener(new KeyAdapter() {
+		@Override
+		public void keyPressed(final KeyEvent ke) {
+		    moveSelection(ke);
+		}
+	    });
+	addFocusListener(new FocusAdapter() {
+		@Override
+		public void focusLost(final FocusEvent fe) {
+		    hideSuggestions();
+		}
+	    });
+    }
+
+    /**
+     * Show a url, without suggesting anything.
+     *
+     * @param url the url to show
+     */
+    public void setUrl(final String url) {
+	updating = true;
+	setText(url);
+	setCaretPosition(0);
+	updating = false;
+	hideSuggestions();
+    }
+
+    /*
+     * Look up suggestions for the current text in the background.
+     */
+    private void suggest() {
+	if (updating) {
+	    return;
+	}
+	final int gen = ++generation;
+	final String prefix = getText();
+	CompletableFuture.supplyAsync(
+		() -> history.complete(prefix, MAX_SUGGESTIONS), LOOKUP)
+	    .thenAccept(urls -> SwingUtilities.invokeLater(
+			() -> showSuggestions(gen, urls)));
+    }
+
+    /*
+     * Show the suggestions, if they're for the current text.
+     */
+    private void showSuggestions(final int gen, final List<String> urls) {
+	if (gen != generation || !isFocusOwner()) {
+	    return;
+	}
+	model.clear();
+	if (urls.isEmpty()) {
+	    hideSuggestions();
+	    return;
+	}
+	model.addAll(urls);
+	list.setVisibleRowCount(urls.size());
+	// as wide as the address bar, and tall enough for the list
+	popup.setPreferredSize(null);
+	popup.setPopupSize(getWidth(), popup.getPreferredSize().height);
+	if (popup.isVisible()) {
+	    popup.pack();
+	} else {
+	    popup.show(this, 0, getHeight());
+	}
+    }
+
+    private void hideSuggestions() {
+	generation++;
+	popup.setVisible(false);
+	list.clearSelection();
+    }
+
+    /*
+     * Move through the suggestions with the arrow keys, or hide them
+     * with escape.
+     */
+    private void moveSelection(final KeyEvent ke) {
+	if (!popup.isVisible()) {
+	    return;
+	}
+	int i = list.getSelectedIndex();
+	switch (ke.getKeyCode()) {
+	case KeyEvent.VK_DOWN:
+	    i = Math.min(i + 1, model.size() - 1);
+	    break;
+	case KeyEvent.VK_UP:
+	    i = Math.max(i - 1, -1);
+	    break;
+	case KeyEvent.VK_ESCAPE:
+	    hideSuggestions();
+	    ke.consume();
+	    return;
+	default:
+	    return;
+	}
+	if (i < 0) {
+	    list.clearSelection();
+	} else {
+	    list.setSelectedIndex(i);
+	    list.ensureIndexIsVisible(i);
+	}
+	ke.consume();
+    }
+
+    /*
+     * Go to a url, chosen or typed.
+     */
+    private void go(final String url) {
+	setUrl(url);
+	target.accept(url);
+    }
+
+    @Override
+    public void actionPerformed(final ActionEvent e) {
+	String url = popup.isVisible() && list.getSelectedValue() != null
+	    ? list.getSelectedValue() : getText().strip();
+	if (!url.isEmpty()) {
+	    if (!url.contains("://") && !url.startsWith("file:")) {
+		url = "gemini://" + url;
+	    }
+	    go(url);
+	}
+    }
+
+    @Override
+    public void insertUpdate(final DocumentEvent de) {
+	suggest();
+    }
+
+    @Override
+    public void removeUpdate(final DocumentEvent de) {
+	suggest();
+    }
+
+    @Override
+    public void changedUpdate(final DocumentEvent de) {
+    }
+}
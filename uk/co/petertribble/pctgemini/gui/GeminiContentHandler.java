@@ -0,0 +1,59 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.gui;
+
+import java.awt.Component;
+import java.io.IOException;
+import uk.co.petertribble.pctgemini.network.GeminiResponse;
+
+/**
+ * Displays responses of a given MIME type, by converting them to html.
+ * Handlers are registered with GeminiContentHandlers, and should read the
+ * body as a stream, using GeminiResponse.bodyAsReader() or bodyAsStream(),
+ * rather than making a copy of it.
+ */
+@FunctionalInterface
+public interface GeminiContentHandler {
+
+    /**
+     * Write the html to display a response. This is called on a
+     * background thread.
+     *
+     * @param url the url of the response
+     * @param gresp the response to display
+     * @param images whether images should be shown inline
+     * @param out where the html is to be written
+     *
+     * @throws IOException if the response cannot be converted
+     */
+    void writeHtml(String url, GeminiResponse gresp, boolean images,
+		   Appendable out) throws IOException;
+
+    /**
+     * Called on the event thread when a link on a displayed response is
+     * clicked whose href starts with GeminiContentHandlers.ACTION, so
+     * that a handler can offer actions in the html it writes. By default
+     * this does nothing.
+     *
+     * @param parent the component showing the response
+     * @param action the href of the link, without the leading ACTION
+     * @param url the url of the response
+     * @param gresp the response
+     */
+    default void action(final Component parent, final String action,
+			final String url, final GeminiResponse gresp) {
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.gui;
+
+import java.awt.Component;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.swing.JFileChooser;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import uk.co.petertribble.pctgemini.network.GeminiMimeType;
+import uk.co.petertribble.pctgemini.network.GeminiResponse;
+
+/**
+ * The registry of handlers that display responses, keyed by MIME type.
+ * A handler may be registered for a type and subtype, such as
+ * "text/gemini", or for all the subtypes of a type, such as "image/*".
+ * The most specific handler is used, and anything without a handler is
+ * shown with a link to save it to disk.
+ *
+ * <p>By default, text/gemini and markdown are converted to html, other
+ * text is shown as is, and images are shown on their own.
+ */
+public final class GeminiContentHandlers {
+
+    /**
+     * The prefix of links that ask the handler for the displayed response
+     * to perform an action, rather than lead to another page.
+     */
+    public static final String ACTION = "action:";
+
+    /*
+     * The action offered for a response that can't be displayed.
+     */
+    private static final String SAVE_ACTION = "save";
+
+    /**
+     * The handlers, keyed by base type or by type followed by "/*".
+     */
+    private static final Map<String, GeminiContentHandler> HANDLERS =
+	new ConcurrentHashMap<>();
+
+    /**
+     * The handler for types that can't be displayed.
+     */
+    private static final GeminiContentHandler SAVE_HANDLER =
+	new SaveHandler();
+
+    static {
+	register("text/gemini", (url, gresp, images, out) ->
+		GeminiUtils.geminiToHtml(gresp.bodyAsReader(), out, images));
+	GeminiContentHandler markdown = (url, gresp, images, out) ->
+	    GeminiUtils.markdownToHtml(gresp.bodyAsReader(), out);
+	register("text/markdown", markdown);
+	register("text/x-markdown", markdown);
+	register("text/*", (url, gresp, images, out) ->
+		GeminiUtils.textToHtml(gresp.bodyAsReader(), out));
+	register("image/*", (url, gresp, images, out) ->
+		GeminiUtils.imageToHtml(url, out));
+    }
+
+    /*
+     * This class cannot be instantiated.
+     */
+    private GeminiContentHandlers() {
+    }
+
+    /**
+     * Register a handler, replacing any existing handler for the type.
+     *
+     * @param type the type and subtype to handle, or a type followed
+     * by "/*" to handle all its subtypes
+     * @param handler the handler
+     */
+    public static void register(final String type,
+				final GeminiContentHandler handler) {
+	HANDLERS.put(type.toLowerCase(Locale.ROOT), handler);
+    }
+
+    /**
+     * Get the handler for a MIME type.
+     *
+     * @param mtype the type of a response
+     *
+     * @return the handler to display the response
+     */
+    public static GeminiContentHandler get(final GeminiMimeType mtype) {
+	GeminiContentHandler handler = HANDLERS.get(mtype.getBaseType());
+	if (handler == null) {
+	    handler = HANDLERS.get(mtype.getType() + "/*");
+	}
+	return handler == null ? SAVE_HANDLER : handler;
+    }
+
+    /*
+     * Describes a response that can't be displayed, with a link to save
+     * it. The body is written straight from the response.
+     */
+    private static final class SaveHandler implements GeminiContentHandler {
+
+	@Override
+	public void writeHtml(final String url, final GeminiResponse gresp,
+			      final boolean images, final Appendable out)
+		throws IOException {
+	    GeminiUtils.messageToHtml(gresp.mimeType().getBaseType() + ", "
+				      + gresp.bodyLength()
+				      + " bytes, cannot be displayed",
+				      ACTION + SAVE_ACTION, "Save\u2026", out);
+	}
+
+	@Override
+	public void action(final Component parent, final String action,
+			   final String url, final GeminiResponse gresp) {
+	    if (!SAVE_ACTION.equals(action)) {
+		return;
+	    }
+	    JFileChooser fc = new JFileChooser();
+	    int q = url.indexOf('?');
+	    String path = q < 0 ? url : url.substring(0, q);
+	    String name = path.substring(path.lastIndexOf('/') + 1);
+	    if (!name.isEmpty()) {
+		fc.setSelectedFile(new File(name));
+	    }
+	    if (fc.showSaveDialog(parent) != JFileChooser.APPROVE_OPTION) {
+		return;
+	    }
+	    final File f = fc.getSelectedFile();
+	    CompletableFuture.runAsync(() -> {
+		    try (InputStream in = gresp.bodyAsStream()) {
+			Files.copy(in, f.toPath(),
+				   StandardCopyOption.REPLACE_EXISTING);
+		    } catch (IOException ioe) {
+			SwingUtilities.invokeLater(() ->
+			    JOptionPane.showMessageDialog(parent,
+				ioe.getMessage(), "Save failed",
+				JOptionPane.ERROR_MESSAGE));
+		    }
+		});
+	}
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.gui;
+
+import java.util.function.UnaryOperator;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.Element;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.View;
+import javax.swing.text.ViewFactory;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLEditorKit;
+
+/**
+ * An HTMLEditorKit that displays images using a GeminiImageCache, as the
+ * standard image support can't load gemini urls.
+ */
+public final class GeminiEditorKit extends HTMLEditorKit {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The cache that loads images.
+     */
+    private final transient GeminiImageCache imageCache;
+    /**
+     * Converts relative image links into full urls.
+     */
+    private final transient UnaryOperator<String> resolver;
+    /**
+     * The factory that creates our views.
+     */
+    private final transient ViewFactory factory = new GeminiViewFactory();
+
+    /**
+     * Create an editor kit that loads images through the given cache.
+     *
+     * @param imageCache the cache that loads images
+     * @param resolver converts image links into full urls, or returns
+     * null for images that mustn't be loaded
+     */
+    public GeminiEditorKit(final GeminiImageCache imageCache,
+			   final UnaryOperator<String> resolver) {
+	this.imageCache = imageCache;
+	this.resolver = resolver;
+    }
+
+    @Override
+    public ViewFactory getViewFactory() {
+	return factory;
+    }
+
+    /*
+     * A ViewFactory that uses an InlineImageView for img tags, and the
+     * standard html views for everything else.
+     */
+    class GeminiViewFactory extends HTMLEditorKit.HTMLFactory {
+	@Override
+	public View create(final Element elem) {
+	    AttributeSet attrs = elem.getAttributes();
+	    if (attrs.getAttribute(StyleConstants.NameAttribute)
+			== HTML.Tag.IMG) {
+		return new InlineImageView(elem, imageCache, resolver);
+	    }
+	    return super.create(elem);
+	}
+    }
+}
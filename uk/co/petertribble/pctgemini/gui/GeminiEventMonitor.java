@@ -0,0 +1,424 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.gui;
+
+import java.awt.AWTEvent;
+import java.awt.EventQueue;
+import java.awt.Toolkit;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures how responsive the user interface is. Installed as the event
+ * queue, it times the dispatch of every event on the event thread and
+ * keeps a histogram of the dispatch times. A watchdog thread checks the
+ * event being dispatched, and if it has taken longer than the stall
+ * threshold the stack of the event thread is captured while it's still
+ * stuck, so the code responsible can be found.
+ *
+ * <p>The stall threshold is 100ms, or the value in milliseconds of the
+ * pctgemini.stallthreshold property. If the pctgemini.edtdump property
+ * names a file, a report is written to that file when the application
+ * exits, so stalls can be caught in a test run.
+ *
+ * <p>An event that runs a nested event loop, such as one that shows a
+ * modal dialog, isn't itself counted, and isn't watched once the nested
+ * loop has started; the events dispatched by the nested loop are.
+ */
+public final class GeminiEventMonitor extends EventQueue {
+
+    /**
+     * The default stall threshold, in milliseconds.
+     */
+    private static final long DEFAULT_THRESHOLD = 100;
+
+    /**
+     * The number of histogram buckets. Bucket 0 holds times under 1ms,
+     * bucket i times from 2^(i-1) up to 2^i ms, and the last bucket
+     * everything longer.
+     */
+    public static final int BUCKETS = 14;
+
+    /**
+     * The most stalls kept.
+     */
+    private static final int MAX_STALLS = 100;
+
+    /**
+     * The installed monitor.
+     */
+    private static GeminiEventMonitor monitor;
+
+    /**
+     * The stall threshold, in nanoseconds.
+     */
+    private final long threshold;
+    /**
+     * The number of events in each bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    /**
+     * The total dispatch time, in nanoseconds.
+     */
+    private final AtomicLong total = new AtomicLong();
+    /**
+     * The longest dispatch time, in nanoseconds.
+     */
+    private final AtomicLong max = new AtomicLong();
+    /**
+     * The most recent stalls, oldest first.
+     */
+    private final Deque<Stall> stalls = new ArrayDeque<>();
+    /**
+     * The event being dispatched, for the watchdog, or null.
+     */
+    private volatile Dispatch current;
+    /**
+     * The event thread, once an event has been dispatched.
+     */
+    private volatile Thread edt;
+    /**
+     * The depth of nested dispatch. Only used on the event thread.
+     */
+    private int depth;
+    /**
+     * Set if a nested event loop has run inside the current event. Only
+     * used on the event thread.
+     */
+    private boolean pumped;
+
+    /*
+     * An event being dispatched, and when it started.
+     */
+    private static final class Dispatch {
+	private final long start;
+	private final AWTEvent event;
+	private volatile Stall stall;
+
+	Dispatch(final long start, final AWTEvent event) {
+	    this.start = start;
+	    this.event = event;
+	}
+    }
+
+    /**
+     * An event that took longer than the stall threshold to dispatch.
+     */
+    public static final class Stall {
+
+	private final long time;
+	private final String event;
+	private final StackTraceElement[] stack;
+	private volatile long duration = -1;
+
+	Stall(final long time, final String event,
+	      final StackTraceElement[] stack) {
+	    this.time = time;
+	    this.event = event;
+	    this.stack = stack;
+	}
+
+	/**
+	 * Get the wall clock time the event started.
+	 *
+	 * @return the start time, in milliseconds since the epoch
+	 */
+	public long getTime() {
+	    return time;
+	}
+
+	/**
+	 * Get a description of the event.
+	 *
+	 * @return the event type and its source
+	 */
+	public String getEvent() {
+	    return event;
+	}
+
+	/**
+	 * Get the stack of the event thread, captured once the threshold
+	 * had been passed.
+	 *
+	 * @return the stack trace of the event thread
+	 */
+	public StackTraceElement[] getStack() {
+	    return stack.clone();
+	}
+
+	/**
+	 * Get how long the event took.
+	 *
+	 * @return the dispatch time in nanoseconds, or -1 if it's still
+	 * running
+	 */
+	public long getDuration() {
+	    return duration;
+	}
+    }
+
+    private GeminiEventMonitor(final long threshold) {
+	this.threshold = threshold * 1_000_000;
+	Thread t = new Thread(this::watch, "edt-watchdog");
+	t.setDaemon(true);
+	t.start();
+    }
+
+    /**
+     * Install the monitor as the event queue, if it hasn't been already.
+     * Should be called before the user interface is created.
+     */
+    public static synchronized void install() {
+	if (monitor != null) {
+	    return;
+	}
+	monitor = new GeminiEventMonitor(
+		Long.getLong("pctgemini.stallthreshold", DEFAULT_THRESHOLD));
+	Toolkit.getDefaultToolkit().getSystemEventQueue().push(monitor);
+	final String dump = System.getProperty("pctgemini.edtdump");
+	if (dump != null) {
+	    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+			    monitor.writeDump(new File(dump));
+			} catch (IOException ioe) {
+			    System.err.println("Unable to write " + dump + ": "
+					       + ioe.getMessage());
+			}
+		    }, "edt-dump"));
+	}
+    }
+
+    /**
+     * Get the installed monitor.
+     *
+     * @return the monitor, or null if it hasn't been installed
+     */
+    public static synchronized GeminiEventMonitor getMonitor() {
+	return monitor;
+    }
+
+    @Override
+    protected void dispatchEvent(final AWTEvent event) {
+	boolean outerPumped = pumped;
+	if (depth++ == 0) {
+	    edt = Thread.currentThread();
+	}
+	pumped = false;
+	Dispatch d = new Dispatch(System.nanoTime(), event);
+	current = d;
+	try {
+	    super.dispatchEvent(event);
+	} finally {
+	    long end = System.nanoTime();
+	    current = null;
+	    if (!pumped) {
+		record(end - d.start);
+	    }
+	    if (d.stall != null) {
+		d.stall.duration = end - d.start;
+	    }
+	    depth--;
+	    // back in an outer event, which has now run a nested loop
+	    pumped = outerPumped || depth > 0;
+	}
+    }
+
+    private void record(final long nanos) {
+	long ms = nanos / 1_000_000;
+	int b = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(ms));
+	counts.incrementAndGet(b);
+	total.addAndGet(nanos);
+	if (nanos > max.get()) {
+	    max.set(nanos);
+	}
+    }
+
+    /*
+     * The watchdog. Checks the event being dispatched often enough that
+     * a stall is caught soon after the threshold is passed.
+     */
+    private void watch() {
+	long interval = Math.max(5, threshold / 4_000_000);
+	while (true) {
+	    try {
+		Thread.sleep(interval);
+	    } catch (InterruptedException ie) {
+		return;
+	    }
+	    Dispatch d = current;
+	    if (d != null && d.stall == null
+		    && System.nanoTime() - d.start > threshold) {
+		Thread t = edt;
+		Stall s = new Stall(System.currentTimeMillis()
+				    - (System.nanoTime() - d.start) / 1_000_000,
+				    describe(d.event),
+				    t == null ? new StackTraceElement[0]
+				    : t.getStackTrace());
+		d.stall = s;
+		synchronized (stalls) {
+		    if (stalls.size() == MAX_STALLS) {
+			stalls.removeFirst();
+		    }
+		    stalls.addLast(s);
+		}
+	    }
+	}
+    }
+
+    /*
+     * Describe an event without calling into the component, as this is
+     * done off the event thread.
+     */
+    private static String describe(final AWTEvent event) {
+	Object src = event.getSource();
+	return event.getClass().getSimpleName() + " id=" + event.getID()
+	    + (src == null ? "" : " on " + src.getClass().getName());
+    }
+
+    /**
+     * Get the stall threshold.
+     *
+     * @return the stall threshold in milliseconds
+     */
+    public long getThreshold() {
+	return threshold / 1_000_000;
+    }
+
+    /**
+     * Get the histogram of dispatch times.
+     *
+     * @return the number of events in each bucket
+     */
+    public long[] getCounts() {
+	long[] c = new long[BUCKETS];
+	for (int i = 0; i < BUCKETS; i++) {
+	    c[i] = counts.get(i);
+	}
+	return c;
+    }
+
+    /**
+     * Get the total time spent dispatching events.
+     *
+     * @return the total dispatch time in nanoseconds
+     */
+    public long getTotal() {
+	return total.get();
+    }
+
+    /**
+     * Get the longest time spent dispatching an event.
+     *
+     * @return the longest dispatch time in nanoseconds
+     */
+    public long getMax() {
+	return max.get();
+    }
+
+    /**
+     * Get the most recent stalls.
+     *
+     * @return a List of stalls, oldest first
+     */
+    public List<Stall> getStalls() {
+	synchronized (stalls) {
+	    return new ArrayList<>(stalls);
+	}
+    }
+
+    /**
+     * Forget the events and stalls recorded so far.
+     */
+    public void reset() {
+	for (int i = 0; i < BUCKETS; i++) {
+	    counts.set(i, 0);
+	}
+	total.set(0);
+	max.set(0);
+	synchronized (stalls) {
+	    stalls.clear();
+	}
+    }
+
+    /**
+     * Get a description of the range of times held in a bucket.
+     *
+     * @param bucket the bucket number
+     *
+     * @return a description of the range of times in the bucket
+     */
+    public static String bucketName(final int bucket) {
+	if (bucket == 0) {
+	    return "< 1 ms";
+	}
+	if (bucket == BUCKETS - 1) {
+	    return ">= " + (1L << (bucket - 1)) + " ms";
+	}
+	return (1L << (bucket - 1)) + " - " + (1L << bucket) + " ms";
+    }
+
+    /**
+     * Write a report of the histogram and stalls to a file.
+     *
+     * @param f the file to write to
+     *
+     * @throws IOException if the file can't be written
+     */
+    public void writeDump(final File f) throws IOException {
+	try (PrintWriter pw = new PrintWriter(f, StandardCharsets.UTF_8)) {
+	    writeDump(pw);
+	}
+    }
+
+    /**
+     * Write a report of the histogram and stalls.
+     *
+     * @param pw the PrintWriter to write to
+     */
+    public void writeDump(final PrintWriter pw) {
+	long[] c = getCounts();
+	long n = 0;
+	for (long l : c) {
+	    n += l;
+	}
+	pw.printf("events: %d%n", n);
+	pw.printf("mean: %.3f ms%n", n == 0 ? 0.0 : getTotal() / 1.0e6 / n);
+	pw.printf("max: %.3f ms%n", getMax() / 1.0e6);
+	pw.printf("stall threshold: %d ms%n", getThreshold());
+	pw.println();
+	for (int i = 0; i < BUCKETS; i++) {
+	    pw.printf("%-16s %10d%n", bucketName(i), c[i]);
+	}
+	for (Stall s : getStalls()) {
+	    pw.println();
+	    pw.printf("stall at %s: %s, %s%n", Instant.ofEpochMilli(s.time),
+		      s.event, s.duration < 0 ? "still running"
+		      : String.format("%.3f ms", s.duration / 1.0e6));
+	    for (StackTraceElement ste : s.stack) {
+		pw.println("\tat " + ste);
+	    }
+	}
+    }
+}
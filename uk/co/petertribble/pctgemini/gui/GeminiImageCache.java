@@ -0,0 +1,238 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.gui;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import uk.co.petertribble.pctgemini.network.GeminiClient;
+import uk.co.petertribble.pctgemini.network.GeminiResponse;
+
+/**
+ * Fetch, decode, and scale images for inline display. Decoding and
+ * scaling happen on a pool of worker threads, and the scaled images are
+ * kept in a cache bounded by the memory they use, keyed by url and
+ * width.
+ */
+public final class GeminiImageCache {
+
+    /**
+     * The default maximum size of the cache, in bytes.
+     */
+    private static final long DEFAULT_MAXSIZE = 64L * 1024 * 1024;
+
+    /**
+     * Widths are rounded down to a multiple of this, so that small
+     * changes in window size still hit the cache.
+     */
+    private static final int WIDTH_STEP = 64;
+
+    /**
+     * The client used to fetch images.
+     */
+    private final GeminiClient client;
+    /**
+     * The threads that decode and scale images.
+     */
+    private final ExecutorService decoder;
+    /**
+     * The maximum memory used by cached images, in bytes.
+     */
+    private final long maxsize;
+    /**
+     * The memory used by cached images, in bytes.
+     */
+    private long cursize;
+    /**
+     * The scaled images, in access order.
+     */
+    private final Map<String, BufferedImage> images =
+	new LinkedHashMap<>(64, 0.75f, true);
+    /**
+     * Images currently being fetched or decoded.
+     */
+    private final Map<String, CompletableFuture<BufferedImage>> pending =
+	new ConcurrentHashMap<>();
+
+    /**
+     * Create an image cache of the default size.
+     *
+     * @param client the GeminiClient used to fetch images
+     */
+    public GeminiImageCache(final GeminiClient client) {
+	this.client = client;
+	this.maxsize = DEFAULT_MAXSIZE;
+	AtomicInteger tcount = new AtomicInteger();
+	decoder = Executors.newFixedThreadPool(
+		Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+		r -> {
+		    Thread t = new Thread(r,
+			"image-decode-" + tcount.incrementAndGet());
+		    t.setDaemon(true);
+		    t.setPriority(Thread.MIN_PRIORITY);
+		    return t;
+		});
+    }
+
+    /**
+     * Round a width down to the size used for caching.
+     *
+     * @param width the available width
+     *
+     * @return the width images will be scaled to fit
+     */
+    public static int targetWidth(final int width) {
+	return Math.max(WIDTH_STEP, width - width % WIDTH_STEP);
+    }
+
+    private static String key(final String url, final int width) {
+	return url + '@' + width;
+    }
+
+    /**
+     * Get an image from the cache, without loading it.
+     *
+     * @param url the url of the image
+     * @param width the target width, from targetWidth()
+     *
+     * @return the scaled image, or null if it isn't in the cache
+     */
+    public synchronized BufferedImage get(final String url, final int width) {
+	return images.get(key(url, width));
+    }
+
+    /**
+     * Load an image, scaled so it's no wider than the given width. The
+     * image is fetched and decoded in the background.
+     *
+     * @param url the url of the image
+     * @param width the target width, from targetWidth()
+     *
+     * @return a CompletableFuture that will hold the scaled image
+     */
+    public CompletableFuture<BufferedImage> load(final String url,
+						 final int width) {
+	BufferedImage img = get(url, width);
+	if (img != null) {
+	    return CompletableFuture.completedFuture(img);
+	}
+	String key = key(url, width);
+	return pending.computeIfAbsent(key, k -> {
+		CompletableFuture<BufferedImage> cf = client.fetchAsync(url)
+		    .thenApplyAsync(gresp -> decode(gresp, width), decoder);
+		cf.whenComplete((bi, ex) -> {
+			if (bi != null) {
+			    put(k, bi);
+			}
+			pending.remove(k);
+		    });
+		return cf;
+	    });
+    }
+
+    /*
+     * Store a scaled image, discarding the oldest if over size.
+     */
+    private synchronized void put(final String key, final BufferedImage img) {
+	BufferedImage old = images.put(key, img);
+	if (old != null) {
+	    cursize -= imageSize(old);
+	}
+	cursize += imageSize(img);
+	Iterator<BufferedImage> iter = images.values().iterator();
+	while (cursize > maxsize && iter.hasNext()) {
+	    BufferedImage bi = iter.next();
+	    if (bi != img) {
+		cursize -= imageSize(bi);
+		iter.remove();
+	    }
+	}
+    }
+
+    private static long imageSize(final BufferedImage img) {
+	return 4L * img.getWidth() * img.getHeight();
+    }
+
+    /*
+     * Decode an image. The decoder subsamples while reading, so that a
+     * large image is never held at full resolution, then the result is
+     * scaled to the exact width.
+     */
+    private static BufferedImage decode(final GeminiResponse gresp,
+					final int width) {
+	if (!gresp.hasBody()) {
+	    throw new CompletionException(
+		new IOException("No image: " + gresp.metaText()));
+	}
+	try (ImageInputStream iis = ImageIO.createImageInputStream(
+			new ByteArrayInputStream(gresp.bodyBytes()))) {
+	    Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+	    if (!readers.hasNext()) {
+		throw new IOException("Unknown image format");
+	    }
+	    ImageReader reader = readers.next();
+	    try {
+		reader.setInput(iis, true, true);
+		int w = reader.getWidth(0);
+		ImageReadParam param = reader.getDefaultReadParam();
+		int factor = w / width;
+		if (factor > 1) {
+		    param.setSourceSubsampling(factor, factor, 0, 0);
+		}
+		return scale(reader.read(0, param), width);
+	    } finally {
+		reader.dispose();
+	    }
+	} catch (IOException ioe) {
+	    throw new CompletionException(ioe);
+	}
+    }
+
+    /*
+     * Scale an image down, if necessary, so it fits the width.
+     */
+    private static BufferedImage scale(final BufferedImage img,
+				       final int width) {
+	int w = img.getWidth();
+	if (w <= width) {
+	    return img;
+	}
+	int h = Math.max(1, (int) ((long) img.getHeight() * width / w));
+	BufferedImage scaled = new BufferedImage(width, h,
+						 BufferedImage.TYPE_INT_ARGB);
+	Graphics2D g2 = scaled.createGraphics();
+	g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+			    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+	g2.drawImage(img, 0, 0, width, h, null);
+	g2.dispose();
+	return scaled;
+    }
+}
@@ -17,23 +17,37 @@ package uk.co.petertribble.pctgemini.gui;
 
 import java.awt.BorderLayout;
 import java.awt.Desktop;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.InputEvent;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.swing.JButton;
 import javax.swing.JEditorPane;
 import javax.swing.JLabel;
 import javax.swing.JScrollPane;
 import javax.swing.JToolBar;
+import javax.swing.SwingUtilities;
 import javax.swing.event.HyperlinkEvent;
 import javax.swing.event.HyperlinkListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.html.HTMLDocument;
 import uk.co.petertribble.jingle.JingleInfoFrame;
 import uk.co.petertribble.jingle.JingleUtils;
-import uk.co.petertribble.pctgemini.network.GeminiRequest;
+import uk.co.petertribble.pctgemini.network.GeminiClient;
 import uk.co.petertribble.pctgemini.network.GeminiResponse;
+import uk.co.petertribble.pctgemini.network.GeminiURL;
 
 /**
  * A Simplistic panel to access a Gemini server.
@@ -45,7 +59,31 @@ public final class GeminiPanel extends JEditorPane
     private static final long serialVersionUID = 1L;
 
     /**
-     * A JLabel with the name of the page being displayed.
+     * The name of the property that changes when a new page is shown.
+     */
+    public static final String PAGE_PROPERTY = "page";
+
+    /**
+     * The threads that build documents, shared by all panels.
+     */
+    private static final ExecutorService BUILDER;
+
+    static {
+	AtomicInteger tcount = new AtomicInteger();
+	BUILDER = Executors.newFixedThreadPool(2, r -> {
+		Thread t = new Thread(r,
+			"document-builder-" + tcount.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	    });
+    }
+
+    /**
+     * The address bar, showing the url of the page being displayed.
+     */
+    private final GeminiAddressBar addressBar;
+    /**
+     * A JLabel showing the progress of loading a page.
      */
     private final JLabel curLabel;
     /**
@@ -57,7 +95,15 @@ public final class GeminiPanel extends JEditorPane
      */
     private final JEditorPane jep;
     /**
-     * Save the URL to resolve relative links.
+     * The editor kit that builds and displays documents.
+     */
+    private final transient GeminiEditorKit kit;
+    /**
+     * The JScrollPane holding the page content.
+     */
+    private final JScrollPane jsp;
+    /**
+     * The url of the page last shown, or that failed to load.
      */
     private String surl;
     /**
@@ -65,15 +111,47 @@ public final class GeminiPanel extends JEditorPane
      */
     private final transient List<String> historyList = new ArrayList<>();
     /**
-     * Cache of pages we might go back to.
+     * The response currently being displayed.
+     */
+    private transient GeminiResponse curResponse;
+    /**
+     * The url of the response currently being displayed.
      */
-    private final transient Map<String, GeminiResponse> pageCache
-	= new HashMap<>();
+    private String responseUrl;
+    /**
+     * The handler that displayed the current response.
+     */
+    private transient GeminiContentHandler curHandler;
+    /**
+     * Counts page loads, so that a slow response to an earlier request
+     * doesn't replace a later page.
+     */
+    private int loadCount;
+    /**
+     * The client used to make requests, shared with other panels.
+     */
+    private final transient GeminiClient client;
+    /**
+     * The frame holding this panel, used to open new tabs.
+     */
+    private final SimpleGeminiFrame frame;
+    /**
+     * Whether to show images inline.
+     */
+    private boolean showImages;
 
     /**
      * Create a basic panel to display Gemini content.
+     *
+     * @param frame the frame this panel is displayed in
+     * @param client the GeminiClient to use for requests
+     * @param imageCache the cache used to load inline images
      */
-    public GeminiPanel() {
+    public GeminiPanel(final SimpleGeminiFrame frame,
+		       final GeminiClient client,
+		       final GeminiImageCache imageCache) {
+	this.frame = frame;
+	this.client = client;
 	setLayout(new BorderLayout());
 
 	JToolBar jtb = new JToolBar();
@@ -81,70 +159,166 @@ public final class GeminiPanel extends JEditorPane
 	jtb.setRollover(true);
 	backButton = new JButton("<");
 	backButton.addActionListener(this);
+	addressBar = new GeminiAddressBar(frame.getHistory(), this::loadPage);
 	curLabel = new JLabel();
 	jtb.add(backButton);
+	jtb.add(addressBar);
 	jtb.add(curLabel);
 
 	jep = new JEditorPane();
-	jep.setContentType("text/html");
+	kit = new GeminiEditorKit(imageCache, this::resolveImage);
+	jep.setEditorKitForContentType("text/html", kit);
+	jep.setEditorKit(kit);
 	jep.addHyperlinkListener(this);
 
 	add(jtb, BorderLayout.PAGE_START);
-	add(new JScrollPane(jep), BorderLayout.CENTER);
+	jsp = new JScrollPane(jep);
+	add(jsp, BorderLayout.CENTER);
     }
 
     /**
-     * Load a new url into the panel.
+     * Load a new url into the panel. The page is fetched in the
+     * background and displayed when it arrives.
      *
-     * @param url the new url to show
+     * @param newurl the new url to show
      */
-    public void loadPage(final String url) {
-	surl = url;
+    public void loadPage(final String newurl) {
+	final String url = GeminiURL.normalize(newurl);
 	/*
 	 * Always add the page to the history list, so we can always go
 	 * back whatever happens.
 	 */
 	historyList.add(url);
-	/*
-	 * If the page is in the cache, load from there. This is only
-	 * used in the case we go back, as that clears the cache.
-	 */
-	GeminiResponse gresp = pageCache.get(url);
-	if (gresp != null) {
-	    loadPage(url, gresp);
-	} else {
-	    GeminiRequest greq = new GeminiRequest(url);
-	    greq.doConnect();
-	    if (greq.getStatus() == GeminiRequest.STAT_SUCCESS) {
-		gresp = greq.getResponse();
-		if (gresp.hasBody()) {
-		    loadPage(url, gresp);
-		} else {
-		    loadFail(url, gresp);
-		}
-	    } else {
-		curLabel.setText("Connection failed");
-		System.err.println(greq.getStatusMsg());
-	    }
-	}
+	addressBar.setUrl(url);
+	curLabel.setText(" Loading");
+	final int lcount = ++loadCount;
+	client.fetchAsync(url).whenComplete((gresp, ex) ->
+		SwingUtilities.invokeLater(() ->
+			showResponse(lcount, url, gresp, ex)));
     }
 
     /*
-     * Display a response in the panel.
+     * Called on the event thread when a fetch completes. If another page
+     * has been requested since, the response is ignored.
      */
-    private void loadPage(final String url, final GeminiResponse gresp) {
-	if ("text/gemini".equals(gresp.metaText())) {
-	    jep.setContentType("text/html");
-	    jep.setText(GeminiUtils.geminiToHtml(gresp.bodyAsString()));
+    private void showResponse(final int lcount, final String url,
+			      final GeminiResponse gresp, final Throwable ex) {
+	if (lcount != loadCount) {
+	    return;
+	}
+	if (ex != null) {
+	    Throwable cause = (ex instanceof CompletionException)
+		? ex.getCause() : ex;
+	    showError(url, "Connection failed: " + cause.getMessage());
+	    curLabel.setText(" Connection failed");
+	    backButton.setEnabled(historyList.size() > 1);
+	} else if (gresp.hasBody()) {
+	    frame.getHistory().visit(url);
+	    loadPage(url, gresp, 0);
+	    return;
 	} else {
-	    jep.setText(gresp.bodyAsString());
+	    loadFail(url, gresp);
 	}
+	GeminiStartup.pageShown();
+    }
+
+    /*
+     * Display a response in the panel, scrolled to the given document
+     * offset. The response is converted and parsed into a new document
+     * by a background thread, using the handler for its MIME type, and
+     * the event thread only has to swap the finished document in. If
+     * another page has been requested by then, the document is
+     * discarded. If the document can't be built, the failure is shown
+     * instead.
+     */
+    private void loadPage(final String url, final GeminiResponse gresp,
+			  final int offset) {
+	final GeminiContentHandler handler =
+	    GeminiContentHandlers.get(gresp.mimeType());
+	final int lcount = loadCount;
+	final boolean images = showImages;
+	CompletableFuture.supplyAsync(() ->
+		buildDocument(url, gresp, handler, images), BUILDER)
+	    .whenComplete((doc, ex) -> SwingUtilities.invokeLater(() -> {
+		    if (lcount != loadCount) {
+			return;
+		    }
+		    if (ex != null) {
+			Throwable cause = (ex instanceof CompletionException)
+			    ? ex.getCause() : ex;
+			showError(url, "Unable to display page: " + cause);
+			curLabel.setText(" Display failed");
+			backButton.setEnabled(historyList.size() > 1);
+			GeminiStartup.pageShown();
+			return;
+		    }
+		    curHandler = handler;
+		    showPage(url, gresp, doc, offset);
+		}));
+    }
+
+    /*
+     * Display a page once its document has been built. The page becomes
+     * the current one before the document is swapped in, so that inline
+     * images are resolved against it.
+     */
+    private void showPage(final String url, final GeminiResponse gresp,
+			  final HTMLDocument doc, final int offset) {
+	surl = url;
+	curResponse = gresp;
+	responseUrl = url;
+	jep.setDocument(doc);
 	jep.setMargin(JingleUtils.defInsets());
 	jep.setCaretPosition(0);
 	jep.setEditable(false);
-	curLabel.setText(url);
-	pageCache.put(url, gresp);
+	if (offset > 0) {
+	    SwingUtilities.invokeLater(() -> scrollTo(offset));
+	}
+	addressBar.setUrl(url);
+	curLabel.setText("");
 	backButton.setEnabled(historyList.size() > 1);
+	firePropertyChange(PAGE_PROPERTY, null, url);
+	GeminiStartup.pageShown();
+    }
+
+    /*
+     * Build the document for a response. This is called on a background
+     * thread, which is safe as the document isn't yet attached to the
+     * editor.
+     */
+    private HTMLDocument buildDocument(final String url,
+				       final GeminiResponse gresp,
+				       final GeminiContentHandler handler,
+				       final boolean images) {
+	HTMLDocument doc = (HTMLDocument) kit.createDefaultDocument();
+	// parse in one pass, rather than in chunks for incremental display
+	doc.setTokenThreshold(Integer.MAX_VALUE);
+	try {
+	    kit.read(new StringReader(toHtml(url, gresp, handler, images)),
+		     doc, 0);
+	} catch (IOException | BadLocationException e) {
+	    System.err.println("Unable to parse page: " + e.getMessage());
+	}
+	return doc;
+    }
+
+    /*
+     * Convert a response to html, straight from the body without
+     * creating an intermediate String of the whole page. Only text is
+     * converted to html of about its own size.
+     */
+    private static String toHtml(final String url, final GeminiResponse gresp,
+				 final GeminiContentHandler handler,
+				 final boolean images) {
+	int len = "text".equals(gresp.mimeType().getType())
+	    ? gresp.bodyLength() : 0;
+	StringBuilder sb = new StringBuilder(len + len / 4 + 64);
+	try {
+	    handler.writeHtml(url, gresp, images, sb);
+	} catch (IOException ioe) {
+	    sb.append("Unable to read page: ").append(ioe.getMessage());
+	}
+	return sb.toString();
     }
 
     /*
@@ -154,91 +328,185 @@ public final class GeminiPanel extends JEditorPane
      */
     private void loadFail(final String url, final GeminiResponse gresp) {
 	int rescode1 = gresp.majorCode();
+	String msg;
 	if (rescode1 == GeminiResponse.RES_NEEDMORE) {
-	    jep.setText("Unhandled code: need more input " + gresp.metaText());
+	    msg = "Unhandled code: need more input ";
 	} else if (rescode1 == GeminiResponse.RES_SUCCESS) {
-	    jep.setText("Unexpected failure on success: " + gresp.metaText());
+	    msg = "Unexpected failure on success: ";
 	} else if (rescode1 == GeminiResponse.RES_REDIRECT) {
-	    jep.setText("Unhandled redirect to: " + gresp.metaText());
+	    msg = "Unhandled redirect to: ";
 	} else if (rescode1 == GeminiResponse.RES_TEMPFAIL) {
-	    jep.setText("Temporary failure: " + gresp.metaText());
+	    msg = "Temporary failure: ";
 	} else if (rescode1 == GeminiResponse.RES_PERMFAIL) {
-	    jep.setText("Permanent failure: " + gresp.metaText());
+	    msg = "Permanent failure: ";
 	} else if (rescode1 == GeminiResponse.RES_NEEDCERT) {
-	    jep.setText("Client certificate required: " + gresp.metaText());
+	    msg = "Client certificate required: ";
+	} else {
+	    msg = "Unknown response: ";
 	}
+	showError(url, msg + gresp.metaText());
+	curLabel.setText(" Error");
+	backButton.setEnabled(true);
+    }
+
+    /*
+     * Show an error message in place of a page. The message is escaped,
+     * as it may come from the server.
+     */
+    private void showError(final String url, final String msg) {
+	jep.setText(GeminiUtils.messageToHtml(msg));
+	surl = url;
 	jep.setMargin(JingleUtils.defInsets());
 	jep.setCaretPosition(0);
 	jep.setEditable(false);
-	curLabel.setText("Error for " + url);
-	backButton.setEnabled(true);
+	addressBar.setUrl(url);
     }
 
     /*
      * Go back to the previous page in the history, if any.
-     * Remove the current page from the history and the cache,
-     * remove the previous page from the history but not the cache,
-     * then call loadPage() which will add it back to the history.
+     * Remove the current page and the previous page from the history,
+     * then call loadPage() which will add it back to the history. The
+     * previous page will normally still be in the shared cache.
      */
     private void goBack() {
 	int s = historyList.size();
 	if (s > 1) {
 	    historyList.remove(s - 1);
-	    pageCache.remove(surl);
 	    String sold = historyList.get(s - 2);
 	    historyList.remove(s - 2);
 	    loadPage(sold);
 	}
     }
 
+    /*
+     * Add the state of this panel to a session snapshot.
+     */
+    void saveState(final GeminiSession session) {
+	int offset = 0;
+	if (curResponse != null) {
+	    Rectangle r = jsp.getViewport().getViewRect();
+	    offset = Math.max(0, jep.viewToModel2D(new Point(r.x, r.y)));
+	}
+	session.addTab(historyList, responseUrl, curResponse, offset);
+    }
+
+    /*
+     * Restore the state of this panel from a session snapshot. If the
+     * current page was saved it's shown immediately and scrolled to
+     * where it was, otherwise it's fetched.
+     */
+    void restoreState(final GeminiSession.Tab tab) {
+	List<String> history = tab.getHistory();
+	if (history.isEmpty()) {
+	    return;
+	}
+	historyList.clear();
+	historyList.addAll(history);
+	String url = history.get(history.size() - 1);
+	GeminiResponse gresp = tab.getResponse();
+	if (gresp != null && gresp.hasBody() && url.equals(tab.getUrl())) {
+	    loadCount++;
+	    client.getCache().put(url, gresp);
+	    loadPage(url, gresp, tab.getOffset());
+	} else {
+	    historyList.remove(history.size() - 1);
+	    loadPage(url);
+	}
+    }
+
+    /*
+     * Scroll so the given document offset is at the top of the view.
+     */
+    private void scrollTo(final int offset) {
+	try {
+	    Rectangle2D r = jep.modelToView2D(
+			Math.min(offset, jep.getDocument().getLength()));
+	    if (r != null) {
+		jsp.getViewport().setViewPosition(new Point(0, (int) r.getY()));
+	    }
+	} catch (BadLocationException ble) { }
+    }
+
     /**
      * Pop up the source to the current page.
      */
     public void viewSource() {
-	GeminiResponse gresp = pageCache.get(surl);
-	if (gresp != null) {
-	    new JingleInfoFrame(gresp.bodyAsString(), "text/plain");
+	if (curResponse != null) {
+	    new JingleInfoFrame(curResponse.bodyAsString(), "text/plain");
 	}
     }
 
+    /**
+     * Set whether images linked from the page are shown inline. If the
+     * setting changes, the current page is redisplayed.
+     *
+     * @param images true if images should be shown inline
+     */
+    public void setShowImages(final boolean images) {
+	if (images != showImages) {
+	    showImages = images;
+	    if (curResponse != null && curResponse.hasBody()) {
+		loadPage(responseUrl, curResponse, 0);
+	    }
+	}
+    }
+
+    /**
+     * Move the focus to the address bar, with its text selected so it
+     * can be typed over.
+     */
+    public void focusAddressBar() {
+	addressBar.requestFocusInWindow();
+	addressBar.selectAll();
+    }
+
+    /**
+     * Get the url of the page being displayed.
+     *
+     * @return the current url
+     */
+    public String getCurrentUrl() {
+	return surl;
+    }
+
     @Override
     public void actionPerformed(final ActionEvent e) {
 	goBack();
     }
 
     /*
-     * Take the link text and normalize it into fully qualified form.
+     * Take the link text and normalize it into fully qualified form,
+     * resolving it relative to the page being displayed, rather than
+     * any page still loading.
      */
     private String normalizeLink(final String ilink) {
-	/*
-	 * Already fully qualified.
-	 */
-	if (ilink.indexOf("://") != -1) {
+	if (responseUrl == null) {
 	    return ilink;
 	}
-	/*
-	 * Full, but missing the protocol, assume for now it's a gemini
-	 * request as those are the only ones handled internally.
-	 */
-	if (ilink.startsWith("//")) {
-	    return "gemini:" + ilink;
-	}
-	/*
-	 * no protocol in the url, must be relative
-	 */
-	if (surl.endsWith("/")) {
-	    return surl + ilink;
-	} else {
-	    return surl.substring(0, surl.lastIndexOf('/') + 1) + ilink;
+	try {
+	    return GeminiURL.parse(responseUrl).resolve(ilink).toString();
+	} catch (URISyntaxException use) {
+	    return ilink;
 	}
     }
 
     /*
-     * Try and visit the requested link. If it's a gemini link, we open
-     * it here. If not we fail and let something else handle it.
+     * Resolve the url of an inline image, returning null if it mustn't
+     * be loaded because it's a local file on a page that isn't.
+     */
+    private String resolveImage(final String src) {
+	String url = normalizeLink(src);
+	return url.startsWith("file:") && !isLocalPage() ? null : url;
+    }
+
+    /*
+     * Try and visit the requested link. If it's a gemini link, or a
+     * local file linked from a local page such as a mirrored page, we
+     * open it here. If not we
+     * fail and let something else handle it.
      */
     private boolean gotoLink(final String s) {
-	if (s.startsWith("gemini://")) {
+	if (isBrowsable(s)) {
 	    loadPage(s);
 	    return true;
 	} else {
@@ -246,15 +514,64 @@ public final class GeminiPanel extends JEditorPane
 	}
     }
 
+    /*
+     * Can this link be displayed here?
+     */
+    private boolean isBrowsable(final String s) {
+	return s.startsWith("gemini://")
+	    || (s.startsWith("file:") && isLocalPage());
+    }
+
+    /*
+     * Is this panel showing a local file, rather than a remote page or
+     * an error? Only then may its links lead to local files, so that a
+     * remote page can't read files from the local disk.
+     */
+    private boolean isLocalPage() {
+	return surl != null && surl.startsWith("file:")
+	    && responseUrl != null && responseUrl.startsWith("file:");
+    }
+
+    /*
+     * Was the link clicked with a modifier that asks for a new tab?
+     */
+    private boolean wantsNewTab(final HyperlinkEvent ev) {
+	InputEvent ie = ev.getInputEvent();
+	return ie != null
+	    && (ie.getModifiersEx()
+		& (InputEvent.CTRL_DOWN_MASK | InputEvent.META_DOWN_MASK)) != 0;
+    }
+
     @Override
     public void hyperlinkUpdate(final HyperlinkEvent ev) {
+	String desc = ev.getDescription();
+	if (desc.startsWith(GeminiContentHandlers.ACTION)) {
+	    // not a page, but an action offered by the handler
+	    if (ev.getEventType() == HyperlinkEvent.EventType.ACTIVATED
+		    && curHandler != null) {
+		curHandler.action(this,
+			desc.substring(GeminiContentHandlers.ACTION.length()),
+			responseUrl, curResponse);
+	    }
+	    return;
+	}
 	if (ev.getEventType() == HyperlinkEvent.EventType.ACTIVATED) {
-	    if (!gotoLink(normalizeLink(ev.getDescription()))) {
+	    String link = normalizeLink(desc);
+	    if (link.startsWith("file:") && !isLocalPage()) {
+		// refuse, rather than pass to an external browser
+		return;
+	    }
+	    if (wantsNewTab(ev) && isBrowsable(link)) {
+		frame.openTab(link, false);
+	    } else if (!gotoLink(link)) {
 		// not gemini, punt to external
 		if (ev.getURL() != null && Desktop.isDesktopSupported()) {
 		    new RunBrowser(ev.getURL());
 		}
 	    }
+	} else if (ev.getEventType() == HyperlinkEvent.EventType.ENTERED) {
+	    // likely to be clicked, so start connecting to the server now
+	    client.prewarm(normalizeLink(desc));
 	}
     }
 }
@@ -0,0 +1,313 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.gui;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import uk.co.petertribble.pctgemini.network.GeminiResponse;
+
+/**
+ * A snapshot of the browser session: the history of each tab, the
+ * page each tab is showing, including its body, and how far the page
+ * has been scrolled. A session can be written to a compact binary file
+ * and read back, so that the browser can reopen showing the same pages
+ * without going to the network.
+ *
+ * <p>The file starts with a magic number and version, followed by the
+ * distinct page bodies, then the state of each tab, which refers to the
+ * bodies by index. All strings are written as a length followed by the
+ * UTF-8 bytes.
+ */
+public final class GeminiSession {
+
+    /**
+     * Identifies a session file.
+     */
+    private static final int MAGIC = 0x50475353;
+
+    /**
+     * The version of the file format.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The state of each tab.
+     */
+    private final List<Tab> tabList = new ArrayList<>();
+    /**
+     * The index of the selected tab.
+     */
+    private final int selected;
+    /**
+     * Whether images were being shown inline.
+     */
+    private final boolean showImages;
+
+    /**
+     * The saved state of a single tab.
+     */
+    static final class Tab {
+	private final List<String> history;
+	private final String url;
+	private final GeminiResponse response;
+	private final int offset;
+
+	Tab(final List<String> history, final String url,
+	    final GeminiResponse response, final int offset) {
+	    this.history = history;
+	    this.url = url;
+	    this.response = response;
+	    this.offset = offset;
+	}
+
+	/*
+	 * The history of the tab, the last entry being the current page.
+	 */
+	List<String> getHistory() {
+	    return history;
+	}
+
+	/*
+	 * The url of the page being displayed, or null.
+	 */
+	String getUrl() {
+	    return url;
+	}
+
+	/*
+	 * The response being displayed, or null.
+	 */
+	GeminiResponse getResponse() {
+	    return response;
+	}
+
+	/*
+	 * The document offset of the top of the visible part of the page.
+	 */
+	int getOffset() {
+	    return offset;
+	}
+    }
+
+    /**
+     * Create an empty session.
+     *
+     * @param selected the index of the selected tab
+     * @param showImages whether images are shown inline
+     */
+    public GeminiSession(final int selected, final boolean showImages) {
+	this.selected = selected;
+	this.showImages = showImages;
+    }
+
+    /*
+     * Add the state of a tab to the session.
+     */
+    void addTab(final List<String> history, final String url,
+		final GeminiResponse response, final int offset) {
+	tabList.add(new Tab(new ArrayList<>(history), url, response, offset));
+    }
+
+    /*
+     * Get the saved state of the tabs.
+     */
+    List<Tab> getTabs() {
+	return Collections.unmodifiableList(tabList);
+    }
+
+    /**
+     * Get the index of the tab that was selected.
+     *
+     * @return the index of the selected tab
+     */
+    public int getSelected() {
+	return selected;
+    }
+
+    /**
+     * Get whether images were being shown inline.
+     *
+     * @return true if images were shown inline
+     */
+    public boolean isShowImages() {
+	return showImages;
+    }
+
+    /**
+     * Write the session to a file. The file is written under a temporary
+     * name and then renamed, so an existing session is never left
+     * partially overwritten.
+     *
+     * @param f the file to write
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public void write(final File f) throws IOException {
+	/*
+	 * Tabs often show the same page, and the cache shares identical
+	 * bodies, so each distinct body array is written once.
+	 */
+	Map<byte[], Integer> bodies = new IdentityHashMap<>();
+	List<byte[]> blist = new ArrayList<>();
+	for (Tab tab : tabList) {
+	    if (tab.response != null) {
+		byte[] b = tab.response.bodyBytes();
+		if (!bodies.containsKey(b)) {
+		    bodies.put(b, blist.size());
+		    blist.add(b);
+		}
+	    }
+	}
+	File tmp = new File(f.getPath() + ".tmp");
+	try (DataOutputStream dos = new DataOutputStream(
+		new BufferedOutputStream(new FileOutputStream(tmp)))) {
+	    dos.writeInt(MAGIC);
+	    dos.writeInt(VERSION);
+	    dos.writeInt(selected);
+	    dos.writeBoolean(showImages);
+	    dos.writeInt(blist.size());
+	    for (byte[] b : blist) {
+		dos.writeInt(b.length);
+		dos.write(b);
+	    }
+	    dos.writeInt(tabList.size());
+	    for (Tab tab : tabList) {
+		dos.writeInt(tab.history.size());
+		for (String s : tab.history) {
+		    writeString(dos, s);
+		}
+		if (tab.response == null) {
+		    dos.writeInt(-1);
+		} else {
+		    dos.writeInt(bodies.get(tab.response.bodyBytes()));
+		    writeString(dos, tab.url);
+		    writeString(dos, tab.response.header());
+		    dos.writeInt(tab.offset);
+		}
+	    }
+	}
+	Files.move(tmp.toPath(), f.toPath(),
+		   StandardCopyOption.REPLACE_EXISTING,
+		   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*
+     * Write a String as its length followed by its UTF-8 bytes.
+     */
+    private static void writeString(final DataOutputStream dos,
+				    final String s) throws IOException {
+	byte[] b = s.getBytes(StandardCharsets.UTF_8);
+	dos.writeInt(b.length);
+	dos.write(b);
+    }
+
+    /**
+     * Read a session from a file. The file is mapped into memory rather
+     * than read through a stream.
+     *
+     * @param f the file to read
+     *
+     * @return the saved session
+     *
+     * @throws IOException if the file cannot be read or is not a valid
+     * session file
+     */
+    public static GeminiSession read(final File f) throws IOException {
+	try (FileChannel fc = FileChannel.open(f.toPath(),
+					       StandardOpenOption.READ)) {
+	    MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0,
+					  fc.size());
+	    return read(buf);
+	} catch (BufferUnderflowException | IndexOutOfBoundsException
+		 | NegativeArraySizeException e) {
+	    throw new IOException("Invalid session file " + f, e);
+	}
+    }
+
+    /*
+     * Parse a session from a buffer.
+     */
+    private static GeminiSession read(final ByteBuffer buf)
+	    throws IOException {
+	if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+	    throw new IOException("Not a session file");
+	}
+	GeminiSession session = new GeminiSession(buf.getInt(),
+						  buf.get() != 0);
+	int nbodies = buf.getInt();
+	List<byte[]> blist = new ArrayList<>(Math.min(nbodies, 256));
+	for (int i = 0; i < nbodies; i++) {
+	    blist.add(readBytes(buf));
+	}
+	int ntabs = buf.getInt();
+	for (int i = 0; i < ntabs; i++) {
+	    int nhist = buf.getInt();
+	    List<String> history = new ArrayList<>(Math.min(nhist, 256));
+	    for (int j = 0; j < nhist; j++) {
+		history.add(readString(buf));
+	    }
+	    int bindex = buf.getInt();
+	    if (bindex < 0) {
+		session.addTab(history, null, null, 0);
+	    } else {
+		String url = readString(buf);
+		GeminiResponse gresp = new GeminiResponse(readString(buf),
+							  blist.get(bindex));
+		session.addTab(history, url, gresp, buf.getInt());
+	    }
+	}
+	return session;
+    }
+
+    /*
+     * Read a length and that many bytes, checking that the length is
+     * possible before allocating anything.
+     */
+    private static byte[] readBytes(final ByteBuffer buf)
+	    throws IOException {
+	int len = buf.getInt();
+	if (len < 0 || len > buf.remaining()) {
+	    throw new IOException("Invalid length " + len);
+	}
+	byte[] b = new byte[len];
+	buf.get(b);
+	return b;
+    }
+
+    /*
+     * Read a String written by writeString().
+     */
+    private static String readString(final ByteBuffer buf)
+	    throws IOException {
+	return new String(readBytes(buf), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.gui;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.html.HTMLEditorKit;
+import uk.co.petertribble.pctgemini.network.GeminiSocketFactory;
+
+/**
+ * Speed up and measure application startup. Expensive initialisation
+ * that the first page needs is started on background threads, so that it
+ * overlaps with building the user interface, and the time taken to reach
+ * each stage of startup is recorded.
+ *
+ * <p>If the pctgemini.timing property is true the timings are printed
+ * once the first page has been shown. If the
+ * pctgemini.exitafterstartup property is true the application exits at
+ * that point, which is used for the training run that generates the
+ * class data sharing archive.
+ */
+public final class GeminiStartup {
+
+    /**
+     * The time startup began, in nanoseconds.
+     */
+    private static final long T0 = System.nanoTime();
+
+    /**
+     * A small document to exercise the html code.
+     */
+    private static final String SAMPLE =
+	"# Title\n## Heading\nText\n=> gemini://localhost/ link\n"
+	+ "```\npre\n```\n";
+
+    /**
+     * The time at which each stage of startup completed, in milliseconds
+     * since startup began.
+     */
+    private static final Map<String, Long> MARKS = new LinkedHashMap<>();
+
+    /**
+     * Set once the first page has been shown.
+     */
+    private static final AtomicBoolean STARTED = new AtomicBoolean();
+
+    /*
+     * This class cannot be instantiated.
+     */
+    private GeminiStartup() {
+    }
+
+    /**
+     * Start initialising TLS and the html support on background threads.
+     */
+    public static void warmUp() {
+	mark("main");
+	startThread("tls-warmup", () -> {
+		GeminiSocketFactory.warmUp();
+		mark("tls ready");
+	    });
+	startThread("html-warmup", () -> {
+		warmHtml();
+		mark("html ready");
+	    });
+    }
+
+    private static void startThread(final String name, final Runnable r) {
+	Thread t = new Thread(r, name);
+	t.setDaemon(true);
+	t.start();
+    }
+
+    /*
+     * Load the html editor kit, its default style sheet, and the parser,
+     * by parsing a small document that isn't attached to a component.
+     */
+    private static void warmHtml() {
+	HTMLEditorKit kit = new HTMLEditorKit();
+	Document doc = kit.createDefaultDocument();
+	try {
+	    kit.read(new StringReader(GeminiUtils.geminiToHtml(SAMPLE)),
+		     doc, 0);
+	} catch (IOException | BadLocationException e) {
+	}
+    }
+
+    /**
+     * Record that a stage of startup has completed. Only the first time
+     * a given stage is reached is recorded.
+     *
+     * @param stage the name of the stage
+     */
+    public static void mark(final String stage) {
+	long t = (System.nanoTime() - T0) / 1_000_000;
+	synchronized (MARKS) {
+	    MARKS.putIfAbsent(stage, t);
+	}
+    }
+
+    /**
+     * Get the startup timings recorded so far.
+     *
+     * @return a Map of stage names to the time in milliseconds since
+     * startup began
+     */
+    public static Map<String, Long> getTimings() {
+	synchronized (MARKS) {
+	    return new LinkedHashMap<>(MARKS);
+	}
+    }
+
+    /**
+     * Called when a page has been shown. The first time, this completes
+     * startup, so report the timings and exit if requested.
+     */
+    public static void pageShown() {
+	if (!STARTED.compareAndSet(false, true)) {
+	    return;
+	}
+	mark("first page");
+	if (Boolean.getBoolean("pctgemini.timing")) {
+	    long jvmtime = ManagementFactory.getRuntimeMXBean().getUptime()
+		- (System.nanoTime() - T0) / 1_000_000;
+	    System.err.println("jvm startup: " + jvmtime + " ms");
+	    for (Map.Entry<String, Long> me : getTimings().entrySet()) {
+		System.err.println(me.getKey() + ": " + me.getValue() + " ms");
+	    }
+	}
+	if (Boolean.getBoolean("pctgemini.exitafterstartup")) {
+	    System.exit(0);
+	}
+    }
+}
@@ -10,16 +10,51 @@
  * source. A copy of the CDDL is also available via the Internet at
  * http://www.illumos.org/license/CDDL.
  *
- * Copyright 2024 Peter C. Tribble
+ * Copyright 2026 Peter C. Tribble
  */
 
 package uk.co.petertribble.pctgemini.gui;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+
 /**
  * Some static utility helper methods.
  */
 public final class GeminiUtils {
 
+    /**
+     * The size of the buffer used when reading from a Reader.
+     */
+    private static final int READBUFSIZE = 8192;
+
+    /**
+     * The html written at the start of every converted document.
+     */
+    private static final String HTML_HEAD = "<html><body>\n";
+
+    /**
+     * The html written at the end of every converted document.
+     */
+    private static final String HTML_TAIL = "</body></html>\n";
+
+    /**
+     * The file suffixes that identify links to images.
+     */
+    private static final String[] IMAGE_SUFFIXES = {
+	".png", ".jpg", ".jpeg", ".gif", ".bmp"};
+
+    /*
+     * Receives the lines of a document, as ranges of a buffer that is
+     * only valid for the duration of the call.
+     */
+    @FunctionalInterface
+    private interface LineConsumer {
+	void line(CharSequence s, int from, int to) throws IOException;
+    }
+
     /*
      * This class cannot be instantiated.
      */
@@ -34,53 +69,618 @@ public final class GeminiUtils {
      * @return the text converted to html form
      */
     public static String geminiToHtml(final String instring) {
-	StringBuilder sb = new StringBuilder(54);
-	// toggle preformatted
-	boolean toggle = false;
-	sb.append("<html><body>\n");
-	for (String s : instring.split("\n")) {
-	    if (toggle) {
-		// preformatted, as-is unless the preformatted block terminates
-		if (s.startsWith("```")) {
-		    toggle = false;
+	/*
+	 * The html is always somewhat larger than the input, so size the
+	 * buffer to avoid most of the regrowth.
+	 */
+	StringBuilder sb = new StringBuilder(instring.length()
+		+ instring.length() / 4 + HTML_HEAD.length()
+		+ HTML_TAIL.length());
+	try {
+	    geminiToHtml(instring, sb);
+	} catch (IOException ioe) {
+	    // a StringBuilder never throws
+	    throw new UncheckedIOException(ioe);
+	}
+	return sb.toString();
+    }
+
+    /**
+     * Convert text/gemini to html, writing the output as it is generated.
+     *
+     * @param in the text to be converted
+     * @param out where the html is to be written
+     *
+     * @throws IOException if the output cannot be written
+     */
+    public static void geminiToHtml(final CharSequence in,
+				    final Appendable out) throws IOException {
+	out.append(HTML_HEAD);
+	GeminiConverter gc = new GeminiConverter(false, out);
+	int len = in.length();
+	int start = 0;
+	while (start < len) {
+	    int end = start;
+	    while (end < len && in.charAt(end) != '\n') {
+		end++;
+	    }
+	    gc.line(in, start, end);
+	    start = end + 1;
+	}
+	gc.end();
+	out.append(HTML_TAIL);
+    }
+
+    /**
+     * Convert text/gemini to html, reading the input and writing the
+     * output a line at a time, so that the working memory is bounded by
+     * the longest line rather than the size of the document.
+     *
+     * @param in a Reader supplying the text to be converted
+     * @param out where the html is to be written
+     *
+     * @throws IOException if the input cannot be read or the output
+     * cannot be written
+     */
+    public static void geminiToHtml(final Reader in, final Appendable out)
+		throws IOException {
+	geminiToHtml(in, out, false);
+    }
+
+    /**
+     * Convert text/gemini to html, reading the input and writing the
+     * output a line at a time. If images is true, links to images are
+     * followed by an img tag so the image can be shown inline.
+     *
+     * @param in a Reader supplying the text to be converted
+     * @param out where the html is to be written
+     * @param images whether to add inline images for image links
+     *
+     * @throws IOException if the input cannot be read or the output
+     * cannot be written
+     */
+    public static void geminiToHtml(final Reader in, final Appendable out,
+				    final boolean images) throws IOException {
+	out.append(HTML_HEAD);
+	GeminiConverter gc = new GeminiConverter(images, out);
+	forEachLine(in, gc::line);
+	gc.end();
+	out.append(HTML_TAIL);
+    }
+
+    /**
+     * Convert plain text to html, as a preformatted block, reading the
+     * input and writing the output a buffer at a time.
+     *
+     * @param in a Reader supplying the text to be converted
+     * @param out where the html is to be written
+     *
+     * @throws IOException if the input cannot be read or the output
+     * cannot be written
+     */
+    public static void textToHtml(final Reader in, final Appendable out)
+		throws IOException {
+	out.append(HTML_HEAD).append("<pre>\n");
+	char[] cbuf = new char[READBUFSIZE];
+	CharBuffer cb = CharBuffer.wrap(cbuf);
+	int nread;
+	while ((nread = in.read(cbuf)) != -1) {
+	    escape(cb, 0, nread, out);
+	}
+	out.append("</pre>\n").append(HTML_TAIL);
+    }
+
+    /**
+     * Convert markdown to html, reading the input and writing the output
+     * a line at a time. Only the common block elements are recognised:
+     * headings, paragraphs, lists, quotations, and fenced code blocks,
+     * along with inline links and code spans.
+     *
+     * @param in a Reader supplying the text to be converted
+     * @param out where the html is to be written
+     *
+     * @throws IOException if the input cannot be read or the output
+     * cannot be written
+     */
+    public static void markdownToHtml(final Reader in, final Appendable out)
+		throws IOException {
+	out.append(HTML_HEAD);
+	MarkdownConverter mc = new MarkdownConverter(out);
+	forEachLine(in, mc::line);
+	mc.endBlock();
+	out.append(HTML_TAIL);
+    }
+
+    /**
+     * Write an html page that shows an image.
+     *
+     * @param url the url of the image
+     * @param out where the html is to be written
+     *
+     * @throws IOException if the output cannot be written
+     */
+    public static void imageToHtml(final String url, final Appendable out)
+		throws IOException {
+	out.append(HTML_HEAD).append("<p><img src=\"");
+	escape(url, 0, url.length(), out);
+	out.append("\" alt=\"");
+	escape(url, 0, url.length(), out);
+	out.append("\"></p>\n").append(HTML_TAIL);
+    }
+
+    /**
+     * Convert a message to an html page.
+     *
+     * @param msg the message, which will be escaped
+     *
+     * @return an html page containing the message
+     */
+    public static String messageToHtml(final String msg) {
+	StringBuilder sb = new StringBuilder(msg.length() + 64);
+	try {
+	    messageToHtml(msg, sb);
+	} catch (IOException ioe) {
+	    // a StringBuilder never throws
+	    throw new UncheckedIOException(ioe);
+	}
+	return sb.toString();
+    }
+
+    /**
+     * Write an html page containing a message.
+     *
+     * @param msg the message, which will be escaped
+     * @param out where the html is to be written
+     *
+     * @throws IOException if the output cannot be written
+     */
+    public static void messageToHtml(final String msg, final Appendable out)
+		throws IOException {
+	out.append(HTML_HEAD).append("<p>");
+	escape(msg, 0, msg.length(), out);
+	out.append("</p>\n").append(HTML_TAIL);
+    }
+
+    /**
+     * Write an html page containing a message followed by a link.
+     *
+     * @param msg the message, which will be escaped
+     * @param href the target of the link, which will be escaped
+     * @param text the text of the link, which will be escaped
+     * @param out where the html is to be written
+     *
+     * @throws IOException if the output cannot be written
+     */
+    public static void messageToHtml(final String msg, final String href,
+				     final String text, final Appendable out)
+		throws IOException {
+	out.append(HTML_HEAD).append("<p>");
+	escape(msg, 0, msg.length(), out);
+	out.append("</p>\n<p><a href=\"");
+	escape(href, 0, href.length(), out);
+	out.append("\">");
+	escape(text, 0, text.length(), out);
+	out.append("</a></p>\n").append(HTML_TAIL);
+    }
+
+    /*
+     * Read a document and pass it on a line at a time, without the line
+     * terminators. A buffer is reused for the lines, so the working
+     * memory is bounded by the longest line.
+     */
+    private static void forEachLine(final Reader in,
+				    final LineConsumer consumer)
+		throws IOException {
+	char[] cbuf = new char[READBUFSIZE];
+	StringBuilder line = new StringBuilder(128);
+	int nread;
+	while ((nread = in.read(cbuf)) != -1) {
+	    int start = 0;
+	    for (int i = 0; i < nread; i++) {
+		if (cbuf[i] == '\n') {
+		    line.append(cbuf, start, i - start);
+		    int end = line.length();
+		    if (end > 0 && line.charAt(end - 1) == '\r') {
+			end--;
+		    }
+		    consumer.line(line, 0, end);
+		    line.setLength(0);
+		    start = i + 1;
+		}
+	    }
+	    line.append(cbuf, start, nread - start);
+	}
+	if (line.length() > 0) {
+	    consumer.line(line, 0, line.length());
+	}
+    }
+
+    /*
+     * The state of a text/gemini conversion, which is whether we're in
+     * a preformatted block.
+     */
+    private static final class GeminiConverter {
+
+	private final boolean images;
+	private final Appendable out;
+	private boolean pre;
+
+	GeminiConverter(final boolean images, final Appendable out) {
+	    this.images = images;
+	    this.out = out;
+	}
+
+	void line(final CharSequence s, final int from, final int to)
+		throws IOException {
+	    pre = convertLine(s, from, to, pre, images, out);
+	}
+
+	/*
+	 * Close a preformatted block left open at the end of the input.
+	 */
+	void end() throws IOException {
+	    if (pre) {
+		out.append("</pre>\n");
+		pre = false;
+	    }
+	}
+    }
+
+    /*
+     * The state of a markdown conversion, which is the kind of block
+     * that the previous line was part of.
+     */
+    private static final class MarkdownConverter {
+
+	private static final int NONE = 0;
+	private static final int PARA = 1;
+	private static final int LIST = 2;
+	private static final int QUOTE = 3;
+	private static final int CODE = 4;
+
+	private final Appendable out;
+	private int block = NONE;
+
+	MarkdownConverter(final Appendable out) {
+	    this.out = out;
+	}
+
+	void line(final CharSequence s, final int from, final int to)
+		throws IOException {
+	    if (block == CODE) {
+		if (startsWith(s, skipSpace(s, from, to), to, "```")) {
+		    endBlock();
 		} else {
-		    sb.append(s).append('\n');
+		    escape(s, from, to, out);
+		    out.append('\n');
+		}
+		return;
+	    }
+	    int start = skipSpace(s, from, to);
+	    int end = trimSpace(s, start, to);
+	    if (start == end) {
+		endBlock();
+	    } else if (startsWith(s, start, end, "```")) {
+		startBlock(CODE, "<pre>\n");
+	    } else if (s.charAt(start) == '#') {
+		int level = 0;
+		while (start + level < end && s.charAt(start + level) == '#') {
+		    level++;
 		}
+		endBlock();
+		String tag = "h" + Math.min(level, 6);
+		out.append('<').append(tag).append('>');
+		inline(s, skipSpace(s, start + level, end), end);
+		out.append("</").append(tag).append(">\n");
+	    } else if (end - start > 1 && s.charAt(start + 1) == ' '
+		       && (s.charAt(start) == '-' || s.charAt(start) == '*'
+			   || s.charAt(start) == '+')) {
+		startBlock(LIST, "<ul>\n");
+		out.append("<li>");
+		inline(s, skipSpace(s, start + 2, end), end);
+		out.append("</li>\n");
+	    } else if (s.charAt(start) == '>') {
+		startBlock(QUOTE, "<blockquote>\n");
+		out.append("<p>");
+		inline(s, skipSpace(s, start + 1, end), end);
+		out.append("</p>\n");
 	    } else {
-		// not in a preformatted block
-		if (s.startsWith("=>")) {
-		    String s2 = s.substring(2).strip();
-		    String[] ds = s2.split("\\s+", 2);
-		    if (ds.length == 1) {
-			sb.append("<p><a href=\"").append(ds[0]).append("\">")
-			    .append(ds[0]).append("</a></p>\n");
-		    } else if (ds.length == 2) {
-			sb.append("<p><a href=\"").append(ds[0]).append("\">")
-			    .append(ds[1]).append("</a></p>\n");
-		    }
-		} else if (s.startsWith("```")) {
-		    sb.append("<pre>\n");
-		    toggle = true;
-		} else if (s.startsWith("###")) {
-		    String s2 = s.substring(3).strip();
-		    sb.append("<h3>").append(s2).append("</h3>");
-		} else if (s.startsWith("##")) {
-		    String s2 = s.substring(2).strip();
-		    sb.append("<h2>").append(s2).append("</h2>");
-		} else if (s.startsWith("#")) {
-		    String s2 = s.substring(1).strip();
-		    sb.append("<h1>").append(s2).append("</h1>");
+		if (block == PARA) {
+		    out.append('\n');
 		} else {
-		    // elide blank lines as they would be a paragraph
-		    if (!s.isBlank()) {
-			sb.append("<p>")
-			    .append(s.replace("<", "&lt;").replace(">", "&gt;"))
-			    .append("</p>\n");
+		    startBlock(PARA, "<p>");
+		}
+		inline(s, start, end);
+	    }
+	}
+
+	/*
+	 * Start a block of the given kind, unless we're already in one.
+	 */
+	private void startBlock(final int kind, final String tag)
+		throws IOException {
+	    if (block != kind) {
+		endBlock();
+		out.append(tag);
+		block = kind;
+	    }
+	}
+
+	/*
+	 * Close the current block, if any.
+	 */
+	void endBlock() throws IOException {
+	    switch (block) {
+	    case PARA:
+		out.append("</p>\n");
+		break;
+	    case LIST:
+		out.append("</ul>\n");
+		break;
+	    case QUOTE:
+		out.append("</blockquote>\n");
+		break;
+	    case CODE:
+		out.append("</pre>\n");
+		break;
+	    default:
+		break;
+	    }
+	    block = NONE;
+	}
+
+	/*
+	 * Write text, converting inline links and code spans. Image
+	 * references are shown as links.
+	 */
+	private void inline(final CharSequence s, final int from,
+			    final int to) throws IOException {
+	    int start = from;
+	    int i = from;
+	    while (i < to) {
+		char c = s.charAt(i);
+		if (c == '`') {
+		    int close = indexOf(s, '`', i + 1, to);
+		    if (close > 0) {
+			escape(s, start, i, out);
+			out.append("<code>");
+			escape(s, i + 1, close, out);
+			out.append("</code>");
+			i = close + 1;
+			start = i;
+			continue;
+		    }
+		} else if (c == '[') {
+		    int tclose = indexOf(s, ']', i + 1, to);
+		    if (tclose > 0 && tclose + 1 < to
+			    && s.charAt(tclose + 1) == '(') {
+			int uclose = indexOf(s, ')', tclose + 2, to);
+			if (uclose > 0) {
+			    int tstart = i > start && s.charAt(i - 1) == '!'
+				? i - 1 : i;
+			    escape(s, start, tstart, out);
+			    int ustart = skipSpace(s, tclose + 2, uclose);
+			    int uend = ustart;
+			    while (uend < uclose
+				   && !Character.isWhitespace(s.charAt(uend))) {
+				uend++;
+			    }
+			    out.append("<a href=\"");
+			    escape(s, ustart, uend, out);
+			    out.append("\">");
+			    if (tclose > i + 1) {
+				escape(s, i + 1, tclose, out);
+			    } else {
+				escape(s, ustart, uend, out);
+			    }
+			    out.append("</a>");
+			    i = uclose + 1;
+			    start = i;
+			    continue;
+			}
 		    }
 		}
+		i++;
 	    }
+	    escape(s, start, to, out);
 	}
-	sb.append("</body></html>\n");
-	return sb.toString();
+
+	/*
+	 * The index of the first c in the range, or -1.
+	 */
+	private static int indexOf(final CharSequence s, final char c,
+				   final int from, final int to) {
+	    for (int i = from; i < to; i++) {
+		if (s.charAt(i) == c) {
+		    return i;
+		}
+	    }
+	    return -1;
+	}
+    }
+
+    /*
+     * Convert a single line of text/gemini, held in the given range of
+     * the input, to html. The toggle indicates whether we are inside a
+     * preformatted block, and the updated value is returned.
+     */
+    private static boolean convertLine(final CharSequence s, final int from,
+				       final int to, final boolean toggle,
+				       final boolean images,
+				       final Appendable out)
+		throws IOException {
+	// ignore the <CR> of a <CR><LF> line ending
+	int end = (to > from && s.charAt(to - 1) == '\r') ? to - 1 : to;
+	if (toggle) {
+	    // preformatted, as-is unless the preformatted block terminates
+	    if (startsWith(s, from, end, "```")) {
+		out.append("</pre>\n");
+		return false;
+	    }
+	    escape(s, from, end, out);
+	    out.append('\n');
+	    return true;
+	}
+	// not in a preformatted block
+	if (startsWith(s, from, end, "=>")) {
+	    int ustart = skipSpace(s, from + 2, end);
+	    int uend = ustart;
+	    while (uend < end && !Character.isWhitespace(s.charAt(uend))) {
+		uend++;
+	    }
+	    if (uend > ustart) {
+		int tstart = skipSpace(s, uend, end);
+		int tend = trimSpace(s, tstart, end);
+		out.append("<p><a href=\"");
+		escape(s, ustart, uend, out);
+		out.append("\">");
+		if (tend > tstart) {
+		    escape(s, tstart, tend, out);
+		} else {
+		    escape(s, ustart, uend, out);
+		}
+		out.append("</a>");
+		if (images && isImage(s, ustart, uend)) {
+		    out.append("<br><img src=\"");
+		    escape(s, ustart, uend, out);
+		    out.append("\" alt=\"");
+		    escape(s, tend > tstart ? tstart : ustart,
+			   tend > tstart ? tend : uend, out);
+		    out.append("\">");
+		}
+		out.append("</p>\n");
+	    }
+	} else if (startsWith(s, from, end, "```")) {
+	    out.append("<pre>\n");
+	    return true;
+	} else if (startsWith(s, from, end, "###")) {
+	    heading(s, from + 3, end, "h3", out);
+	} else if (startsWith(s, from, end, "##")) {
+	    heading(s, from + 2, end, "h2", out);
+	} else if (startsWith(s, from, end, "#")) {
+	    heading(s, from + 1, end, "h1", out);
+	} else {
+	    // elide blank lines as they would be a paragraph
+	    int tstart = skipSpace(s, from, end);
+	    if (tstart < end) {
+		out.append("<p>");
+		escape(s, from, end, out);
+		out.append("</p>\n");
+	    }
+	}
+	return false;
+    }
+
+    /*
+     * Write a heading with the given tag, stripping surrounding space.
+     */
+    private static void heading(final CharSequence s, final int from,
+				final int to, final String tag,
+				final Appendable out) throws IOException {
+	int tstart = skipSpace(s, from, to);
+	int tend = trimSpace(s, tstart, to);
+	out.append('<').append(tag).append('>');
+	escape(s, tstart, tend, out);
+	out.append("</").append(tag).append(">\n");
+    }
+
+    /*
+     * Does the link in the given range of s look like an image? Any
+     * query string is ignored.
+     */
+    private static boolean isImage(final CharSequence s, final int from,
+				   final int to) {
+	int end = from;
+	while (end < to && s.charAt(end) != '?' && s.charAt(end) != '#') {
+	    end++;
+	}
+	for (String suffix : IMAGE_SUFFIXES) {
+	    int slen = suffix.length();
+	    if (end - from > slen) {
+		boolean match = true;
+		for (int i = 0; i < slen && match; i++) {
+		    match = Character.toLowerCase(s.charAt(end - slen + i))
+			== suffix.charAt(i);
+		}
+		if (match) {
+		    return true;
+		}
+	    }
+	}
+	return false;
+    }
+
+    /*
+     * Does the given range of s start with the prefix?
+     */
+    private static boolean startsWith(final CharSequence s, final int from,
+				      final int to, final String prefix) {
+	int plen = prefix.length();
+	if (to - from < plen) {
+	    return false;
+	}
+	for (int i = 0; i < plen; i++) {
+	    if (s.charAt(from + i) != prefix.charAt(i)) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /*
+     * Return the index of the first non-whitespace character in the range,
+     * or the end of the range if there isn't one.
+     */
+    private static int skipSpace(final CharSequence s, final int from,
+				 final int to) {
+	int i = from;
+	while (i < to && Character.isWhitespace(s.charAt(i))) {
+	    i++;
+	}
+	return i;
+    }
+
+    /*
+     * Return the end of the range with any trailing whitespace removed.
+     */
+    private static int trimSpace(final CharSequence s, final int from,
+				 final int to) {
+	int i = to;
+	while (i > from && Character.isWhitespace(s.charAt(i - 1))) {
+	    i--;
+	}
+	return i;
+    }
+
+    /*
+     * Write the given range of s, escaping the characters that are
+     * significant in html text and attribute values.
+     */
+    private static void escape(final CharSequence s, final int from,
+			       final int to, final Appendable out)
+		throws IOException {
+	int start = from;
+	for (int i = from; i < to; i++) {
+	    String rep;
+	    switch (s.charAt(i)) {
+	    case '<':
+		rep = "&lt;";
+		break;
+	    case '>':
+		rep = "&gt;";
+		break;
+	    case '&':
+		rep = "&amp;";
+		break;
+	    case '"':
+		rep = "&quot;";
+		break;
+	    default:
+		continue;
+	    }
+	    out.append(s, start, i).append(rep);
+	    start = i + 1;
+	}
+	out.append(s, start, to);
     }
 }
@@ -0,0 +1,197 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.gui;
+
+import java.awt.Color;
+import java.awt.Container;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.image.BufferedImage;
+import java.util.function.UnaryOperator;
+import javax.swing.SwingUtilities;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.Position;
+import javax.swing.text.View;
+import javax.swing.text.html.HTML;
+
+/**
+ * A View that displays an image fetched by a GeminiImageCache. Until the
+ * image arrives a placeholder showing the alternate text is displayed,
+ * and the view is resized once the image is available.
+ */
+public final class InlineImageView extends View {
+
+    /**
+     * The height of the placeholder.
+     */
+    private static final int PLACEHOLDER_HEIGHT = 24;
+    /**
+     * The width used if the container hasn't been laid out yet.
+     */
+    private static final int DEFAULT_WIDTH = 640;
+    /**
+     * The space left either side of an image.
+     */
+    private static final int MARGIN = 48;
+
+    /**
+     * The image cache that loads the image.
+     */
+    private final GeminiImageCache imageCache;
+    /**
+     * Resolves the src attribute to a full url.
+     */
+    private final UnaryOperator<String> resolver;
+    /**
+     * The text shown until the image has loaded.
+     */
+    private final String alt;
+    /**
+     * The image, once loaded.
+     */
+    private BufferedImage image;
+    /**
+     * Whether the image has been requested.
+     */
+    private boolean requested;
+
+    /**
+     * Create a view for an img element.
+     *
+     * @param elem the element to display
+     * @param imageCache the cache that loads images
+     * @param resolver converts the src attribute into a full url, or
+     * returns null if the image mustn't be loaded
+     */
+    public InlineImageView(final Element elem,
+			   final GeminiImageCache imageCache,
+			   final UnaryOperator<String> resolver) {
+	super(elem);
+	this.imageCache = imageCache;
+	this.resolver = resolver;
+	Object o = elem.getAttributes().getAttribute(HTML.Attribute.ALT);
+	alt = o == null ? "[image]" : "[" + o + "]";
+    }
+
+    /*
+     * Once we have a container we know how much space there is, so start
+     * loading the image.
+     */
+    @Override
+    public void setParent(final View parent) {
+	super.setParent(parent);
+	Container c = getContainer();
+	if (parent == null || c == null || requested) {
+	    return;
+	}
+	requested = true;
+	Object src = getElement().getAttributes()
+	    .getAttribute(HTML.Attribute.SRC);
+	if (src == null) {
+	    return;
+	}
+	int cwidth = c.getWidth() > MARGIN ? c.getWidth() : DEFAULT_WIDTH;
+	int width = GeminiImageCache.targetWidth(cwidth - MARGIN);
+	String url = resolver.apply(src.toString());
+	if (url == null) {
+	    return;
+	}
+	image = imageCache.get(url, width);
+	if (image == null) {
+	    imageCache.load(url, width).thenAccept(img ->
+		SwingUtilities.invokeLater(() -> imageLoaded(img)));
+	}
+    }
+
+    /*
+     * Called on the event thread when the image has been loaded.
+     */
+    private void imageLoaded(final BufferedImage img) {
+	image = img;
+	Document doc = getDocument();
+	if (getParent() == null || doc == null) {
+	    return;
+	}
+	if (doc instanceof AbstractDocument) {
+	    ((AbstractDocument) doc).readLock();
+	}
+	try {
+	    preferenceChanged(null, true, true);
+	} finally {
+	    if (doc instanceof AbstractDocument) {
+		((AbstractDocument) doc).readUnlock();
+	    }
+	}
+	Container c = getContainer();
+	if (c != null) {
+	    c.repaint();
+	}
+    }
+
+    @Override
+    public float getPreferredSpan(final int axis) {
+	if (image != null) {
+	    return axis == View.X_AXIS ? image.getWidth() : image.getHeight();
+	}
+	if (axis == View.Y_AXIS) {
+	    return PLACEHOLDER_HEIGHT;
+	}
+	Container c = getContainer();
+	if (c != null) {
+	    return c.getFontMetrics(c.getFont()).stringWidth(alt) + 8;
+	}
+	return PLACEHOLDER_HEIGHT;
+    }
+
+    @Override
+    public void paint(final Graphics g, final Shape allocation) {
+	Rectangle r = allocation instanceof Rectangle
+	    ? (Rectangle) allocation : allocation.getBounds();
+	if (image != null) {
+	    g.drawImage(image, r.x, r.y, null);
+	} else {
+	    g.setColor(Color.LIGHT_GRAY);
+	    g.drawRect(r.x, r.y, r.width - 1, r.height - 1);
+	    g.setColor(Color.GRAY);
+	    FontMetrics fm = g.getFontMetrics();
+	    g.drawString(alt, r.x + 4,
+			 r.y + (r.height + fm.getAscent()) / 2 - 2);
+	}
+    }
+
+    @Override
+    public Shape modelToView(final int pos, final Shape a,
+			     final Position.Bias b) {
+	Rectangle r = a.getBounds();
+	if (pos > getStartOffset()) {
+	    r.x += r.width;
+	}
+	r.width = 0;
+	return r;
+    }
+
+    @Override
+    public int viewToModel(final float x, final float y, final Shape a,
+			   final Position.Bias[] bias) {
+	Rectangle r = a.getBounds();
+	bias[0] = Position.Bias.Forward;
+	return x < r.x + r.width / 2f ? getStartOffset() : getEndOffset();
+    }
+}
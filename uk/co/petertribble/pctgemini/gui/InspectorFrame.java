@@ -0,0 +1,362 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.gui;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Graphics;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.JButton;
+import javax.swing.JComponent;
+import javax.swing.JFileChooser;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.Timer;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.TableCellRenderer;
+import uk.co.petertribble.pctgemini.network.GeminiInspector;
+import uk.co.petertribble.pctgemini.network.GeminiRequestRecord;
+
+/**
+ * A window listing recent requests, with their outcome and a timeline
+ * showing how long each phase of each request took. Requests are only
+ * recorded while the window is open.
+ */
+public final class InspectorFrame extends JFrame implements ActionListener {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * How often new records are collected, in milliseconds.
+     */
+    private static final int POLL_INTERVAL = 500;
+
+    /**
+     * The most requests shown.
+     */
+    private static final int MAX_ROWS = 5000;
+
+    /**
+     * The colours of the phases of a request in the timeline: name
+     * lookup, connect, TLS handshake, waiting for the first byte, and
+     * transfer.
+     */
+    private static final Color[] PHASE_COLORS = {
+	new Color(0, 150, 136), new Color(255, 152, 0),
+	new Color(156, 39, 176), new Color(76, 175, 80),
+	new Color(33, 150, 243)};
+
+    /**
+     * The column names.
+     */
+    private static final String[] COLUMNS = {
+	"Start", "URL", "Status", "Meta", "Bytes", "Cache", "Time (ms)",
+	"Timeline"};
+
+    /**
+     * The requests shown.
+     */
+    private final RecordModel model = new RecordModel();
+    /**
+     * Collects new records.
+     */
+    private final Timer timer;
+    /**
+     * A button to clear the list.
+     */
+    private final JButton clearButton;
+    /**
+     * A button to export the list.
+     */
+    private final JButton exportButton;
+    /**
+     * Shows the number of requests.
+     */
+    private final JLabel countLabel;
+    /**
+     * The sequence number of the next record to collect.
+     */
+    private long nextSeq;
+
+    /**
+     * Create and show a network inspector, and start recording requests.
+     */
+    public InspectorFrame() {
+	super("Network Inspector");
+	setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+	addWindowListener(new WindowAdapter() {
+		@Override
+		public void windowClosed(final WindowEvent we) {
+		    timer.stop();
+		    GeminiInspector.setEnabled(false);
+		}
+	    });
+
+	JTable table = new JTable(model);
+	table.getColumnModel().getColumn(1).setPreferredWidth(260);
+	table.getColumnModel().getColumn(7).setPreferredWidth(240);
+	table.getColumnModel().getColumn(7)
+	    .setCellRenderer(new TimelineRenderer());
+
+	clearButton = new JButton("Clear");
+	clearButton.addActionListener(this);
+	exportButton = new JButton("Export...");
+	exportButton.addActionListener(this);
+	countLabel = new JLabel();
+	JPanel bpanel = new JPanel();
+	bpanel.add(clearButton);
+	bpanel.add(exportButton);
+	bpanel.add(countLabel);
+	bpanel.add(new JLabel("<html><font color=#009688>DNS</font> "
+		+ "<font color=#ff9800>Connect</font> "
+		+ "<font color=#9c27b0>TLS</font> "
+		+ "<font color=#4caf50>Wait</font> "
+		+ "<font color=#2196f3>Transfer</font></html>"));
+
+	setLayout(new BorderLayout());
+	add(new JScrollPane(table), BorderLayout.CENTER);
+	add(bpanel, BorderLayout.PAGE_END);
+
+	GeminiInspector.setEnabled(true);
+	nextSeq = GeminiInspector.count();
+	timer = new Timer(POLL_INTERVAL, this);
+	timer.start();
+	updateCount();
+
+	setSize(900, 480);
+	setVisible(true);
+    }
+
+    /*
+     * Collect any new records.
+     */
+    private void poll() {
+	List<GeminiRequestRecord> recs = GeminiInspector.since(nextSeq);
+	if (!recs.isEmpty()) {
+	    nextSeq = recs.get(recs.size() - 1).getSeq() + 1;
+	    model.add(recs);
+	    updateCount();
+	}
+    }
+
+    private void updateCount() {
+	countLabel.setText(model.getRowCount() + " requests");
+    }
+
+    /*
+     * Write the list of requests to a tab-separated file.
+     */
+    private void export() {
+	JFileChooser fc = new JFileChooser();
+	fc.setSelectedFile(new File("pctgemini-requests.tsv"));
+	if (fc.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+	    return;
+	}
+	try (PrintWriter pw = new PrintWriter(fc.getSelectedFile(),
+					      StandardCharsets.UTF_8)) {
+	    pw.println("start\turl\tstatus\tmeta\tbytes\tcache\tdns\tconnect"
+		       + "\ttls\tfirstbyte\ttransfer\ttotal\terror");
+	    for (GeminiRequestRecord r : model.records) {
+		pw.println(Instant.ofEpochMilli(r.getStartTime()) + "\t"
+			   + r.getUrl() + "\t" + r.getStatus() + "\t"
+			   + r.getMeta() + "\t" + r.getBytes() + "\t"
+			   + (r.isCacheHit() ? "hit" : "miss") + "\t"
+			   + millis(r.getDns()) + "\t"
+			   + millis(r.getConnect()) + "\t"
+			   + millis(r.getTls()) + "\t"
+			   + millis(r.getFirstByte()) + "\t"
+			   + millis(r.getTransfer()) + "\t"
+			   + millis(r.getTotal()) + "\t"
+			   + (r.getError() == null ? "" : r.getError()));
+	    }
+	} catch (IOException ioe) {
+	    JOptionPane.showMessageDialog(this, ioe.getMessage(),
+			"Export failed", JOptionPane.ERROR_MESSAGE);
+	}
+    }
+
+    /*
+     * Format a time in nanoseconds as milliseconds, or blank if the
+     * phase didn't happen.
+     */
+    private static String millis(final long nanos) {
+	return nanos < 0 ? "" : String.format("%.3f", nanos / 1.0e6);
+    }
+
+    @Override
+    public void actionPerformed(final ActionEvent e) {
+	if (timer.equals(e.getSource())) {
+	    poll();
+	}
+	if (clearButton.equals(e.getSource())) {
+	    model.clear();
+	    updateCount();
+	}
+	if (exportButton.equals(e.getSource())) {
+	    export();
+	}
+    }
+
+    /*
+     * The table of requests. Also tracks the overall time span, so the
+     * timeline can be drawn to scale.
+     */
+    final class RecordModel extends AbstractTableModel {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient List<GeminiRequestRecord> records =
+	    new ArrayList<>();
+	private long first = Long.MAX_VALUE;
+	private long last;
+
+	void add(final List<GeminiRequestRecord> recs) {
+	    int n = records.size();
+	    records.addAll(recs);
+	    for (GeminiRequestRecord r : recs) {
+		first = Math.min(first, r.getStartTime());
+		last = Math.max(last, r.getStartTime()
+				+ r.getTotal() / 1000000);
+	    }
+	    if (records.size() > MAX_ROWS) {
+		records.subList(0, records.size() - MAX_ROWS).clear();
+		fireTableDataChanged();
+	    } else {
+		fireTableRowsInserted(n, records.size() - 1);
+	    }
+	}
+
+	void clear() {
+	    records.clear();
+	    first = Long.MAX_VALUE;
+	    last = 0;
+	    fireTableDataChanged();
+	}
+
+	@Override
+	public int getRowCount() {
+	    return records.size();
+	}
+
+	@Override
+	public int getColumnCount() {
+	    return COLUMNS.length;
+	}
+
+	@Override
+	public String getColumnName(final int col) {
+	    return COLUMNS[col];
+	}
+
+	@Override
+	public Class<?> getColumnClass(final int col) {
+	    return col == 7 ? GeminiRequestRecord.class : Object.class;
+	}
+
+	@Override
+	public Object getValueAt(final int row, final int col) {
+	    GeminiRequestRecord r = records.get(row);
+	    switch (col) {
+	    case 0:
+		return String.format("%tT", r.getStartTime());
+	    case 1:
+		return r.getUrl();
+	    case 2:
+		return r.getError() == null ? r.getStatus() : "failed";
+	    case 3:
+		return r.getError() == null ? r.getMeta() : r.getError();
+	    case 4:
+		return r.getBytes();
+	    case 5:
+		return r.isCacheHit() ? "hit" : "miss";
+	    case 6:
+		return millis(r.getTotal());
+	    default:
+		return r;
+	    }
+	}
+    }
+
+    /*
+     * Draws the phases of a request as a bar, positioned on a timeline
+     * covering all the requests shown.
+     */
+    final class TimelineRenderer extends JComponent
+	    implements TableCellRenderer {
+
+	private static final long serialVersionUID = 1L;
+
+	private transient GeminiRequestRecord rec;
+
+	@Override
+	public Component getTableCellRendererComponent(final JTable table,
+			final Object value, final boolean isSelected,
+			final boolean hasFocus, final int row, final int col) {
+	    rec = (GeminiRequestRecord) value;
+	    return this;
+	}
+
+	@Override
+	protected void paintComponent(final Graphics g) {
+	    if (rec == null) {
+		return;
+	    }
+	    int w = getWidth() - 2;
+	    double span = Math.max(1, model.last - model.first) * 1.0e6;
+	    double x = (rec.getStartTime() - model.first) * 1.0e6 / span * w;
+	    int h = getHeight();
+	    if (rec.isCacheHit()) {
+		g.setColor(Color.GRAY);
+		g.fillRect((int) x, h / 3, 2, h / 3);
+		return;
+	    }
+	    long[] phases = {rec.getDns(), rec.getConnect(), rec.getTls(),
+			     rec.getFirstByte(), rec.getTransfer()};
+	    boolean drawn = false;
+	    for (int i = 0; i < phases.length; i++) {
+		if (phases[i] > 0) {
+		    double pw = phases[i] / span * w;
+		    g.setColor(PHASE_COLORS[i]);
+		    g.fillRect((int) x, 2, Math.max(1, (int) pw), h - 4);
+		    x += pw;
+		    drawn = true;
+		}
+	    }
+	    if (!drawn) {
+		// no phase times, for example through a proxy
+		g.setColor(Color.DARK_GRAY);
+		g.fillRect((int) x, 2,
+			   Math.max(1, (int) (rec.getTotal() / span * w)),
+			   h - 4);
+	    }
+	}
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.gui;
+
+import java.awt.BorderLayout;
+import java.awt.Font;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.DefaultListModel;
+import javax.swing.JButton;
+import javax.swing.JFileChooser;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JSplitPane;
+import javax.swing.JTable;
+import javax.swing.JTextArea;
+import javax.swing.ListSelectionModel;
+import javax.swing.Timer;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * A window showing how responsive the user interface has been: a
+ * histogram of the time taken to dispatch events, and the events that
+ * stalled the event thread, with the stack captured during each stall.
+ */
+public final class ResponsivenessFrame extends JFrame
+    implements ActionListener, ListSelectionListener {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * How often the display is updated, in milliseconds.
+     */
+    private static final int POLL_INTERVAL = 1000;
+
+    /**
+     * The column names.
+     */
+    private static final String[] COLUMNS = {"Dispatch time", "Events", "%"};
+
+    /**
+     * The monitor being displayed.
+     */
+    private final transient GeminiEventMonitor monitor;
+    /**
+     * The histogram.
+     */
+    private final HistogramModel model = new HistogramModel();
+    /**
+     * The stalls, as listed.
+     */
+    private final DefaultListModel<String> stallModel =
+	new DefaultListModel<>();
+    /**
+     * Lists the stalls.
+     */
+    private final JList<String> stallList = new JList<>(stallModel);
+    /**
+     * The stalls shown.
+     */
+    private transient List<GeminiEventMonitor.Stall> stalls =
+	new ArrayList<>();
+    /**
+     * Shows the stack of the selected stall.
+     */
+    private final JTextArea stackArea = new JTextArea();
+    /**
+     * Shows the summary.
+     */
+    private final JLabel summaryLabel = new JLabel();
+    /**
+     * Updates the display.
+     */
+    private final Timer timer;
+    /**
+     * A button to reset the counts.
+     */
+    private final JButton resetButton;
+    /**
+     * A button to save a report.
+     */
+    private final JButton saveButton;
+
+    /**
+     * Create and show a window displaying the given monitor.
+     *
+     * @param monitor the monitor to display
+     */
+    public ResponsivenessFrame(final GeminiEventMonitor monitor) {
+	super("UI Responsiveness");
+	this.monitor = monitor;
+	setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+	addWindowListener(new WindowAdapter() {
+		@Override
+		public void windowClosed(final WindowEvent we) {
+		    timer.stop();
+		}
+	    });
+
+	stallList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+	stallList.addListSelectionListener(this);
+	stackArea.setEditable(false);
+	stackArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+
+	JSplitPane stallPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT,
+					new JScrollPane(stallList),
+					new JScrollPane(stackArea));
+	stallPane.setDividerLocation(120);
+	JSplitPane split = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT,
+					new JScrollPane(new JTable(model)),
+					stallPane);
+	split.setDividerLocation(280);
+
+	resetButton = new JButton("Reset");
+	resetButton.addActionListener(this);
+	saveButton = new JButton("Save Report...");
+	saveButton.addActionListener(this);
+	JPanel bpanel = new JPanel();
+	bpanel.add(resetButton);
+	bpanel.add(saveButton);
+	bpanel.add(summaryLabel);
+
+	setLayout(new BorderLayout());
+	add(split, BorderLayout.CENTER);
+	add(bpanel, BorderLayout.PAGE_END);
+
+	timer = new Timer(POLL_INTERVAL, this);
+	timer.start();
+	update();
+
+	setSize(900, 480);
+	setVisible(true);
+    }
+
+    /*
+     * Show the latest figures.
+     */
+    private void update() {
+	model.setCounts(monitor.getCounts());
+	long n = model.events;
+	summaryLabel.setText(String.format(
+		"%d events, mean %.2f ms, max %.1f ms, stall threshold %d ms",
+		n, n == 0 ? 0.0 : monitor.getTotal() / 1.0e6 / n,
+		monitor.getMax() / 1.0e6, monitor.getThreshold()));
+	List<GeminiEventMonitor.Stall> latest = monitor.getStalls();
+	// a stall's duration is filled in when it ends, so redo the list
+	if (!latest.equals(stalls) || stalls.stream()
+		.anyMatch(s -> s.getDuration() < 0)) {
+	    int sel = stallList.getSelectedIndex();
+	    stalls = latest;
+	    stallModel.clear();
+	    for (GeminiEventMonitor.Stall s : stalls) {
+		stallModel.addElement(String.format("%tT %s %s",
+			s.getTime(), s.getDuration() < 0 ? "running"
+			: String.format("%.0f ms", s.getDuration() / 1.0e6),
+			s.getEvent()));
+	    }
+	    if (sel >= 0 && sel < stallModel.size()) {
+		stallList.setSelectedIndex(sel);
+	    }
+	}
+    }
+
+    /*
+     * Save a report to a file.
+     */
+    private void save() {
+	JFileChooser fc = new JFileChooser();
+	fc.setSelectedFile(new File("pctgemini-responsiveness.txt"));
+	if (fc.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+	    return;
+	}
+	try {
+	    monitor.writeDump(fc.getSelectedFile());
+	} catch (IOException ioe) {
+	    JOptionPane.showMessageDialog(this, ioe.getMessage(),
+			"Save failed", JOptionPane.ERROR_MESSAGE);
+	}
+    }
+
+    @Override
+    public void valueChanged(final ListSelectionEvent lse) {
+	int i = stallList.getSelectedIndex();
+	if (i < 0 || i >= stalls.size()) {
+	    stackArea.setText("");
+	    return;
+	}
+	StringBuilder sb = new StringBuilder();
+	for (StackTraceElement ste : stalls.get(i).getStack()) {
+	    sb.append(ste).append('\n');
+	}
+	stackArea.setText(sb.toString());
+	stackArea.setCaretPosition(0);
+    }
+
+    @Override
+    public void actionPerformed(final ActionEvent e) {
+	if (timer.equals(e.getSource())) {
+	    update();
+	}
+	if (resetButton.equals(e.getSource())) {
+	    monitor.reset();
+	    update();
+	}
+	if (saveButton.equals(e.getSource())) {
+	    save();
+	}
+    }
+
+    /*
+     * The histogram of dispatch times.
+     */
+    static final class HistogramModel extends AbstractTableModel {
+
+	private static final long serialVersionUID = 1L;
+
+	private long[] counts = new long[GeminiEventMonitor.BUCKETS];
+	private long events;
+
+	void setCounts(final long[] c) {
+	    counts = c;
+	    events = 0;
+	    for (long l : c) {
+		events += l;
+	    }
+	    fireTableRowsUpdated(0, counts.length - 1);
+	}
+
+	@Override
+	public int getRowCount() {
+	    return counts.length;
+	}
+
+	@Override
+	public int getColumnCount() {
+	    return COLUMNS.length;
+	}
+
+	@Override
+	public String getColumnName(final int col) {
+	    return COLUMNS[col];
+	}
+
+	@Override
+	public Object getValueAt(final int row, final int col) {
+	    switch (col) {
+	    case 0:
+		return GeminiEventMonitor.bucketName(row);
+	    case 1:
+		return counts[row];
+	    default:
+		return events == 0 ? ""
+		    : String.format("%.2f", 100.0 * counts[row] / events);
+	    }
+	}
+    }
+}
@@ -17,22 +17,76 @@ package uk.co.petertribble.pctgemini.gui;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
+import javax.swing.JTabbedPane;
+import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
+import uk.co.petertribble.pctgemini.network.GeminiClient;
+import uk.co.petertribble.pctgemini.network.GeminiConfig;
+import uk.co.petertribble.pctgemini.network.GeminiFeedManager;
+import uk.co.petertribble.pctgemini.network.GeminiHistory;
 
 /**
  * A Simplistic frame to access a Gemini server.
  */
 
-public final class SimpleGeminiFrame extends JFrame implements ActionListener {
+public final class SimpleGeminiFrame extends JFrame
+    implements ActionListener, PropertyChangeListener, MenuListener {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * The page shown if no other is requested, and in new tabs.
+     */
+    private static final String HOME_PAGE = "gemini://geminiquickst.art/";
+
+    /**
+     * The maximum length of the title shown on a tab.
+     */
+    private static final int MAX_TAB_TITLE = 24;
+
+    /**
+     * The maximum length of a bookmark shown in the menu.
+     */
+    private static final int MAX_MENU_TITLE = 60;
+
+    /**
+     * How often the session is saved, in milliseconds.
+     */
+    private static final int SESSION_INTERVAL = 60000;
+
+    /**
+     * A menu item for a new tab.
+     */
+    private final JMenuItem newTabItem;
+    /**
+     * A menu item to close the current tab.
+     */
+    private final JMenuItem closeTabItem;
+    /**
+     * A menu item to type a url.
+     */
+    private final JMenuItem openLocationItem;
     /**
      * A menu item for Exit.
      */
@@ -42,22 +96,118 @@ public final class SimpleGeminiFrame extends JFrame implements ActionListener {
      */
     private final JMenuItem viewSourceItem;
     /**
-     * The panel being displayed.
+     * A menu item to toggle inline images.
+     */
+    private final JCheckBoxMenuItem imagesItem;
+    /**
+     * A menu item to show the network inspector.
+     */
+    private final JMenuItem inspectorItem;
+    /**
+     * A menu item to show the UI responsiveness window.
+     */
+    private final JMenuItem responsivenessItem;
+    /**
+     * A menu item to subscribe to the current page.
+     */
+    private final JMenuItem subscribeItem;
+    /**
+     * A menu item to show the feeds window.
+     */
+    private final JMenuItem showFeedsItem;
+    /**
+     * The bookmarks menu, filled in when it's shown.
+     */
+    private final JMenu bookmarksMenu;
+    /**
+     * A menu item to bookmark the current page.
+     */
+    private final JMenuItem addBookmarkItem;
+    /**
+     * A menu item to remove the bookmark for the current page.
+     */
+    private final JMenuItem removeBookmarkItem;
+    /**
+     * The pages visited and the bookmarks.
+     */
+    private final transient GeminiHistory history;
+    /**
+     * The tabs, each holding a GeminiPanel.
+     */
+    private final JTabbedPane tabs;
+    /**
+     * The client shared by all the tabs, so they share one cache.
+     */
+    private final transient GeminiClient client;
+    /**
+     * The inline image cache shared by all the tabs.
+     */
+    private final transient GeminiImageCache imageCache;
+    /**
+     * The feed subscriptions, created when first needed.
+     */
+    private transient GeminiFeedManager feedManager;
+    /**
+     * The network inspector, if it has been opened.
      */
-    private final GeminiPanel gpanel;
+    private InspectorFrame inspector;
+    /**
+     * The UI responsiveness window, if it has been opened.
+     */
+    private ResponsivenessFrame responsiveness;
+    /**
+     * A Timer to save the session periodically.
+     */
+    private final Timer sessionTimer;
+    /**
+     * Writes the session in the background.
+     */
+    private final transient ExecutorService sessionWriter =
+	Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "session-writer");
+		t.setDaemon(true);
+		return t;
+	    });
 
     /**
      * Create a new SimpleGeminiFrame, which is simply a wrapper around
-     * a GeminiPanel that displays the content.
+     * a set of tabs, each holding a GeminiPanel that displays the content.
      *
      * @param url the initial url to be displayed
      */
     public SimpleGeminiFrame(final String url) {
+	this(url, null);
+    }
+
+    /**
+     * Create a new SimpleGeminiFrame, restoring the tabs from a saved
+     * session if one is supplied.
+     *
+     * @param url the initial url to be displayed if there's no session
+     * @param session a saved session to restore, or null
+     */
+    public SimpleGeminiFrame(final String url, final GeminiSession session) {
 	super("Gemini");
 	addWindowListener(new WindowExit());
 
 	JMenu jmf = new JMenu("File");
 	jmf.setMnemonic(KeyEvent.VK_F);
+	newTabItem = new JMenuItem("New Tab", KeyEvent.VK_T);
+	newTabItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_T,
+					InputEvent.CTRL_DOWN_MASK));
+	newTabItem.addActionListener(this);
+	jmf.add(newTabItem);
+	closeTabItem = new JMenuItem("Close Tab", KeyEvent.VK_C);
+	closeTabItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_W,
+					InputEvent.CTRL_DOWN_MASK));
+	closeTabItem.addActionListener(this);
+	jmf.add(closeTabItem);
+	openLocationItem = new JMenuItem("Open Location", KeyEvent.VK_L);
+	openLocationItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_L,
+					InputEvent.CTRL_DOWN_MASK));
+	openLocationItem.addActionListener(this);
+	jmf.add(openLocationItem);
+	jmf.addSeparator();
 	viewSourceItem = new JMenuItem("View Source", KeyEvent.VK_U);
 	viewSourceItem.addActionListener(this);
 	jmf.add(viewSourceItem);
@@ -66,23 +216,268 @@ public final class SimpleGeminiFrame extends JFrame implements ActionListener {
 	exitItem.addActionListener(this);
 	jmf.add(exitItem);
 
+	JMenu jmv = new JMenu("View");
+	jmv.setMnemonic(KeyEvent.VK_V);
+	imagesItem = new JCheckBoxMenuItem("Show Images Inline");
+	imagesItem.setMnemonic(KeyEvent.VK_I);
+	imagesItem.addActionListener(this);
+	jmv.add(imagesItem);
+	jmv.addSeparator();
+	inspectorItem = new JMenuItem("Network Inspector", KeyEvent.VK_N);
+	inspectorItem.addActionListener(this);
+	jmv.add(inspectorItem);
+	responsivenessItem = new JMenuItem("UI Responsiveness", KeyEvent.VK_R);
+	responsivenessItem.addActionListener(this);
+	responsivenessItem.setEnabled(GeminiEventMonitor.getMonitor() != null);
+	jmv.add(responsivenessItem);
+
+	JMenu jmfeed = new JMenu("Feeds");
+	jmfeed.setMnemonic(KeyEvent.VK_E);
+	subscribeItem = new JMenuItem("Subscribe to Page", KeyEvent.VK_S);
+	subscribeItem.addActionListener(this);
+	jmfeed.add(subscribeItem);
+	showFeedsItem = new JMenuItem("Show Feeds", KeyEvent.VK_F);
+	showFeedsItem.addActionListener(this);
+	jmfeed.add(showFeedsItem);
+
+	bookmarksMenu = new JMenu("Bookmarks");
+	bookmarksMenu.setMnemonic(KeyEvent.VK_B);
+	bookmarksMenu.addMenuListener(this);
+	addBookmarkItem = new JMenuItem("Bookmark Page", KeyEvent.VK_B);
+	addBookmarkItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_D,
+					InputEvent.CTRL_DOWN_MASK));
+	addBookmarkItem.addActionListener(this);
+	removeBookmarkItem = new JMenuItem("Remove Bookmark", KeyEvent.VK_R);
+	removeBookmarkItem.addActionListener(this);
+	bookmarksMenu.add(addBookmarkItem);
+	bookmarksMenu.add(removeBookmarkItem);
+
 	JMenuBar jm = new JMenuBar();
 	jm.add(jmf);
+	jm.add(jmv);
+	jm.add(bookmarksMenu);
+	jm.add(jmfeed);
 	setJMenuBar(jm);
 
-	gpanel = new GeminiPanel();
-	add(gpanel);
+	history = new GeminiHistory();
+	history.loadAsync();
+
+	// local files are allowed, GeminiPanel checks where they came from
+	client = GeminiClient.builder().localFiles(true).build();
+	imageCache = new GeminiImageCache(client);
+	tabs = new JTabbedPane();
+	tabs.setTabLayoutPolicy(JTabbedPane.SCROLL_TAB_LAYOUT);
+	add(tabs);
+
+	if (session == null || session.getTabs().isEmpty()) {
+	    openTab(url, true);
+	} else {
+	    restoreSession(session);
+	}
+	GeminiStartup.mark("ui built");
 
         setSize(720, 600);
         setVisible(true);
+	GeminiStartup.mark("frame visible");
+
+	sessionTimer = new Timer(SESSION_INTERVAL, this);
+	sessionTimer.start();
+    }
 
+    /**
+     * Open a url in a new tab. The page is loaded in the background.
+     *
+     * @param url the url to be displayed in the new tab
+     * @param select whether the new tab should be brought to the front
+     */
+    public void openTab(final String url, final boolean select) {
+	GeminiPanel gpanel = newPanel();
+	tabs.addTab(tabTitle(url), gpanel);
+	if (select) {
+	    tabs.setSelectedComponent(gpanel);
+	}
 	gpanel.loadPage(url);
     }
 
+    /*
+     * Recreate the tabs from a saved session.
+     */
+    private void restoreSession(final GeminiSession session) {
+	imagesItem.setSelected(session.isShowImages());
+	for (GeminiSession.Tab tab : session.getTabs()) {
+	    GeminiPanel gpanel = newPanel();
+	    List<String> history = tab.getHistory();
+	    String url = history.isEmpty() ? HOME_PAGE
+		: history.get(history.size() - 1);
+	    tabs.addTab(tabTitle(url), gpanel);
+	    tabs.setToolTipTextAt(tabs.getTabCount() - 1, url);
+	    if (history.isEmpty()) {
+		gpanel.loadPage(url);
+	    } else {
+		gpanel.restoreState(tab);
+	    }
+	}
+	int sel = session.getSelected();
+	if (sel >= 0 && sel < tabs.getTabCount()) {
+	    tabs.setSelectedIndex(sel);
+	}
+    }
+
+    /*
+     * Take a snapshot of the session. Must be called on the event thread.
+     */
+    private GeminiSession captureSession() {
+	GeminiSession session = new GeminiSession(tabs.getSelectedIndex(),
+						  imagesItem.isSelected());
+	for (int i = 0; i < tabs.getTabCount(); i++) {
+	    ((GeminiPanel) tabs.getComponentAt(i)).saveState(session);
+	}
+	return session;
+    }
+
+    /*
+     * Write a session to disk.
+     */
+    private static void writeSession(final GeminiSession session) {
+	try {
+	    session.write(sessionFile());
+	} catch (IOException ioe) {
+	    System.err.println("Unable to save session: " + ioe.getMessage());
+	}
+    }
+
+    /*
+     * The file the session is saved in.
+     */
+    private static File sessionFile() {
+	return GeminiConfig.configFile("session");
+    }
+
+    /*
+     * Save the session and exit. The final save goes through the same
+     * writer as the periodic ones, so that it can't overlap with one
+     * still in progress or be replaced by it.
+     */
+    private void exit() {
+	sessionTimer.stop();
+	final GeminiSession session = captureSession();
+	sessionWriter.execute(() -> writeSession(session));
+	sessionWriter.shutdown();
+	try {
+	    sessionWriter.awaitTermination(5, TimeUnit.SECONDS);
+	} catch (InterruptedException ie) {
+	    Thread.currentThread().interrupt();
+	}
+	history.close();
+	System.exit(0);
+    }
+
+    /*
+     * Get the history shared by all the tabs.
+     */
+    GeminiHistory getHistory() {
+	return history;
+    }
+
+    /*
+     * Fill in the bookmarks menu, with the items to add or remove a
+     * bookmark followed by the bookmarks themselves.
+     */
+    private void fillBookmarksMenu() {
+	bookmarksMenu.removeAll();
+	bookmarksMenu.add(addBookmarkItem);
+	bookmarksMenu.add(removeBookmarkItem);
+	Map<String, String> marks = history.getBookmarks();
+	if (!marks.isEmpty()) {
+	    bookmarksMenu.addSeparator();
+	}
+	for (Map.Entry<String, String> me : marks.entrySet()) {
+	    final String burl = me.getKey();
+	    String title = me.getValue();
+	    if (title.length() > MAX_MENU_TITLE) {
+		title = title.substring(0, MAX_MENU_TITLE - 3) + "...";
+	    }
+	    JMenuItem item = new JMenuItem(title);
+	    item.setToolTipText(burl);
+	    item.addActionListener(e -> currentPanel().loadPage(burl));
+	    bookmarksMenu.add(item);
+	}
+    }
+
+    /*
+     * Create a new panel, sharing the client and images with the others.
+     */
+    private GeminiPanel newPanel() {
+	GeminiPanel gpanel = new GeminiPanel(this, client, imageCache);
+	gpanel.setShowImages(imagesItem.isSelected());
+	gpanel.addPropertyChangeListener(GeminiPanel.PAGE_PROPERTY, this);
+	return gpanel;
+    }
+
+    /*
+     * Close the current tab, unless it's the only one.
+     */
+    private void closeTab() {
+	if (tabs.getTabCount() > 1) {
+	    tabs.remove(tabs.getSelectedIndex());
+	}
+    }
+
+    /*
+     * Get the feed manager, creating it and starting hourly polling
+     * the first time.
+     */
+    private GeminiFeedManager getFeedManager() {
+	if (feedManager == null) {
+	    feedManager = new GeminiFeedManager();
+	    feedManager.startPolling(60);
+	}
+	return feedManager;
+    }
+
+    /*
+     * Get the panel in the selected tab.
+     */
+    private GeminiPanel currentPanel() {
+	return (GeminiPanel) tabs.getSelectedComponent();
+    }
+
+    /*
+     * Generate a short title for a tab from its url.
+     */
+    private String tabTitle(final String url) {
+	String s = url.startsWith("gemini://") ? url.substring(9) : url;
+	return s.length() > MAX_TAB_TITLE
+	    ? s.substring(0, MAX_TAB_TITLE - 3) + "..." : s;
+    }
+
+    @Override
+    public void propertyChange(final PropertyChangeEvent pce) {
+	int i = tabs.indexOfComponent((GeminiPanel) pce.getSource());
+	if (i >= 0) {
+	    String url = (String) pce.getNewValue();
+	    tabs.setTitleAt(i, tabTitle(url));
+	    tabs.setToolTipTextAt(i, url);
+	}
+    }
+
+    @Override
+    public void menuSelected(final MenuEvent me) {
+	fillBookmarksMenu();
+    }
+
+    @Override
+    public void menuDeselected(final MenuEvent me) {
+    }
+
+    @Override
+    public void menuCanceled(final MenuEvent me) {
+    }
+
     class WindowExit extends WindowAdapter {
 	@Override
 	public void windowClosing(final WindowEvent we) {
-	    System.exit(0);
+	    exit();
 	}
     }
 
@@ -91,30 +486,100 @@ public final class SimpleGeminiFrame extends JFrame implements ActionListener {
      * Simply directs the panel to do the actual work.
      */
     public void showViewSource() {
-	gpanel.viewSource();
+	currentPanel().viewSource();
     }
 
     @Override
     public void actionPerformed(final ActionEvent e) {
+	if (sessionTimer.equals(e.getSource())) {
+	    final GeminiSession session = captureSession();
+	    sessionWriter.execute(() -> writeSession(session));
+	}
 	if (exitItem.equals(e.getSource())) {
-	    System.exit(0);
+	    exit();
 	}
 	if (viewSourceItem.equals(e.getSource())) {
 	    showViewSource();
 	}
+	if (newTabItem.equals(e.getSource())) {
+	    openTab(HOME_PAGE, true);
+	}
+	if (closeTabItem.equals(e.getSource())) {
+	    closeTab();
+	}
+	if (openLocationItem.equals(e.getSource())) {
+	    currentPanel().focusAddressBar();
+	}
+	if (addBookmarkItem.equals(e.getSource())) {
+	    String url = currentPanel().getCurrentUrl();
+	    if (url != null) {
+		history.addBookmark(url, url.startsWith("gemini://")
+				    ? url.substring(9) : url);
+	    }
+	}
+	if (removeBookmarkItem.equals(e.getSource())) {
+	    String url = currentPanel().getCurrentUrl();
+	    if (url != null) {
+		history.removeBookmark(url);
+	    }
+	}
+	if (subscribeItem.equals(e.getSource())) {
+	    String url = currentPanel().getCurrentUrl();
+	    if (url != null) {
+		getFeedManager().subscribe(url);
+	    }
+	}
+	if (showFeedsItem.equals(e.getSource())) {
+	    new FeedFrame(getFeedManager(), this);
+	}
+	if (inspectorItem.equals(e.getSource())) {
+	    if (inspector == null || !inspector.isDisplayable()) {
+		inspector = new InspectorFrame();
+	    } else {
+		inspector.toFront();
+	    }
+	}
+	if (responsivenessItem.equals(e.getSource())) {
+	    if (responsiveness == null || !responsiveness.isDisplayable()) {
+		responsiveness = new ResponsivenessFrame(
+					GeminiEventMonitor.getMonitor());
+	    } else {
+		responsiveness.toFront();
+	    }
+	}
+	if (imagesItem.equals(e.getSource())) {
+	    for (int i = 0; i < tabs.getTabCount(); i++) {
+		((GeminiPanel) tabs.getComponentAt(i))
+		    .setShowImages(imagesItem.isSelected());
+	    }
+	}
     }
 
     /**
      * Create a new SimpleGeminiFrame. If an argument is supplied it
-     * will be used as the initial url to display.
+     * will be used as the initial url to display, otherwise the previous
+     * session is restored if there is one. Initialisation needed by the
+     * first request is started in the background, and the event thread
+     * monitor installed, before the frame is built.
      *
      * @param args command line arguments
      */
     public static void main(final String[] args) {
-	if (args.length > 0) {
-	    new SimpleGeminiFrame(args[0]);
-	} else {
-	    new SimpleGeminiFrame("gemini://geminiquickst.art/");
+	GeminiStartup.warmUp();
+	GeminiEventMonitor.install();
+	final String url = (args.length > 0) ? args[0] : HOME_PAGE;
+	GeminiSession session = null;
+	File f = sessionFile();
+	if (args.length == 0 && f.exists()) {
+	    try {
+		session = GeminiSession.read(f);
+		GeminiStartup.mark("session read");
+	    } catch (IOException ioe) {
+		System.err.println("Unable to restore session: "
+				   + ioe.getMessage());
+	    }
 	}
+	final GeminiSession fsession = session;
+	SwingUtilities.invokeLater(() -> new SimpleGeminiFrame(url, fsession));
     }
 }
@@ -0,0 +1,202 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import uk.co.petertribble.pctgemini.gui.GeminiUtils;
+
+/**
+ * Check that the code paths run for every page stay within their
+ * allocation budgets. Each path is run repeatedly on a fixture, and the
+ * memory allocated by this thread is measured. A budget is either bytes
+ * allocated per byte of input, or bytes per operation for the fixed-size
+ * paths.
+ *
+ * <p>This is run by './build alloccheck', which fails if any path has
+ * exceeded its budget, so that an accidental increase in garbage is
+ * caught when it's introduced.
+ */
+public final class GeminiAllocationCheck {
+
+    /**
+     * The number of runs before measuring, so the code is compiled.
+     */
+    private static final int WARMUP = 2000;
+
+    /**
+     * The number of runs measured.
+     */
+    private static final int RUNS = 500;
+
+    /**
+     * The thread management bean, which can report allocations.
+     */
+    private static final com.sun.management.ThreadMXBean TMX =
+	(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * A gemtext document with a mix of line types.
+     */
+    private static final String DOC = makeDocument();
+
+    /**
+     * The document as bytes.
+     */
+    private static final byte[] DOCBYTES =
+	DOC.getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * A response header.
+     */
+    private static final byte[] HEADER =
+	"20 text/gemini; charset=utf-8; lang=en\r\n"
+	.getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * The output buffer, reused so its allocation isn't counted.
+     */
+    private static final StringBuilder OUT =
+	new StringBuilder(DOC.length() * 2);
+
+    /**
+     * Set if any check fails.
+     */
+    private static boolean failed;
+
+    /*
+     * A body of work to be measured.
+     */
+    @FunctionalInterface
+    private interface Op {
+	void run() throws IOException;
+    }
+
+    /*
+     * This class cannot be instantiated.
+     */
+    private GeminiAllocationCheck() {
+    }
+
+    /*
+     * Generate the test document.
+     */
+    private static String makeDocument() {
+	StringBuilder sb = new StringBuilder();
+	for (int i = 0; i < 400; i++) {
+	    sb.append("# Heading ").append(i).append('\n');
+	    sb.append("Some text with <markup> & \"quotes\" in it.\n");
+	    sb.append("=> gemini://example.org/page").append(i)
+		.append(".gmi A link to page ").append(i).append('\n');
+	    sb.append("=> images/pic").append(i).append(".png\n");
+	    sb.append("* A list item\n");
+	    sb.append("> A quotation\n");
+	    sb.append("```\n  preformatted <text>\n```\n");
+	    sb.append('\n');
+	}
+	return sb.toString();
+    }
+
+    /*
+     * Measure the bytes allocated by one run of an operation.
+     */
+    private static double measure(final Op op) throws IOException {
+	for (int i = 0; i < WARMUP; i++) {
+	    op.run();
+	}
+	long tid = Thread.currentThread().getId();
+	long before = TMX.getThreadAllocatedBytes(tid);
+	for (int i = 0; i < RUNS; i++) {
+	    op.run();
+	}
+	long after = TMX.getThreadAllocatedBytes(tid);
+	return (double) (after - before) / RUNS;
+    }
+
+    /*
+     * Check an operation's allocation per byte of input.
+     */
+    private static void checkPerByte(final String name, final Op op,
+				     final int size, final double budget)
+	    throws IOException {
+	report(name, measure(op) / size, budget, "bytes/input byte");
+    }
+
+    /*
+     * Check an operation's allocation per run.
+     */
+    private static void checkPerOp(final String name, final Op op,
+				   final double budget) throws IOException {
+	report(name, measure(op), budget, "bytes/op");
+    }
+
+    private static void report(final String name, final double actual,
+			       final double budget, final String unit) {
+	boolean ok = actual <= budget;
+	if (!ok) {
+	    failed = true;
+	}
+	System.out.printf("%-36s %10.3f %10.3f %-16s %s%n", name, actual,
+			  budget, unit, ok ? "ok" : "FAILED");
+    }
+
+    /**
+     * Run the allocation checks, exiting with a non-zero status if any
+     * budget has been exceeded.
+     *
+     * @param args ignored
+     */
+    public static void main(final String[] args) {
+	if (!TMX.isThreadAllocatedMemorySupported()) {
+	    System.err.println("Allocation measurement not supported");
+	    System.exit(2);
+	}
+	TMX.setThreadAllocatedMemoryEnabled(true);
+	final GeminiResponse gresp = new GeminiResponse("20 text/gemini",
+							DOCBYTES);
+	final ByteArrayInputStream hin = new ByteArrayInputStream(HEADER);
+	System.out.printf("%-36s %10s %10s%n", "path", "measured", "budget");
+	try {
+	    checkPerByte("geminiToHtml(CharSequence)", () -> {
+		    OUT.setLength(0);
+		    GeminiUtils.geminiToHtml(DOC, OUT);
+		}, DOCBYTES.length, 0.01);
+	    // the streaming path has fixed size buffers, whatever the input
+	    checkPerOp("geminiToHtml(Reader)", () -> {
+		    OUT.setLength(0);
+		    GeminiUtils.geminiToHtml(gresp.bodyAsReader(), OUT, true);
+		}, 32768);
+	    checkPerByte("bodyAsString", gresp::bodyAsString,
+			 DOCBYTES.length, 1.1);
+	    checkPerOp("readHeader", () -> {
+		    hin.reset();
+		    GeminiRequest.readHeader(hin);
+		}, 1200);
+	    checkPerOp("readHeader + GeminiResponse", () -> {
+		    hin.reset();
+		    new GeminiResponse(GeminiRequest.readHeader(hin));
+		}, 1400);
+	} catch (IOException ioe) {
+	    throw new UncheckedIOException(ioe);
+	}
+	if (failed) {
+	    System.exit(1);
+	}
+    }
+}
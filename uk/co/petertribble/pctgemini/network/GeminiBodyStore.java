@@ -0,0 +1,273 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A content-addressed store of response bodies. Identical bodies are
+ * held once, however many urls they were fetched from, and are
+ * reference counted so they can be discarded when no longer used.
+ *
+ * <p>Bodies are identified by a fast 64-bit hash, and the content is
+ * always compared, so a hash collision can never return the wrong body.
+ * Bodies may also be written to a directory on disk, where the file name
+ * is derived from the hash, so the same sharing applies on disk.
+ */
+public final class GeminiBodyStore {
+
+    /**
+     * A stored body.
+     */
+    private static final class Blob {
+	private final byte[] data;
+	private final long hash;
+	private int refs;
+
+	Blob(final byte[] data, final long hash) {
+	    this.data = data;
+	    this.hash = hash;
+	}
+    }
+
+    /**
+     * The blobs, keyed by hash. Usually each list has one entry.
+     */
+    private final Map<Long, List<Blob>> byHash = new HashMap<>();
+    /**
+     * The blobs, keyed by the canonical array.
+     */
+    private final Map<byte[], Blob> byArray = new IdentityHashMap<>();
+    /**
+     * The directory holding blobs on disk, or null.
+     */
+    private final File dir;
+    /**
+     * The total size of the distinct bodies held.
+     */
+    private long uniqueBytes;
+    /**
+     * The number of times a body was found to be already present.
+     */
+    private long nshared;
+
+    /**
+     * Create a store held only in memory.
+     */
+    public GeminiBodyStore() {
+	this(null);
+    }
+
+    /**
+     * Create a store that can also write bodies to the given directory.
+     *
+     * @param dir the directory for bodies on disk, or null for a
+     * memory-only store
+     */
+    public GeminiBodyStore(final File dir) {
+	this.dir = dir;
+	if (dir != null && !dir.isDirectory()) {
+	    dir.mkdirs();
+	}
+    }
+
+    /**
+     * Add a reference to a body. If an identical body is already held,
+     * the existing array is returned and should be used in place of the
+     * one passed in.
+     *
+     * @param body the body to store
+     *
+     * @return the canonical array holding this content
+     */
+    public synchronized byte[] acquire(final byte[] body) {
+	Blob blob = byArray.get(body);
+	if (blob == null) {
+	    long h = GeminiHash.hash(body);
+	    List<Blob> blobs = byHash.computeIfAbsent(h,
+						k -> new ArrayList<>(1));
+	    for (Blob b : blobs) {
+		if (Arrays.equals(b.data, body)) {
+		    blob = b;
+		    nshared++;
+		    break;
+		}
+	    }
+	    if (blob == null) {
+		blob = new Blob(body, h);
+		blobs.add(blob);
+		byArray.put(body, blob);
+		uniqueBytes += body.length;
+	    }
+	}
+	blob.refs++;
+	return blob.data;
+    }
+
+    /**
+     * Drop a reference to a body, discarding it if it's no longer used.
+     *
+     * @param body the canonical array returned by acquire()
+     *
+     * @return true if this was the last reference, so the body has been
+     * discarded
+     */
+    public synchronized boolean release(final byte[] body) {
+	Blob blob = byArray.get(body);
+	if (blob == null) {
+	    return false;
+	}
+	blob.refs--;
+	if (blob.refs > 0) {
+	    return false;
+	}
+	byArray.remove(body);
+	List<Blob> blobs = byHash.get(blob.hash);
+	blobs.remove(blob);
+	if (blobs.isEmpty()) {
+	    byHash.remove(blob.hash);
+	}
+	uniqueBytes -= body.length;
+	return true;
+    }
+
+    /**
+     * Get the number of references to a body.
+     *
+     * @param body the canonical array returned by acquire()
+     *
+     * @return the reference count, or 0 if the body isn't held
+     */
+    public synchronized int refCount(final byte[] body) {
+	Blob blob = byArray.get(body);
+	return blob == null ? 0 : blob.refs;
+    }
+
+    /**
+     * Write a body to disk, unless an identical body is already there.
+     * As this may read the body already on disk to compare it, callers
+     * should avoid holding locks while it runs. Concurrent calls for
+     * the same body are safe.
+     *
+     * @param body the body to write
+     *
+     * @return the name under which the body is stored on disk
+     *
+     * @throws IOException if the body cannot be written
+     */
+    public String persist(final byte[] body) throws IOException {
+	String hex = GeminiHash.toHex(GeminiHash.hash(body));
+	for (int i = 0;; i++) {
+	    String name = i == 0 ? hex : hex + "-" + i;
+	    File f = new File(dir, name);
+	    if (!f.exists()) {
+		// a unique temporary name, as another thread may be writing
+		File tmp = File.createTempFile(name, ".tmp", dir);
+		Files.write(tmp.toPath(), body);
+		Files.move(tmp.toPath(), f.toPath(),
+			   StandardCopyOption.ATOMIC_MOVE);
+		return name;
+	    }
+	    if (f.length() == body.length
+		    && Arrays.equals(Files.readAllBytes(f.toPath()), body)) {
+		return name;
+	    }
+	}
+    }
+
+    /**
+     * Read a body from disk.
+     *
+     * @param name the name returned by persist()
+     *
+     * @return the body, or null if it cannot be read
+     */
+    public byte[] load(final String name) {
+	try {
+	    return Files.readAllBytes(new File(dir, name).toPath());
+	} catch (IOException ioe) {
+	    return null;
+	}
+    }
+
+    /**
+     * Get the size of a body on disk.
+     *
+     * @param name the name returned by persist()
+     *
+     * @return the size of the body, in bytes
+     */
+    public long diskSize(final String name) {
+	return new File(dir, name).length();
+    }
+
+    /**
+     * Get whether a body is on disk.
+     *
+     * @param name the name returned by persist()
+     *
+     * @return true if the body is on disk
+     */
+    public boolean exists(final String name) {
+	return new File(dir, name).exists();
+    }
+
+    /**
+     * Remove a body from disk.
+     *
+     * @param name the name returned by persist()
+     */
+    public void delete(final String name) {
+	new File(dir, name).delete();
+    }
+
+    /**
+     * Get the names of all the bodies on disk.
+     *
+     * @return an array of names, which is empty if there's no directory
+     */
+    public String[] diskNames() {
+	String[] names = dir == null ? null : dir.list();
+	return names == null ? new String[0] : names;
+    }
+
+    /**
+     * Get the total size of the distinct bodies held in memory.
+     *
+     * @return the size of the bodies, in bytes
+     */
+    public synchronized long uniqueBytes() {
+	return uniqueBytes;
+    }
+
+    /**
+     * Get the number of times a body being added was already present.
+     *
+     * @return the number of shared bodies
+     */
+    public synchronized long sharedCount() {
+	return nshared;
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache of responses, keyed by url. The cache is bounded by the total
+ * size of the response bodies it holds, and the least recently used
+ * entries are discarded first. It's safe to share a cache between
+ * threads.
+ *
+ * <p>Bodies are held in a GeminiBodyStore, so urls that return the same
+ * content share a single copy, and the size limit applies to the
+ * distinct content held.
+ *
+ * <p>A cache may also be given a directory, in which case it's
+ * persistent: responses are written to disk, again sharing identical
+ * bodies, and a response not held in memory is read back from disk.
+ * The index of urls on disk is written by save().
+ */
+public class GeminiCache {
+
+    /**
+     * The default maximum size of the cache, in bytes.
+     */
+    public static final long DEFAULT_MAXSIZE = 32L * 1024 * 1024;
+
+    /**
+     * The default maximum size of the cache on disk, in bytes.
+     */
+    public static final long DEFAULT_DISKSIZE = 256L * 1024 * 1024;
+
+    /**
+     * The name of the index file in the cache directory.
+     */
+    private static final String INDEX_FILE = "index";
+
+    /**
+     * The name of the directory holding bodies in the cache directory.
+     */
+    private static final String BLOB_DIR = "blobs";
+
+    /**
+     * The maximum total size of the bodies held, in bytes.
+     */
+    private final long maxsize;
+    /**
+     * The current total size of the distinct bodies held, in bytes.
+     */
+    private long cursize;
+    /**
+     * The cached responses, in access order.
+     */
+    private final Map<String, GeminiResponse> cmap =
+	new LinkedHashMap<>(64, 0.75f, true);
+    /**
+     * The store holding the bodies.
+     */
+    private final GeminiBodyStore store;
+    /**
+     * The cache directory, or null if the cache is memory only.
+     */
+    private final File dir;
+    /**
+     * The maximum total size of the bodies on disk, in bytes.
+     */
+    private final long maxdisk;
+    /**
+     * The current total size of the bodies on disk, in bytes.
+     */
+    private long disksize;
+    /**
+     * The responses on disk, in access order.
+     */
+    private final Map<String, DiskEntry> diskIndex =
+	new LinkedHashMap<>(64, 0.75f, true);
+    /**
+     * The number of urls referring to each body on disk.
+     */
+    private final Map<String, Integer> diskRefs = new HashMap<>();
+    /**
+     * The time each response in memory was fetched, in milliseconds.
+     */
+    private final Map<String, Long> stamps = new HashMap<>();
+
+    /*
+     * A response on disk.
+     */
+    private static final class DiskEntry {
+	private final String header;
+	private final String blob;
+	private final long time;
+
+	DiskEntry(final String header, final String blob, final long time) {
+	    this.header = header;
+	    this.blob = blob;
+	    this.time = time;
+	}
+    }
+
+    /**
+     * Create a cache of the default size.
+     */
+    public GeminiCache() {
+	this(DEFAULT_MAXSIZE);
+    }
+
+    /**
+     * Create a cache that will hold up to the given number of bytes
+     * of response bodies.
+     *
+     * @param maxsize the maximum size of the cache, in bytes
+     */
+    public GeminiCache(final long maxsize) {
+	this.maxsize = maxsize;
+	this.store = new GeminiBodyStore();
+	this.dir = null;
+	this.maxdisk = 0;
+    }
+
+    /**
+     * Create a persistent cache in the given directory. Any responses
+     * saved there previously are available immediately.
+     *
+     * @param maxsize the maximum size of the cache in memory, in bytes
+     * @param dir the directory holding the cache
+     * @param maxdisk the maximum size of the cache on disk, in bytes
+     */
+    public GeminiCache(final long maxsize, final File dir,
+		       final long maxdisk) {
+	this.maxsize = maxsize;
+	this.store = new GeminiBodyStore(new File(dir, BLOB_DIR));
+	this.dir = dir;
+	this.maxdisk = maxdisk;
+	loadIndex();
+    }
+
+    /**
+     * Get a response from the cache.
+     *
+     * @param url the url of the response
+     *
+     * @return the cached response, or null if the url isn't in the cache
+     */
+    public GeminiResponse get(final String url) {
+	return get(url, Long.MAX_VALUE);
+    }
+
+    /**
+     * Get a response from the cache, provided it was fetched recently.
+     *
+     * @param url the url of the response
+     * @param maxage the maximum age of the response, in milliseconds
+     *
+     * @return the cached response, or null if the url isn't in the cache
+     * or the cached response is too old
+     */
+    public synchronized GeminiResponse get(final String url,
+					   final long maxage) {
+	long oldest = System.currentTimeMillis() - maxage;
+	GeminiResponse gresp = cmap.get(url);
+	if (gresp != null) {
+	    return stamps.get(url) < oldest ? null : gresp;
+	}
+	if (dir == null) {
+	    return null;
+	}
+	DiskEntry de = diskIndex.get(url);
+	if (de == null || de.time < oldest) {
+	    return null;
+	}
+	byte[] body = store.load(de.blob);
+	if (body == null) {
+	    removeDisk(url);
+	    return null;
+	}
+	gresp = new GeminiResponse(de.header);
+	gresp.addBody(body);
+	putMemory(url, gresp, de.time);
+	return gresp;
+    }
+
+    /**
+     * Add a response to the cache, discarding older entries if necessary.
+     * Responses larger than the cache are not stored.
+     *
+     * @param url the url of the response
+     * @param gresp the response to be cached
+     */
+    public void put(final String url, final GeminiResponse gresp) {
+	if (gresp.bodyLength() > maxsize) {
+	    return;
+	}
+	long now = System.currentTimeMillis();
+	synchronized (this) {
+	    putMemory(url, gresp, now);
+	}
+	if (dir != null) {
+	    // writing, or comparing with what's there, is done unlocked
+	    String blob;
+	    try {
+		blob = store.persist(gresp.bodyBytes());
+	    } catch (IOException ioe) {
+		return;
+	    }
+	    synchronized (this) {
+		putDisk(url, gresp, blob, now);
+	    }
+	}
+    }
+
+    /*
+     * Add a response to the memory cache. Its body is replaced by the
+     * shared copy if the same content is already held.
+     */
+    private void putMemory(final String url, final GeminiResponse gresp,
+			   final long time) {
+	if (gresp.bodyLength() > 0) {
+	    byte[] body = store.acquire(gresp.bodyBytes());
+	    gresp.addBody(body);
+	    if (store.refCount(body) == 1) {
+		cursize += body.length;
+	    }
+	}
+	GeminiResponse old = cmap.put(url, gresp);
+	stamps.put(url, time);
+	if (old != null) {
+	    release(old);
+	}
+	Iterator<Map.Entry<String, GeminiResponse>> iter =
+	    cmap.entrySet().iterator();
+	while (cursize > maxsize && iter.hasNext()) {
+	    Map.Entry<String, GeminiResponse> me = iter.next();
+	    if (me.getValue() != gresp) {
+		release(me.getValue());
+		stamps.remove(me.getKey());
+		iter.remove();
+	    }
+	}
+    }
+
+    /*
+     * Drop a response's reference to its body.
+     */
+    private void release(final GeminiResponse gresp) {
+	byte[] body = gresp.bodyBytes();
+	if (body.length > 0 && store.release(body)) {
+	    cursize -= body.length;
+	}
+    }
+
+    /*
+     * Add a response, whose body has been written to disk as the given
+     * blob, to the disk cache. Bodies are only deleted with the lock
+     * held, so if the blob was unreferenced it may have been deleted
+     * since it was written; otherwise the reference taken here keeps
+     * it. The new reference is taken before the old entry's is dropped,
+     * so a url put again with the same content keeps its body.
+     */
+    private void putDisk(final String url, final GeminiResponse gresp,
+			 final String blob, final long time) {
+	if (!diskRefs.containsKey(blob) && !store.exists(blob)) {
+	    return;
+	}
+	DiskEntry old = diskIndex.put(url,
+				new DiskEntry(gresp.header(), blob, time));
+	if (diskRefs.merge(blob, 1, Integer::sum) == 1) {
+	    disksize += gresp.bodyLength();
+	}
+	if (old != null) {
+	    unrefBlob(old.blob);
+	}
+	Iterator<Map.Entry<String, DiskEntry>> iter =
+	    diskIndex.entrySet().iterator();
+	while (disksize > maxdisk && iter.hasNext()) {
+	    Map.Entry<String, DiskEntry> me = iter.next();
+	    if (!me.getKey().equals(url)) {
+		iter.remove();
+		unrefBlob(me.getValue().blob);
+	    }
+	}
+    }
+
+    /*
+     * Remove a response from the disk cache.
+     */
+    private void removeDisk(final String url) {
+	DiskEntry de = diskIndex.remove(url);
+	if (de != null) {
+	    unrefBlob(de.blob);
+	}
+    }
+
+    /*
+     * Drop a reference to a body on disk, deleting it if it's unused.
+     */
+    private void unrefBlob(final String blob) {
+	Integer n = diskRefs.get(blob);
+	if (n == null || n <= 1) {
+	    diskRefs.remove(blob);
+	    disksize -= store.diskSize(blob);
+	    store.delete(blob);
+	} else {
+	    diskRefs.put(blob, n - 1);
+	}
+    }
+
+    /*
+     * Read the index of responses on disk, and delete any bodies that
+     * aren't referenced.
+     */
+    private void loadIndex() {
+	File f = new File(dir, INDEX_FILE);
+	if (f.exists()) {
+	    try {
+		for (String line : Files.readAllLines(f.toPath(),
+						StandardCharsets.UTF_8)) {
+		    String[] ds = line.split("\t", 4);
+		    if (ds.length == 4) {
+			diskIndex.put(ds[0], new DiskEntry(ds[3], ds[1],
+						Long.parseLong(ds[2])));
+			if (diskRefs.merge(ds[1], 1, Integer::sum) == 1) {
+			    disksize += store.diskSize(ds[1]);
+			}
+		    }
+		}
+	    } catch (IOException | NumberFormatException e) { }
+	}
+	for (String name : store.diskNames()) {
+	    if (!diskRefs.containsKey(name)) {
+		store.delete(name);
+	    }
+	}
+    }
+
+    /**
+     * Write the index of responses on disk, so they're available the
+     * next time the cache is created. Does nothing if the cache is
+     * memory only.
+     */
+    public synchronized void save() {
+	if (dir == null) {
+	    return;
+	}
+	List<String> lines = new ArrayList<>(diskIndex.size());
+	for (Map.Entry<String, DiskEntry> me : diskIndex.entrySet()) {
+	    DiskEntry de = me.getValue();
+	    lines.add(me.getKey() + "\t" + de.blob + "\t" + de.time + "\t"
+		      + de.header.replace('\t', ' '));
+	}
+	File tmp = new File(dir, INDEX_FILE + ".tmp");
+	try {
+	    Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+	    Files.move(tmp.toPath(), new File(dir, INDEX_FILE).toPath(),
+		       StandardCopyOption.REPLACE_EXISTING,
+		       StandardCopyOption.ATOMIC_MOVE);
+	} catch (IOException ioe) { }
+    }
+
+    /**
+     * Remove a response from the cache.
+     *
+     * @param url the url of the response to remove
+     */
+    public synchronized void remove(final String url) {
+	GeminiResponse old = cmap.remove(url);
+	stamps.remove(url);
+	if (old != null) {
+	    release(old);
+	}
+	if (dir != null) {
+	    removeDisk(url);
+	}
+    }
+
+    /**
+     * Get the number of responses in the cache.
+     *
+     * @return the number of cached responses
+     */
+    public synchronized int size() {
+	return cmap.size();
+    }
+
+    /**
+     * Get the total size of the distinct response bodies in the cache.
+     *
+     * @return the size of the cached content, in bytes
+     */
+    public synchronized long byteSize() {
+	return cursize;
+    }
+
+    /**
+     * Get the body store used by this cache.
+     *
+     * @return the GeminiBodyStore holding the response bodies
+     */
+    public GeminiBodyStore getStore() {
+	return store;
+    }
+}
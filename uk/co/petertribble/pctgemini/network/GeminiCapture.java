@@ -0,0 +1,429 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An archive of requests and their responses, so that a session can be
+ * replayed later by a GeminiReplayTransport without a network. Each
+ * request is appended with its url, the time taken by each phase, and
+ * the response header and body, or the error if it failed.
+ *
+ * <p>The file starts with a marker line, followed by one compressed
+ * frame per request, each written with a single append. If capturing is
+ * interrupted, everything up to the last complete frame can still be
+ * read. Capturing to an existing archive adds to it.
+ *
+ * <p>If the pctgemini.capture property names a file, every request made
+ * with a GeminiRequest, other than those being replayed, is captured to
+ * that file.
+ */
+public final class GeminiCapture implements Closeable {
+
+    /**
+     * The marker at the start of an archive.
+     */
+    private static final byte[] MAGIC =
+	"pctgemini capture 1\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The number of phase times saved for each request.
+     */
+    private static final int NPHASES = 6;
+    /**
+     * The most that deflate can compress data by, so a frame claiming
+     * to inflate to more than this multiple of its size is corrupt.
+     */
+    private static final int MAX_RATIO = 1032;
+
+    /**
+     * The capture that requests are written to, or null.
+     */
+    private static volatile GeminiCapture active;
+
+    /**
+     * The archive being written.
+     */
+    private final FileOutputStream out;
+    /**
+     * Compresses each frame.
+     */
+    private final Deflater deflater = new Deflater();
+    /**
+     * Set once the archive has been closed.
+     */
+    private boolean closed;
+    /**
+     * The failure that stopped capturing, if any.
+     */
+    private volatile IOException failure;
+
+    /**
+     * A request and its response read back from an archive.
+     */
+    public static final class Entry {
+
+	private final GeminiRequestRecord record;
+	private final GeminiResponse response;
+
+	Entry(final GeminiRequestRecord record,
+	      final GeminiResponse response) {
+	    this.record = record;
+	    this.response = response;
+	}
+
+	/**
+	 * Get the record of the request, holding the url, when it was
+	 * made, the time taken by each phase, and the error if it failed.
+	 *
+	 * @return the record of the request
+	 */
+	public GeminiRequestRecord getRecord() {
+	    return record;
+	}
+
+	/**
+	 * Get the response.
+	 *
+	 * @return the response, or null if the request failed
+	 */
+	public GeminiResponse getResponse() {
+	    return response;
+	}
+    }
+
+    /**
+     * Open an archive to add requests to, creating it if necessary.
+     *
+     * @param f the archive file
+     *
+     * @throws IOException if the file can't be opened, or isn't an
+     * archive
+     */
+    public GeminiCapture(final File f) throws IOException {
+	boolean fresh = f.length() == 0;
+	if (!fresh) {
+	    try (InputStream in = new FileInputStream(f)) {
+		checkMagic(in, f);
+	    }
+	}
+	out = new FileOutputStream(f, true);
+	if (fresh) {
+	    out.write(MAGIC);
+	}
+    }
+
+    private static void checkMagic(final InputStream in, final File f)
+	    throws IOException {
+	byte[] b = in.readNBytes(MAGIC.length);
+	if (!Arrays.equals(b, MAGIC)) {
+	    throw new IOException(f + " is not a capture archive");
+	}
+    }
+
+    /**
+     * Set the archive that requests are captured to.
+     *
+     * @param capture the GeminiCapture to write to, or null to stop
+     * capturing
+     */
+    public static void setActive(final GeminiCapture capture) {
+	active = capture;
+    }
+
+    /**
+     * Get the archive that requests are captured to.
+     *
+     * @return the active GeminiCapture, or null if requests aren't
+     * being captured
+     */
+    public static GeminiCapture getActive() {
+	return active;
+    }
+
+    /**
+     * Add a request to the archive.
+     *
+     * @param rec the completed record of the request
+     * @param gresp the response, or null if the request failed
+     *
+     * @throws IOException if the archive can't be written
+     */
+    public void write(final GeminiRequestRecord rec,
+		      final GeminiResponse gresp) throws IOException {
+	ByteArrayOutputStream raw = new ByteArrayOutputStream(
+		gresp == null ? 256 : gresp.bodyLength() + 256);
+	DataOutputStream dos = new DataOutputStream(raw);
+	writeString(dos, rec.getUrl());
+	dos.writeLong(rec.getStartTime());
+	dos.writeLong(rec.getDns());
+	dos.writeLong(rec.getConnect());
+	dos.writeLong(rec.getTls());
+	dos.writeLong(rec.getFirstByte());
+	dos.writeLong(rec.getTransfer());
+	dos.writeLong(rec.getTotal());
+	writeString(dos, rec.getError());
+	if (gresp == null) {
+	    writeString(dos, null);
+	} else {
+	    writeString(dos, gresp.header());
+	    dos.writeBoolean(gresp.hasBody());
+	    if (gresp.hasBody()) {
+		dos.writeInt(gresp.bodyLength());
+		dos.write(gresp.bodyBytes());
+	    }
+	}
+	dos.flush();
+	byte[] data = raw.toByteArray();
+	synchronized (this) {
+	    if (closed) {
+		throw new IOException("Capture closed");
+	    }
+	    deflater.reset();
+	    deflater.setInput(data);
+	    deflater.finish();
+	    ByteArrayOutputStream comp =
+		new ByteArrayOutputStream(data.length / 2 + 64);
+	    byte[] buf = new byte[8192];
+	    while (!deflater.finished()) {
+		comp.write(buf, 0, deflater.deflate(buf));
+	    }
+	    // the raw and compressed lengths, then the compressed data
+	    ByteArrayOutputStream frame =
+		new ByteArrayOutputStream(comp.size() + 8);
+	    DataOutputStream fos = new DataOutputStream(frame);
+	    fos.writeInt(data.length);
+	    fos.writeInt(comp.size());
+	    comp.writeTo(fos);
+	    // a single write, so the frame is appended whole
+	    out.write(frame.toByteArray());
+	}
+    }
+
+    /*
+     * Capture a request to the active archive, if there is one. A
+     * failure to write closes the archive and stops capturing, rather
+     * than failing requests, and is kept for getFailure().
+     */
+    static void capture(final GeminiRequestRecord rec,
+			final GeminiResponse gresp) {
+	GeminiCapture c = active;
+	if (c != null) {
+	    try {
+		c.write(rec, gresp);
+	    } catch (IOException ioe) {
+		c.failure = ioe;
+		try {
+		    c.close();
+		} catch (IOException ioe2) { }
+	    }
+	}
+    }
+
+    /**
+     * Get the failure to write the archive that stopped capturing.
+     *
+     * @return the failure, or null if capturing hasn't failed
+     */
+    public IOException getFailure() {
+	return failure;
+    }
+
+    /*
+     * Write a string, which may be null, as its length and UTF-8 bytes.
+     */
+    private static void writeString(final DataOutputStream dos,
+				    final String s) throws IOException {
+	if (s == null) {
+	    dos.writeInt(-1);
+	} else {
+	    byte[] b = s.getBytes(StandardCharsets.UTF_8);
+	    dos.writeInt(b.length);
+	    dos.write(b);
+	}
+    }
+
+    /*
+     * Read a string written by writeString().
+     */
+    private static String readString(final DataInputStream dis)
+	    throws IOException {
+	int len = dis.readInt();
+	if (len == -1) {
+	    return null;
+	}
+	return new String(readBytes(dis, len), StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Read the given number of bytes of a frame, checking that the frame
+     * has that many left before allocating anything.
+     */
+    private static byte[] readBytes(final DataInputStream dis, final int len)
+	    throws IOException {
+	if (len < 0 || len > dis.available()) {
+	    throw new IOException("Corrupt frame");
+	}
+	byte[] b = new byte[len];
+	dis.readFully(b);
+	return b;
+    }
+
+    /**
+     * Read every request in an archive, in the order they were made. An
+     * incomplete frame at the end, left by an interrupted capture, is
+     * ignored. Lengths are checked before anything is allocated, so a
+     * damaged archive fails rather than exhausting memory.
+     *
+     * @param f the archive file
+     *
+     * @return a List of the requests and responses
+     *
+     * @throws IOException if the file can't be read, or isn't an
+     * archive
+     */
+    public static List<Entry> read(final File f) throws IOException {
+	List<Entry> entries = new ArrayList<>();
+	Inflater inflater = new Inflater();
+	try (DataInputStream in = new DataInputStream(
+		new BufferedInputStream(new FileInputStream(f)))) {
+	    checkMagic(in, f);
+	    long remaining = f.length() - MAGIC.length;
+	    while (true) {
+		byte[] data;
+		try {
+		    int rawlen = in.readInt();
+		    int complen = in.readInt();
+		    remaining -= 8;
+		    if (rawlen < 0 || complen < 0
+			    || rawlen > (long) complen * MAX_RATIO) {
+			throw new IOException("Corrupt frame in " + f);
+		    }
+		    if (complen > remaining) {
+			// cut short by an interrupted capture
+			break;
+		    }
+		    remaining -= complen;
+		    data = new byte[rawlen];
+		    byte[] comp = new byte[complen];
+		    in.readFully(comp);
+		    inflater.reset();
+		    inflater.setInput(comp);
+		    if (inflater.inflate(data) != data.length) {
+			throw new IOException("Corrupt frame in " + f);
+		    }
+		} catch (EOFException eofe) {
+		    break;
+		} catch (DataFormatException dfe) {
+		    throw new IOException("Corrupt frame in " + f, dfe);
+		}
+		try {
+		    entries.add(parse(data));
+		} catch (IOException ioe) {
+		    throw new IOException("Corrupt frame in " + f, ioe);
+		}
+	    }
+	} finally {
+	    inflater.end();
+	}
+	return entries;
+    }
+
+    /*
+     * Parse a frame.
+     */
+    private static Entry parse(final byte[] data) throws IOException {
+	DataInputStream dis =
+	    new DataInputStream(new ByteArrayInputStream(data));
+	String url = readString(dis);
+	long start = dis.readLong();
+	long[] phases = new long[NPHASES];
+	for (int i = 0; i < NPHASES; i++) {
+	    phases[i] = dis.readLong();
+	}
+	String error = readString(dis);
+	String header = readString(dis);
+	GeminiResponse gresp = null;
+	if (header != null) {
+	    if (dis.readBoolean()) {
+		gresp = new GeminiResponse(header,
+					   readBytes(dis, dis.readInt()));
+	    } else {
+		gresp = new GeminiResponse(header);
+	    }
+	}
+	return new Entry(new GeminiRequestRecord(url, start, phases, gresp,
+						 error), gresp);
+    }
+
+    /**
+     * Stop writing to the archive.
+     *
+     * @throws IOException if the archive can't be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+	if (active == this) {
+	    active = null;
+	}
+	closed = true;
+	deflater.end();
+	out.close();
+    }
+
+    /**
+     * List the requests in an archive.
+     *
+     * @param args the archive file
+     */
+    public static void main(final String[] args) {
+	if (args.length != 1) {
+	    System.err.println("Usage: GeminiCapture archive");
+	    System.exit(1);
+	}
+	try {
+	    for (Entry e : read(new File(args[0]))) {
+		GeminiRequestRecord r = e.getRecord();
+		System.out.printf("%tT %8.1f ms %s %s%n", r.getStartTime(),
+			r.getTotal() / 1.0e6, r.getError() == null
+			? r.getStatus() + " " + r.getBytes() : "failed",
+			r.getUrl());
+	    }
+	} catch (IOException ioe) {
+	    System.err.println(ioe.getMessage());
+	    System.exit(1);
+	}
+    }
+}
@@ -0,0 +1,659 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Fetch gemini pages, using a shared cache and a pool of threads so that
+ * several pages can be retrieved at once. A single GeminiClient is
+ * intended to be shared by everything in an application that makes
+ * requests, and is safe to use from any number of threads. The requests
+ * made through a client share its configuration, its TLS session cache,
+ * so connections to a server already seen are resumed, its
+ * statistics, and its GeminiHostHealth, so a server that can't be
+ * reached or has asked for fewer requests isn't sent more for a while.
+ *
+ * <p>Requests for local file urls are refused unless the client was
+ * built to allow them, as a page from a server could otherwise link to
+ * local files and have them read.
+ *
+ * <p>A client with the default settings can be created with the
+ * constructors. Otherwise, use a Builder:
+ * <pre>
+ * GeminiClient client = GeminiClient.builder()
+ *     .threads(64)
+ *     .connectTimeout(5000)
+ *     .readTimeout(10000)
+ *     .maxBodySize(1048576)
+ *     .cache(null)
+ *     .build();
+ * </pre>
+ */
+public class GeminiClient implements AutoCloseable {
+
+    /**
+     * The default number of fetch threads.
+     */
+    private static final int DEFAULT_THREADS = 8;
+
+    /**
+     * The cache of responses, null if responses aren't cached.
+     */
+    private final GeminiCache cache;
+    /**
+     * Coalesces concurrent requests for the same url.
+     */
+    private final GeminiCoalescer coalescer;
+    /**
+     * The threads that carry out asynchronous requests.
+     */
+    private final ExecutorService executor;
+    /**
+     * Whether the executor was created by, and belongs to, this client.
+     */
+    private final boolean ownExecutor;
+    /**
+     * The factory for direct connections, null to use the default.
+     */
+    private final SSLSocketFactory socketFactory;
+    /**
+     * The transport for requests, null to use the default.
+     */
+    private final GeminiTransport transport;
+    /**
+     * Which servers are unavailable, null if that isn't tracked.
+     */
+    private final GeminiHostHealth health;
+    /**
+     * How long a request waits for an unavailable server, in
+     * milliseconds.
+     */
+    private final long backoffWait;
+    /**
+     * The connect timeout, in milliseconds.
+     */
+    private final int connectTimeout;
+    /**
+     * The read timeout, in milliseconds.
+     */
+    private final int readTimeout;
+    /**
+     * The largest response body accepted, in bytes.
+     */
+    private final int maxBodySize;
+    /**
+     * Whether local file urls may be fetched.
+     */
+    private final boolean localFiles;
+    /**
+     * The number of fetches.
+     */
+    private final AtomicLong nfetches = new AtomicLong();
+    /**
+     * The number of fetches answered from the cache.
+     */
+    private final AtomicLong nhits = new AtomicLong();
+    /**
+     * The number of fetches that failed at the connection level.
+     */
+    private final AtomicLong nfailures = new AtomicLong();
+    /**
+     * The number of asynchronous fetches cancelled.
+     */
+    private final AtomicLong ncancelled = new AtomicLong();
+    /**
+     * The number of body bytes received.
+     */
+    private final AtomicLong nbytes = new AtomicLong();
+
+    /**
+     * Create a GeminiClient with a cache and thread pool of the default
+     * sizes.
+     */
+    public GeminiClient() {
+	this(new GeminiCache(), DEFAULT_THREADS);
+    }
+
+    /**
+     * Create a GeminiClient using the given cache and number of threads.
+     *
+     * @param cache the cache of responses
+     * @param nthreads the maximum number of concurrent asynchronous
+     * requests
+     */
+    public GeminiClient(final GeminiCache cache, final int nthreads) {
+	this(new Builder().cache(cache).threads(nthreads));
+    }
+
+    /*
+     * Create a GeminiClient from a Builder. Every client gets its own
+     * cache and host health table unless the Builder was given them.
+     */
+    private GeminiClient(final Builder builder) {
+	cache = builder.defaultCache ? new GeminiCache() : builder.cache;
+	socketFactory = builder.socketFactory;
+	transport = builder.transport;
+	health = builder.defaultHealth ? new GeminiHostHealth()
+	    : builder.health;
+	backoffWait = builder.backoffWait;
+	connectTimeout = builder.connectTimeout;
+	readTimeout = builder.readTimeout;
+	maxBodySize = builder.maxBodySize;
+	localFiles = builder.localFiles;
+	if (builder.executor == null) {
+	    AtomicInteger tcount = new AtomicInteger();
+	    executor = Executors.newFixedThreadPool(builder.threads, r -> {
+		    Thread t = new Thread(r,
+			"gemini-fetch-" + tcount.incrementAndGet());
+		    t.setDaemon(true);
+		    return t;
+		});
+	    ownExecutor = true;
+	} else {
+	    executor = builder.executor;
+	    ownExecutor = false;
+	}
+	coalescer = new GeminiCoalescer(this::request);
+    }
+
+    /**
+     * Get a Builder to configure a new GeminiClient.
+     *
+     * @return a new Builder with the default settings
+     */
+    public static Builder builder() {
+	return new Builder();
+    }
+
+    /**
+     * Fetch a url, returning a cached response if there is one. If the
+     * same url is already being fetched, wait for that request rather
+     * than making another. The url is normalized first, so different
+     * spellings of the same url share cache entries and requests. This
+     * method blocks until the request completes.
+     *
+     * @param surl the url to fetch
+     *
+     * @return the response
+     *
+     * @throws IOException if the request failed at the connection level
+     */
+    public GeminiResponse fetch(final String surl) throws IOException {
+	nfetches.incrementAndGet();
+	String url = GeminiURL.normalize(surl);
+	checkLocal(url);
+	return doFetch(url);
+    }
+
+    /*
+     * Refuse a local file url, unless this client allows them.
+     */
+    private void checkLocal(final String url) throws IOException {
+	if (!localFiles && url.startsWith("file:")) {
+	    nfailures.incrementAndGet();
+	    throw new IOException("Local files not allowed: " + url);
+	}
+    }
+
+    /*
+     * Fetch a normalized url.
+     */
+    private GeminiResponse doFetch(final String url) throws IOException {
+	GeminiResponse gresp = cached(url);
+	if (gresp != null) {
+	    return gresp;
+	}
+	try {
+	    return coalescer.fetch(url);
+	} catch (IOException ioe) {
+	    nfailures.incrementAndGet();
+	    throw ioe;
+	}
+    }
+
+    /*
+     * Look up a url in the cache, if there is one.
+     */
+    private GeminiResponse cached(final String url) {
+	GeminiResponse gresp = cache == null ? null : cache.get(url);
+	if (gresp != null) {
+	    nhits.incrementAndGet();
+	    GeminiInspector.recordHit(url, gresp);
+	}
+	return gresp;
+    }
+
+    /**
+     * Fetch a url in the background. A cached response is returned
+     * immediately, and if the url is already being fetched, or waiting
+     * to be, the caller shares that request, otherwise the request is
+     * made by one of the fetch threads.
+     *
+     * <p>Cancelling the returned CompletableFuture releases the caller
+     * at once. A request that hasn't started yet is never made; one
+     * that is already in progress completes, within the timeouts, so
+     * that any other callers sharing it still get the response.
+     *
+     * @param surl the url to fetch
+     *
+     * @return a CompletableFuture that will hold the response, or
+     * complete exceptionally if the request fails at the connection level
+     */
+    public CompletableFuture<GeminiResponse> fetchAsync(final String surl) {
+	nfetches.incrementAndGet();
+	final String url = GeminiURL.normalize(surl);
+	try {
+	    checkLocal(url);
+	} catch (IOException ioe) {
+	    return CompletableFuture.failedFuture(ioe);
+	}
+	GeminiResponse gresp = cached(url);
+	if (gresp != null) {
+	    return CompletableFuture.completedFuture(gresp);
+	}
+	final CompletableFuture<GeminiResponse> cf =
+	    coalescer.fetchAsync(url, executor);
+	cf.whenComplete((r, ex) -> {
+		if (cf.isCancelled()) {
+		    ncancelled.incrementAndGet();
+		} else if (ex != null) {
+		    nfailures.incrementAndGet();
+		}
+	    });
+	return cf;
+    }
+
+    /**
+     * Start connecting to the server for a url that's likely to be
+     * fetched soon, such as a link the pointer is over, so that the
+     * fetch can skip the name lookup, connection, and TLS handshake.
+     * Nothing is done if the url is cached, isn't a gemini url, or
+     * requests go through a transport, and the connection is closed
+     * unused if the url isn't fetched within a few seconds. This
+     * returns immediately.
+     *
+     * @param surl the url that may be fetched
+     */
+    public void prewarm(final String surl) {
+	if (transport != null || GeminiRequest.getDefaultTransport() != null) {
+	    return;
+	}
+	final GeminiURL gurl;
+	try {
+	    gurl = GeminiURL.parse(surl);
+	} catch (URISyntaxException use) {
+	    return;
+	}
+	String host = gurl.getHost();
+	if (!gurl.isGemini() || host == null || host.isEmpty()) {
+	    return;
+	}
+	final String url = gurl.toString();
+	GeminiPrewarm.warm(socketFactory, host, gurl.getPort(),
+			   connectTimeout,
+			   () -> cache == null || cache.get(url) == null);
+    }
+
+    /*
+     * Make a request with this client's settings, and cache the
+     * response. This is called by the coalescer, once per url however
+     * many callers want it.
+     */
+    private GeminiResponse request(final String url) throws IOException {
+	GeminiRequest greq = new GeminiRequest(url);
+	greq.setTimeouts(connectTimeout, readTimeout);
+	greq.setMaxBodySize(maxBodySize);
+	greq.setSocketFactory(socketFactory);
+	if (transport != null) {
+	    greq.setTransport(transport);
+	}
+	GeminiResponse gresp;
+	if (health == null) {
+	    gresp = GeminiCoalescer.complete(greq, url);
+	} else {
+	    GeminiURL gurl;
+	    try {
+		gurl = GeminiURL.parse(url);
+	    } catch (URISyntaxException use) {
+		throw new IOException("Invalid url: " + use.getMessage(), use);
+	    }
+	    gresp = health.request(gurl, greq, backoffWait);
+	}
+	nbytes.addAndGet(gresp.bodyLength());
+	// local files may change, so aren't cached
+	if (cache != null && gresp.hasBody() && !url.startsWith("file:")) {
+	    cache.put(url, gresp);
+	}
+	return gresp;
+    }
+
+    /**
+     * Get the cache used by this client.
+     *
+     * @return the GeminiCache holding responses, or null if responses
+     * aren't cached
+     */
+    public GeminiCache getCache() {
+	return cache;
+    }
+
+    /**
+     * Get the record of unavailable servers used by this client.
+     *
+     * @return the GeminiHostHealth for this client, or null if
+     * unavailable servers aren't tracked
+     */
+    public GeminiHostHealth getHostHealth() {
+	return health;
+    }
+
+    /**
+     * Get the coalescer used by this client, which records how many
+     * requests were shared.
+     *
+     * @return the GeminiCoalescer for this client
+     */
+    public GeminiCoalescer getCoalescer() {
+	return coalescer;
+    }
+
+    /**
+     * Get the number of fetches made through this client.
+     *
+     * @return the number of fetches
+     */
+    public long fetchCount() {
+	return nfetches.get();
+    }
+
+    /**
+     * Get the number of fetches answered from the cache.
+     *
+     * @return the number of cache hits
+     */
+    public long hitCount() {
+	return nhits.get();
+    }
+
+    /**
+     * Get the number of fetches that failed at the connection level.
+     * Fetches that shared a failed request are each counted.
+     *
+     * @return the number of failed fetches
+     */
+    public long failureCount() {
+	return nfailures.get();
+    }
+
+    /**
+     * Get the number of asynchronous fetches that were cancelled.
+     *
+     * @return the number of cancelled fetches
+     */
+    public long cancelCount() {
+	return ncancelled.get();
+    }
+
+    /**
+     * Get the number of response body bytes received from the network.
+     *
+     * @return the number of bytes received
+     */
+    public long bytesReceived() {
+	return nbytes.get();
+    }
+
+    /**
+     * Stop this client's fetch threads, if it created them. Requests
+     * already queued are still made.
+     */
+    @Override
+    public void close() {
+	if (ownExecutor) {
+	    executor.shutdown();
+	}
+    }
+
+    /**
+     * Configures and creates a GeminiClient. By default a client has a
+     * memory cache of the default size, 8 fetch threads, no timeouts,
+     * no limit on the size of a response, accepts any server
+     * certificate, and refuses local file urls.
+     */
+    public static final class Builder {
+
+	private GeminiCache cache;
+	private boolean defaultCache = true;
+	private int threads = DEFAULT_THREADS;
+	private ExecutorService executor;
+	private X509TrustManager trustManager;
+	private SSLSocketFactory socketFactory;
+	private GeminiTransport transport;
+	private int connectTimeout;
+	private int readTimeout;
+	private int maxBodySize = Integer.MAX_VALUE;
+	private GeminiHostHealth health;
+	private boolean defaultHealth = true;
+	private long backoffWait;
+	private boolean localFiles;
+
+	/*
+	 * Use GeminiClient.builder() to get a Builder.
+	 */
+	private Builder() {
+	}
+
+	/**
+	 * Set the cache of responses.
+	 *
+	 * @param gcache the cache to use, which may be shared with other
+	 * clients, or null to not cache responses
+	 *
+	 * @return this Builder
+	 */
+	public Builder cache(final GeminiCache gcache) {
+	    cache = gcache;
+	    defaultCache = false;
+	    return this;
+	}
+
+	/**
+	 * Set the number of threads making asynchronous requests, which
+	 * limits how many requests are made at once.
+	 *
+	 * @param nthreads the number of fetch threads
+	 *
+	 * @return this Builder
+	 */
+	public Builder threads(final int nthreads) {
+	    if (nthreads < 1) {
+		throw new IllegalArgumentException("Need at least 1 thread");
+	    }
+	    threads = nthreads;
+	    return this;
+	}
+
+	/**
+	 * Make asynchronous requests using the given executor, rather
+	 * than a pool of threads belonging to the client. The executor
+	 * isn't shut down when the client is closed.
+	 *
+	 * @param exec the ExecutorService to make requests with
+	 *
+	 * @return this Builder
+	 */
+	public Builder executor(final ExecutorService exec) {
+	    executor = exec;
+	    return this;
+	}
+
+	/**
+	 * Set the timeout for connecting to a server, and for the TLS
+	 * handshake.
+	 *
+	 * @param millis the timeout in milliseconds, or 0 for none
+	 *
+	 * @return this Builder
+	 */
+	public Builder connectTimeout(final int millis) {
+	    connectTimeout = checkTimeout(millis);
+	    return this;
+	}
+
+	/**
+	 * Set the timeout for each read of a response.
+	 *
+	 * @param millis the timeout in milliseconds, or 0 for none
+	 *
+	 * @return this Builder
+	 */
+	public Builder readTimeout(final int millis) {
+	    readTimeout = checkTimeout(millis);
+	    return this;
+	}
+
+	private static int checkTimeout(final int millis) {
+	    if (millis < 0) {
+		throw new IllegalArgumentException("Negative timeout");
+	    }
+	    return millis;
+	}
+
+	/**
+	 * Set the largest response body accepted. A request for a larger
+	 * response fails.
+	 *
+	 * @param maxsize the maximum body size, in bytes
+	 *
+	 * @return this Builder
+	 */
+	public Builder maxBodySize(final int maxsize) {
+	    if (maxsize < 0) {
+		throw new IllegalArgumentException("Negative size");
+	    }
+	    maxBodySize = maxsize;
+	    return this;
+	}
+
+	/**
+	 * Set whether local file urls may be fetched, such as pages saved
+	 * by GeminiMirror. By default they're refused. A client that allows
+	 * them must check that a file url it fetches came from the user or
+	 * from a local page, not from a page fetched from a server.
+	 *
+	 * @param allow true to allow file urls to be fetched
+	 *
+	 * @return this Builder
+	 */
+	public Builder localFiles(final boolean allow) {
+	    localFiles = allow;
+	    return this;
+	}
+
+	/**
+	 * Set the record of which servers can't be reached or have asked
+	 * for fewer requests. By default each client has its own.
+	 *
+	 * @param hh the GeminiHostHealth to use, which may be shared with
+	 * other clients, or null to make requests regardless
+	 *
+	 * @return this Builder
+	 */
+	public Builder hostHealth(final GeminiHostHealth hh) {
+	    health = hh;
+	    defaultHealth = false;
+	    return this;
+	}
+
+	/**
+	 * Set how long a request waits for a server that is being held
+	 * back, because it couldn't be reached or asked for fewer
+	 * requests, before failing. By default requests fail at once.
+	 *
+	 * @param millis the longest wait in milliseconds, or 0 to fail at
+	 * once
+	 *
+	 * @return this Builder
+	 */
+	public Builder backoffWait(final long millis) {
+	    if (millis < 0) {
+		throw new IllegalArgumentException("Negative wait");
+	    }
+	    backoffWait = millis;
+	    return this;
+	}
+
+	/**
+	 * Set how server certificates are checked. The client gets its
+	 * own TLS context, so TLS sessions aren't shared with other
+	 * clients.
+	 *
+	 * @param tm the TrustManager to check server certificates
+	 *
+	 * @return this Builder
+	 */
+	public Builder trustManager(final X509TrustManager tm) {
+	    trustManager = tm;
+	    return this;
+	}
+
+	/**
+	 * Send requests using the given transport rather than connecting
+	 * directly. The timeouts, size limit, and trust manager only
+	 * apply to direct connections.
+	 *
+	 * @param gt the GeminiTransport to use
+	 *
+	 * @return this Builder
+	 */
+	public Builder transport(final GeminiTransport gt) {
+	    transport = gt;
+	    return this;
+	}
+
+	/**
+	 * Create a GeminiClient with the settings in this Builder.
+	 *
+	 * @return a new GeminiClient
+	 *
+	 * @throws IllegalStateException if the TLS context for a trust
+	 * manager cannot be created
+	 */
+	public GeminiClient build() {
+	    socketFactory = null;
+	    if (trustManager != null) {
+		try {
+		    socketFactory = GeminiSocketFactory.newContext(trustManager)
+			.getSocketFactory();
+		} catch (GeneralSecurityException e) {
+		    throw new IllegalStateException(
+			"Unable to create TLS context", e);
+		}
+	    }
+	    return new GeminiClient(this);
+	}
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesce concurrent requests for the same url. The first caller makes
+ * the request, and any other callers asking for the same url while that
+ * request is in flight wait for it and get the same response.
+ */
+public class GeminiCoalescer {
+
+    /**
+     * The requests currently in flight, keyed by url.
+     */
+    private final ConcurrentMap<String, CompletableFuture<GeminiResponse>>
+	inflight = new ConcurrentHashMap<>();
+    /**
+     * The number of requests actually made.
+     */
+    private final AtomicLong nrequests = new AtomicLong();
+    /**
+     * The number of requests that were satisfied by one already in flight.
+     */
+    private final AtomicLong ncoalesced = new AtomicLong();
+    /**
+     * Makes the actual requests.
+     */
+    private final Fetcher fetcher;
+
+    /*
+     * A request to be made in the background, and the number of callers
+     * still waiting for it. If they have all gone by the time it would
+     * start, it's abandoned rather than made, and can no longer be
+     * joined.
+     */
+    private static final class Pending
+	    extends CompletableFuture<GeminiResponse> {
+	// callers waiting, or -1 once abandoned
+	private final AtomicInteger waiting = new AtomicInteger(1);
+
+	/*
+	 * Add a caller, unless the request has been abandoned.
+	 */
+	boolean addWaiter() {
+	    int w;
+	    do {
+		w = waiting.get();
+		if (w < 0) {
+		    return false;
+		}
+	    } while (!waiting.compareAndSet(w, w + 1));
+	    return true;
+	}
+
+	/*
+	 * A caller no longer wants the response.
+	 */
+	void removeWaiter() {
+	    waiting.decrementAndGet();
+	}
+
+	/*
+	 * Abandon the request if nobody is waiting for it.
+	 */
+	boolean abandon() {
+	    return waiting.compareAndSet(0, -1);
+	}
+    }
+
+    /*
+     * Makes a request for a url.
+     */
+    @FunctionalInterface
+    interface Fetcher {
+	GeminiResponse fetch(String url) throws IOException;
+    }
+
+    /**
+     * Create a GeminiCoalescer that makes requests with the default
+     * settings.
+     */
+    public GeminiCoalescer() {
+	this(GeminiCoalescer::request);
+    }
+
+    /*
+     * Create a GeminiCoalescer that makes requests with the given
+     * Fetcher.
+     */
+    GeminiCoalescer(final Fetcher fetcher) {
+	this.fetcher = fetcher;
+    }
+
+    /**
+     * Fetch a url, joining a request already in flight for the same url
+     * if there is one. This method blocks until the response arrives.
+     *
+     * @param url the url to fetch
+     *
+     * @return the response
+     *
+     * @throws IOException if the request failed at the connection level
+     */
+    public GeminiResponse fetch(final String url) throws IOException {
+	CompletableFuture<GeminiResponse> mine = new CompletableFuture<>();
+	while (true) {
+	    CompletableFuture<GeminiResponse> existing =
+		inflight.putIfAbsent(url, mine);
+	    if (existing == null) {
+		break;
+	    }
+	    if (join(url, existing)) {
+		return await(existing);
+	    }
+	}
+	try {
+	    GeminiResponse gresp = doFetch(url);
+	    mine.complete(gresp);
+	    return gresp;
+	} catch (IOException | RuntimeException e) {
+	    mine.completeExceptionally(e);
+	    throw e;
+	} finally {
+	    inflight.remove(url, mine);
+	}
+    }
+
+    /**
+     * Fetch a url in the background, joining a request already in
+     * flight for the same url if there is one. A new request is
+     * registered before it's handed to the executor, so that callers
+     * arriving while it waits for a thread share it too.
+     *
+     * <p>Each caller gets its own CompletableFuture, and cancelling it
+     * affects no other caller. A request that every caller has
+     * cancelled before it starts is never made.
+     *
+     * @param url the url to fetch
+     * @param executor runs the request, if a new one is needed
+     *
+     * @return a CompletableFuture that will hold the response, or
+     * complete exceptionally if the request fails at the connection level
+     */
+    public CompletableFuture<GeminiResponse> fetchAsync(final String url,
+						final Executor executor) {
+	Pending mine = new Pending();
+	while (true) {
+	    CompletableFuture<GeminiResponse> existing =
+		inflight.putIfAbsent(url, mine);
+	    if (existing == null) {
+		break;
+	    }
+	    if (join(url, existing)) {
+		return waiter(existing);
+	    }
+	}
+	try {
+	    executor.execute(() -> start(url, mine));
+	} catch (RejectedExecutionException ree) {
+	    inflight.remove(url, mine);
+	    mine.completeExceptionally(ree);
+	}
+	return waiter(mine);
+    }
+
+    /*
+     * Join a request in flight. A background request that was abandoned
+     * can't be joined, and is removed so the caller can try again.
+     */
+    private boolean join(final String url,
+			 final CompletableFuture<GeminiResponse> existing) {
+	if (existing instanceof Pending && !((Pending) existing).addWaiter()) {
+	    inflight.remove(url, existing);
+	    return false;
+	}
+	ncoalesced.incrementAndGet();
+	return true;
+    }
+
+    /*
+     * Give a caller its own view of a request, which it may cancel.
+     */
+    private static CompletableFuture<GeminiResponse> waiter(
+		final CompletableFuture<GeminiResponse> shared) {
+	final CompletableFuture<GeminiResponse> cf = shared.copy();
+	if (shared instanceof Pending) {
+	    cf.whenComplete((r, ex) -> {
+		    if (cf.isCancelled()) {
+			((Pending) shared).removeWaiter();
+		    }
+		});
+	}
+	return cf;
+    }
+
+    /*
+     * Make a background request, unless every caller has gone.
+     */
+    private void start(final String url, final Pending mine) {
+	if (mine.abandon()) {
+	    inflight.remove(url, mine);
+	    mine.cancel(false);
+	    return;
+	}
+	try {
+	    mine.complete(doFetch(url));
+	} catch (IOException | RuntimeException e) {
+	    mine.completeExceptionally(e);
+	} finally {
+	    inflight.remove(url, mine);
+	}
+    }
+
+    /*
+     * Actually make the request.
+     */
+    private GeminiResponse doFetch(final String url) throws IOException {
+	nrequests.incrementAndGet();
+	return fetcher.fetch(url);
+    }
+
+    /*
+     * Make a request with the default settings.
+     */
+    private static GeminiResponse request(final String url)
+	    throws IOException {
+	return complete(new GeminiRequest(url), url);
+    }
+
+    /*
+     * Make a request that has been set up, returning the response.
+     */
+    static GeminiResponse complete(final GeminiRequest greq,
+				   final String url) throws IOException {
+	greq.doConnect();
+	if (greq.getStatus() != GeminiRequest.STAT_SUCCESS) {
+	    throw new IOException(greq.getStatusMsg() == null
+				  ? "Connection failed to " + url
+				  : greq.getStatusMsg());
+	}
+	return greq.getResponse();
+    }
+
+    /*
+     * Wait for another caller's request to complete.
+     */
+    private GeminiResponse await(final CompletableFuture<GeminiResponse> cf)
+		throws IOException {
+	try {
+	    return cf.get();
+	} catch (InterruptedException ie) {
+	    Thread.currentThread().interrupt();
+	    throw new InterruptedIOException("Interrupted waiting for request");
+	} catch (ExecutionException ee) {
+	    Throwable cause = ee.getCause();
+	    if (cause instanceof IOException) {
+		throw (IOException) cause;
+	    }
+	    throw new IOException(cause);
+	}
+    }
+
+    /**
+     * Get the number of requests that were actually made.
+     *
+     * @return the number of requests made
+     */
+    public long requestCount() {
+	return nrequests.get();
+    }
+
+    /**
+     * Get the number of requests that were satisfied by attaching to
+     * a request already in flight.
+     *
+     * @return the number of coalesced requests
+     */
+    public long coalescedCount() {
+	return ncoalesced.get();
+    }
+}
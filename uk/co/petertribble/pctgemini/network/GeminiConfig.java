@@ -0,0 +1,59 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+import java.io.File;
+
+/**
+ * Locate the files pctgemini keeps between runs. Everything lives under
+ * a .pctgemini directory in the user's home directory, unless the
+ * pctgemini.home property names another directory.
+ */
+public final class GeminiConfig {
+
+    /*
+     * This class cannot be instantiated.
+     */
+    private GeminiConfig() {
+    }
+
+    /**
+     * Get the configuration directory, creating it if necessary.
+     *
+     * @return the directory holding pctgemini's files
+     */
+    public static File configDir() {
+	String dir = System.getProperty("pctgemini.home");
+	File f = dir == null
+	    ? new File(System.getProperty("user.home"), ".pctgemini")
+	    : new File(dir);
+	if (!f.isDirectory()) {
+	    f.mkdirs();
+	}
+	return f;
+    }
+
+    /**
+     * Get a file in the configuration directory.
+     *
+     * @param name the name of the file
+     *
+     * @return a File in the configuration directory
+     */
+    public static File configFile(final String name) {
+	return new File(configDir(), name);
+    }
+}
@@ -10,11 +10,15 @@
  * source. A copy of the CDDL is also available via the Internet at
  * http://www.illumos.org/license/CDDL.
  *
- * Copyright 2024 Peter C. Tribble
+ * Copyright 2026 Peter C. Tribble
  */
 
 package uk.co.petertribble.pctgemini.network;
 
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import uk.co.petertribble.pctgemini.gui.GeminiUtils;
 
 /**
@@ -43,6 +47,15 @@ public final class GeminiExample {
 	System.out.println(gresp.minorCode());
 	System.out.println(gresp.metaText());
 	System.out.println(gresp.bodyAsString());
-	System.out.println(GeminiUtils.geminiToHtml(gresp.bodyAsString()));
+	/*
+	 * Stream the html straight out rather than building it in memory.
+	 */
+	Writer w = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+	try {
+	    GeminiUtils.geminiToHtml(gresp.bodyAsReader(), w);
+	    w.flush();
+	} catch (IOException ioe) {
+	    System.err.println(ioe.getMessage());
+	}
     }
 }
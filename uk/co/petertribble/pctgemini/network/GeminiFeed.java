@@ -0,0 +1,220 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A subscription to a gemini feed, which is a gemtext page whose link
+ * lines start with a date, as described in the gemini subscription
+ * companion specification.
+ *
+ * <p>Changes are detected by hashing the title and the link lines, so
+ * a feed whose title and links haven't changed isn't parsed again.
+ */
+public final class GeminiFeed {
+
+    /**
+     * The length of a date at the start of a link.
+     */
+    private static final int DATELEN = 10;
+
+    /**
+     * The url of the feed.
+     */
+    private final String url;
+    /**
+     * The title of the feed, from its first heading.
+     */
+    private volatile String title;
+    /**
+     * The hash of the title and link lines when last fetched.
+     */
+    private volatile long linkHash;
+    /**
+     * The entries in the feed.
+     */
+    private volatile List<GeminiFeedEntry> entries = Collections.emptyList();
+    /**
+     * The result of the last check, for display.
+     */
+    private volatile String status = "Not checked";
+
+    /**
+     * Create a subscription to the feed at the given url.
+     *
+     * @param url the url of the feed
+     */
+    public GeminiFeed(final String url) {
+	this.url = GeminiURL.normalize(url);
+	this.title = this.url;
+    }
+
+    /**
+     * Update the feed from a response.
+     *
+     * @param gresp a response from the feed url
+     *
+     * @return true if the feed's entries have changed
+     */
+    public boolean update(final GeminiResponse gresp) {
+	if (!gresp.hasBody()) {
+	    status = gresp.minorCode() + " " + gresp.metaText();
+	    return false;
+	}
+	status = "OK";
+	long h = GeminiHash.INIT;
+	boolean seenTitle = false;
+	try (BufferedReader br = new BufferedReader(gresp.bodyAsReader())) {
+	    String line;
+	    while ((line = br.readLine()) != null) {
+		// the title is the first heading, as in parse()
+		if ((!seenTitle && line.startsWith("# "))
+			|| line.startsWith("=>")) {
+		    seenTitle |= line.startsWith("# ");
+		    h = GeminiHash.update(h, line);
+		}
+	    }
+	} catch (IOException ioe) {
+	    status = ioe.getMessage();
+	    return false;
+	}
+	if (h == linkHash) {
+	    return false;
+	}
+	linkHash = h;
+	parse(gresp);
+	return true;
+    }
+
+    /**
+     * Record that the feed couldn't be fetched.
+     *
+     * @param msg a description of the failure
+     */
+    public void failed(final String msg) {
+	status = msg;
+    }
+
+    /*
+     * Extract the title and dated links.
+     */
+    private void parse(final GeminiResponse gresp) {
+	List<GeminiFeedEntry> nentries = new ArrayList<>();
+	GeminiURL base;
+	try {
+	    base = GeminiURL.parse(url);
+	} catch (URISyntaxException use) {
+	    return;
+	}
+	boolean seenTitle = false;
+	try (BufferedReader br = new BufferedReader(gresp.bodyAsReader())) {
+	    String line;
+	    while ((line = br.readLine()) != null) {
+		if (!seenTitle && line.startsWith("# ")) {
+		    title = line.substring(2).strip();
+		    seenTitle = true;
+		} else if (line.startsWith("=>")) {
+		    GeminiFeedEntry e = parseLink(base, line);
+		    if (e != null) {
+			nentries.add(e);
+		    }
+		}
+	    }
+	} catch (IOException ioe) {
+	    return;
+	}
+	Collections.sort(nentries);
+	entries = Collections.unmodifiableList(nentries);
+    }
+
+    /*
+     * Parse a link line, returning an entry if the link text starts
+     * with a date.
+     */
+    private GeminiFeedEntry parseLink(final GeminiURL base,
+				      final String line) {
+	String[] ds = line.substring(2).strip().split("\\s+", 2);
+	if (ds.length < 2 || ds[1].length() < DATELEN) {
+	    return null;
+	}
+	LocalDate date;
+	try {
+	    date = LocalDate.parse(ds[1].substring(0, DATELEN));
+	} catch (DateTimeParseException dtpe) {
+	    return null;
+	}
+	String etitle = ds[1].substring(DATELEN).strip();
+	// strip a separator between the date and the title
+	while (!etitle.isEmpty() && "-:".indexOf(etitle.charAt(0)) >= 0) {
+	    etitle = etitle.substring(1).strip();
+	}
+	try {
+	    return new GeminiFeedEntry(date, etitle,
+				       base.resolve(ds[0]).toString(), this);
+	} catch (URISyntaxException use) {
+	    return null;
+	}
+    }
+
+    /**
+     * Get the url of this feed.
+     *
+     * @return the url of the feed
+     */
+    public String getUrl() {
+	return url;
+    }
+
+    /**
+     * Get the title of this feed.
+     *
+     * @return the title of the feed, or its url if it has no title
+     */
+    public String getTitle() {
+	return title;
+    }
+
+    /**
+     * Get the entries in this feed.
+     *
+     * @return an unmodifiable List of entries, newest first
+     */
+    public List<GeminiFeedEntry> getEntries() {
+	return entries;
+    }
+
+    /**
+     * Get the result of the last check of this feed.
+     *
+     * @return a description of the feed's status
+     */
+    public String getStatus() {
+	return status;
+    }
+
+    @Override
+    public String toString() {
+	return title;
+    }
+}
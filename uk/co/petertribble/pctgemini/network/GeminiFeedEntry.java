@@ -0,0 +1,127 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+import java.time.LocalDate;
+
+/**
+ * A dated entry in a gemini feed, taken from a link line whose text
+ * starts with an ISO 8601 date.
+ */
+public final class GeminiFeedEntry implements Comparable<GeminiFeedEntry> {
+
+    /**
+     * The date of the entry.
+     */
+    private final LocalDate date;
+    /**
+     * The title of the entry.
+     */
+    private final String title;
+    /**
+     * The full url of the entry.
+     */
+    private final String url;
+    /**
+     * The feed this entry came from.
+     */
+    private final GeminiFeed feed;
+
+    /**
+     * Create a feed entry.
+     *
+     * @param date the date of the entry
+     * @param title the title of the entry
+     * @param url the full url of the entry
+     * @param feed the feed the entry came from
+     */
+    public GeminiFeedEntry(final LocalDate date, final String title,
+			   final String url, final GeminiFeed feed) {
+	this.date = date;
+	this.title = title;
+	this.url = url;
+	this.feed = feed;
+    }
+
+    /**
+     * Get the date of this entry.
+     *
+     * @return the date of the entry
+     */
+    public LocalDate getDate() {
+	return date;
+    }
+
+    /**
+     * Get the title of this entry.
+     *
+     * @return the title of the entry
+     */
+    public String getTitle() {
+	return title;
+    }
+
+    /**
+     * Get the url of this entry.
+     *
+     * @return the full url of the entry
+     */
+    public String getUrl() {
+	return url;
+    }
+
+    /**
+     * Get the feed this entry came from.
+     *
+     * @return the GeminiFeed holding this entry
+     */
+    public GeminiFeed getFeed() {
+	return feed;
+    }
+
+    /**
+     * Entries sort newest first, then by title, then by url, so that
+     * only equal entries compare as equal.
+     */
+    @Override
+    public int compareTo(final GeminiFeedEntry other) {
+	int c = other.date.compareTo(date);
+	if (c == 0) {
+	    c = title.compareTo(other.title);
+	}
+	return c != 0 ? c : url.compareTo(other.url);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+	if (!(o instanceof GeminiFeedEntry)) {
+	    return false;
+	}
+	GeminiFeedEntry e = (GeminiFeedEntry) o;
+	return date.equals(e.date) && title.equals(e.title)
+	    && url.equals(e.url);
+    }
+
+    @Override
+    public int hashCode() {
+	return url.hashCode() * 31 + date.hashCode();
+    }
+
+    @Override
+    public String toString() {
+	return date + "  " + feed.getTitle() + ": " + title;
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Manage a set of feed subscriptions. Feeds are polled concurrently,
+ * with a limit on the number of simultaneous requests to any one host,
+ * and the entries of all the feeds are merged into a single timeline.
+ *
+ * <p>The list of subscriptions is saved in the configuration directory.
+ */
+public final class GeminiFeedManager {
+
+    /**
+     * The name of the file holding the subscriptions.
+     */
+    private static final String SUBS_FILE = "subscriptions";
+
+    /**
+     * The default number of feeds fetched at once.
+     */
+    private static final int DEFAULT_THREADS = 32;
+
+    /**
+     * The default number of requests to any one host at once.
+     */
+    private static final int DEFAULT_PER_HOST = 2;
+
+    /**
+     * How long to wait to connect to a feed's server, in milliseconds.
+     */
+    private static final int CONNECT_TIMEOUT = 15000;
+
+    /**
+     * How long to wait for data from a feed's server, in milliseconds.
+     */
+    private static final int READ_TIMEOUT = 30000;
+
+    /**
+     * The subscriptions.
+     */
+    private final List<GeminiFeed> feeds = new CopyOnWriteArrayList<>();
+    /**
+     * Called after a refresh that changed the timeline.
+     */
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    /**
+     * The threads fetching feeds.
+     */
+    private final ExecutorService executor;
+    /**
+     * Runs the scheduled refreshes.
+     */
+    private final ScheduledExecutorService scheduler;
+    /**
+     * The maximum number of requests to a host at once.
+     */
+    private final int perHost;
+    /**
+     * The feeds waiting to be fetched from each host, shared by all
+     * refreshes. Guarded by its own lock.
+     */
+    private final Map<String, HostQueue> hostQueues = new HashMap<>();
+    /**
+     * Stops feeds on an unavailable server each waiting to fail.
+     */
+    private final GeminiHostHealth health = new GeminiHostHealth();
+    /**
+     * The scheduled refresh, if any.
+     */
+    private ScheduledFuture<?> scheduled;
+    /**
+     * The refresh started by polling, if any.
+     */
+    private CompletableFuture<Void> polled;
+    /**
+     * The merged entries of all the feeds.
+     */
+    private volatile List<GeminiFeedEntry> timeline = Collections.emptyList();
+
+    /**
+     * Create a feed manager with the default limits, and load the saved
+     * subscriptions.
+     */
+    public GeminiFeedManager() {
+	this(DEFAULT_THREADS, DEFAULT_PER_HOST);
+    }
+
+    /**
+     * Create a feed manager, and load the saved subscriptions.
+     *
+     * @param nthreads the maximum number of feeds fetched at once
+     * @param perHost the maximum number of requests to any one host
+     * at once
+     */
+    public GeminiFeedManager(final int nthreads, final int perHost) {
+	this.perHost = perHost;
+	AtomicInteger tcount = new AtomicInteger();
+	executor = Executors.newFixedThreadPool(nthreads, r -> {
+		Thread t = new Thread(r,
+			"feed-fetch-" + tcount.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	    });
+	scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "feed-scheduler");
+		t.setDaemon(true);
+		return t;
+	    });
+	load();
+    }
+
+    /*
+     * Load the saved subscriptions.
+     */
+    private void load() {
+	File f = GeminiConfig.configFile(SUBS_FILE);
+	if (!f.exists()) {
+	    return;
+	}
+	try {
+	    for (String s : Files.readAllLines(f.toPath(),
+					       StandardCharsets.UTF_8)) {
+		if (!s.isBlank()) {
+		    feeds.add(new GeminiFeed(s.strip()));
+		}
+	    }
+	} catch (IOException ioe) { }
+    }
+
+    /*
+     * Save the subscriptions.
+     */
+    private void save() {
+	List<String> urls = new ArrayList<>();
+	for (GeminiFeed feed : feeds) {
+	    urls.add(feed.getUrl());
+	}
+	try {
+	    Files.write(GeminiConfig.configFile(SUBS_FILE).toPath(), urls,
+			StandardCharsets.UTF_8);
+	} catch (IOException ioe) { }
+    }
+
+    /**
+     * Subscribe to a feed. The feed is fetched immediately.
+     *
+     * @param url the url of the feed
+     *
+     * @return the new subscription, or the existing one if already
+     * subscribed
+     */
+    public GeminiFeed subscribe(final String url) {
+	String nurl = GeminiURL.normalize(url);
+	for (GeminiFeed feed : feeds) {
+	    if (feed.getUrl().equals(nurl)) {
+		return feed;
+	    }
+	}
+	GeminiFeed feed = new GeminiFeed(nurl);
+	feeds.add(feed);
+	save();
+	refresh(List.of(feed));
+	return feed;
+    }
+
+    /**
+     * Remove a subscription.
+     *
+     * @param feed the subscription to remove
+     */
+    public void unsubscribe(final GeminiFeed feed) {
+	if (feeds.remove(feed)) {
+	    save();
+	    rebuildTimeline();
+	}
+    }
+
+    /**
+     * Get the subscriptions.
+     *
+     * @return an unmodifiable List of the subscribed feeds
+     */
+    public List<GeminiFeed> getFeeds() {
+	return Collections.unmodifiableList(feeds);
+    }
+
+    /**
+     * Get the merged entries of all the feeds, newest first.
+     *
+     * @return an unmodifiable List of feed entries
+     */
+    public List<GeminiFeedEntry> getTimeline() {
+	return timeline;
+    }
+
+    /**
+     * Add a listener that's run, on a fetch thread, after a refresh
+     * that changed the timeline.
+     *
+     * @param r the listener
+     */
+    public void addListener(final Runnable r) {
+	listeners.add(r);
+    }
+
+    /**
+     * Refresh every feed.
+     *
+     * @return a CompletableFuture that completes when all the feeds
+     * have been checked
+     */
+    public CompletableFuture<Void> refreshAll() {
+	return refresh(new ArrayList<>(feeds));
+    }
+
+    /**
+     * Start refreshing all the feeds periodically.
+     *
+     * @param delay the time between refreshes, in minutes
+     */
+    public synchronized void startPolling(final long delay) {
+	stopPolling();
+	scheduled = scheduler.scheduleWithFixedDelay(this::poll,
+		delay, delay, TimeUnit.MINUTES);
+    }
+
+    /*
+     * Start a periodic refresh, unless the previous one is still
+     * running. The scheduler thread doesn't wait for the refresh, so
+     * a slow server can't hold up later polls.
+     */
+    private synchronized void poll() {
+	if (polled == null || polled.isDone()) {
+	    polled = refreshAll();
+	}
+    }
+
+    /**
+     * Stop refreshing feeds periodically.
+     */
+    public synchronized void stopPolling() {
+	if (scheduled != null) {
+	    scheduled.cancel(false);
+	    scheduled = null;
+	}
+    }
+
+    /*
+     * The feeds waiting to be fetched from a host, and the number of
+     * tasks working through them.
+     */
+    private static final class HostQueue {
+	private final String host;
+	private final Queue<Job> jobs = new ArrayDeque<>();
+	private int active;
+
+	HostQueue(final String host) {
+	    this.host = host;
+	}
+    }
+
+    /*
+     * A feed to be fetched by a refresh, and the result of fetching it:
+     * true if the feed changed.
+     */
+    private static final class Job {
+	private final GeminiFeed feed;
+	private final CompletableFuture<Boolean> result =
+	    new CompletableFuture<>();
+
+	Job(final GeminiFeed feed) {
+	    this.feed = feed;
+	}
+    }
+
+    /*
+     * Refresh the given feeds. The feeds are queued by host, and each
+     * host has at most perHost tasks, each of which works through that
+     * host's queue, so a host with many feeds neither gets more than
+     * its share of connections nor ties up threads waiting. The queues
+     * are shared, so that this holds even if refreshes overlap.
+     */
+    private CompletableFuture<Void> refresh(final List<GeminiFeed> flist) {
+	List<CompletableFuture<Boolean>> results = new ArrayList<>();
+	synchronized (hostQueues) {
+	    for (GeminiFeed feed : flist) {
+		HostQueue hq = hostQueues.computeIfAbsent(hostOf(feed),
+							  HostQueue::new);
+		Job job = new Job(feed);
+		hq.jobs.add(job);
+		results.add(job.result);
+		if (hq.active < perHost) {
+		    hq.active++;
+		    executor.execute(() -> drain(hq));
+		}
+	    }
+	}
+	return CompletableFuture.allOf(
+		results.toArray(new CompletableFuture<?>[0]))
+	    .thenRun(() -> {
+		    for (CompletableFuture<Boolean> r : results) {
+			if (r.join()) {
+			    rebuildTimeline();
+			    return;
+			}
+		    }
+		});
+    }
+
+    private static String hostOf(final GeminiFeed feed) {
+	try {
+	    GeminiURL gurl = GeminiURL.parse(feed.getUrl());
+	    return gurl.getHost() + ":" + gurl.getPort();
+	} catch (URISyntaxException use) {
+	    return "";
+	}
+    }
+
+    /*
+     * Fetch each feed in a host's queue in turn, until it's empty.
+     */
+    private void drain(final HostQueue hq) {
+	while (true) {
+	    Job job;
+	    synchronized (hostQueues) {
+		job = hq.jobs.poll();
+		if (job == null) {
+		    if (--hq.active == 0) {
+			hostQueues.remove(hq.host);
+		    }
+		    return;
+		}
+	    }
+	    boolean changed = false;
+	    try {
+		changed = fetch(job.feed);
+	    } finally {
+		job.result.complete(changed);
+	    }
+	}
+    }
+
+    /*
+     * Fetch a feed, returning true if it changed.
+     */
+    private boolean fetch(final GeminiFeed feed) {
+	try {
+	    GeminiURL gurl = GeminiURL.parse(feed.getUrl());
+	    GeminiRequest greq = new GeminiRequest(gurl);
+	    greq.setTimeouts(CONNECT_TIMEOUT, READ_TIMEOUT);
+	    return feed.update(health.request(gurl, greq, 0));
+	} catch (URISyntaxException | IOException e) {
+	    feed.failed(e.getMessage());
+	    return false;
+	}
+    }
+
+    /*
+     * Merge the entries of all the feeds, and tell the listeners.
+     */
+    private void rebuildTimeline() {
+	List<GeminiFeedEntry> merged = new ArrayList<>();
+	for (GeminiFeed feed : feeds) {
+	    merged.addAll(feed.getEntries());
+	}
+	Collections.sort(merged);
+	timeline = Collections.unmodifiableList(merged);
+	for (Runnable r : listeners) {
+	    r.run();
+	}
+    }
+}
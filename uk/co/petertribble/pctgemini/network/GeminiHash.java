@@ -0,0 +1,97 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+/**
+ * A fast, non-cryptographic, 64-bit hash (FNV-1a) used to detect
+ * changed content. Equal hashes don't guarantee equal content, so
+ * anything that matters must be confirmed by comparing the content.
+ */
+public final class GeminiHash {
+
+    /**
+     * The initial value of a hash.
+     */
+    public static final long INIT = 0xcbf29ce484222325L;
+
+    /**
+     * The FNV 64-bit prime.
+     */
+    private static final long PRIME = 0x100000001b3L;
+
+    /*
+     * This class cannot be instantiated.
+     */
+    private GeminiHash() {
+    }
+
+    /**
+     * Add a byte to a hash.
+     *
+     * @param h the hash so far
+     * @param b the byte to add
+     *
+     * @return the updated hash
+     */
+    public static long update(final long h, final byte b) {
+	return (h ^ (b & 0xff)) * PRIME;
+    }
+
+    /**
+     * Add the characters of a String to a hash.
+     *
+     * @param h the hash so far
+     * @param s the characters to add
+     *
+     * @return the updated hash
+     */
+    public static long update(final long h, final CharSequence s) {
+	long r = h;
+	for (int i = 0; i < s.length(); i++) {
+	    char c = s.charAt(i);
+	    r = (r ^ (c & 0xff)) * PRIME;
+	    r = (r ^ (c >>> 8)) * PRIME;
+	}
+	return r;
+    }
+
+    /**
+     * Hash a byte array.
+     *
+     * @param b the bytes to hash
+     *
+     * @return the hash of the array
+     */
+    public static long hash(final byte[] b) {
+	long r = INIT;
+	for (byte x : b) {
+	    r = (r ^ (x & 0xff)) * PRIME;
+	}
+	return r;
+    }
+
+    /**
+     * Format a hash as 16 hex digits, suitable for a file name.
+     *
+     * @param h the hash
+     *
+     * @return the hash as a String
+     */
+    public static String toHex(final long h) {
+	String s = Long.toHexString(h);
+	return "0000000000000000".substring(s.length()) + s;
+    }
+}
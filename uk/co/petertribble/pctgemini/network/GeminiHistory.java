@@ -0,0 +1,415 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The pages visited and the bookmarks, kept in the configuration
+ * directory, with an index that suggests urls starting with whatever has
+ * been typed so far.
+ *
+ * <p>Urls are held in a sorted map keyed by the url without its
+ * "gemini://" prefix, so the candidates for a prefix are a contiguous
+ * range that can be found without a search of the whole history. The
+ * candidates are ranked by how often and how recently they were
+ * visited, with bookmarks first. The map is safe to read while
+ * it's being updated, so lookups can run on any thread without locking.
+ *
+ * <p>Visits are appended to a journal, which is compacted when it's
+ * loaded if it has grown much larger than the history itself. All the
+ * file handling is done on a single background thread, in order.
+ */
+public final class GeminiHistory {
+
+    /**
+     * The name of the file holding the visits.
+     */
+    private static final String HISTORY_FILE = "history";
+
+    /**
+     * The name of the file holding the bookmarks.
+     */
+    private static final String BOOKMARKS_FILE = "bookmarks";
+
+    /**
+     * The prefix left out of the index keys.
+     */
+    private static final String SCHEME = "gemini://";
+
+    /**
+     * The time for the weight of a visit to halve, in milliseconds.
+     */
+    private static final double HALF_LIFE = 14.0 * 24 * 3600 * 1000;
+
+    /**
+     * Added to the rank of bookmarks, so they come first.
+     */
+    private static final double BOOKMARK_RANK = 1.0e9;
+
+    /**
+     * The directory holding the files.
+     */
+    private final File dir;
+    /**
+     * The urls, keyed by the url without the scheme.
+     */
+    private final ConcurrentNavigableMap<String, Entry> index =
+	new ConcurrentSkipListMap<>();
+    /**
+     * The bookmarks, mapping url to title, in the order they were added.
+     */
+    private final Map<String, String> bookmarks = new LinkedHashMap<>();
+    /**
+     * Does the file handling.
+     */
+    private final ExecutorService writer =
+	Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "history-writer");
+		t.setDaemon(true);
+		return t;
+	    });
+
+    /*
+     * A url, with its number of visits, the time of the last visit, and
+     * whether it's bookmarked. Entries are replaced rather than modified,
+     * so a reader always sees a consistent one.
+     */
+    private static final class Entry {
+	private final String url;
+	private final int count;
+	private final long last;
+	private final boolean bookmarked;
+	private final double rank;
+
+	/*
+	 * The weight of the visits decays over time, so the score
+	 * count * 0.5^((now - last) / HALF_LIFE) ranks the urls. The rank
+	 * is the log of that, plus a constant so it doesn't depend on the
+	 * current time, which lets it be worked out once here rather
+	 * than for every candidate of every lookup.
+	 */
+	Entry(final String url, final int count, final long last,
+	      final boolean bookmarked) {
+	    this.url = url;
+	    this.count = count;
+	    this.last = last;
+	    this.bookmarked = bookmarked;
+	    double r = count > 0 ? Math.log(count) / Math.log(2)
+		+ last / HALF_LIFE : 0.0;
+	    rank = bookmarked ? r + BOOKMARK_RANK : r;
+	}
+
+	Entry merge(final Entry e) {
+	    return new Entry(url, count + e.count, Math.max(last, e.last),
+			     bookmarked || e.bookmarked);
+	}
+
+	Entry bookmark(final boolean b) {
+	    return new Entry(url, count, last, b);
+	}
+    }
+
+    /**
+     * Create a history kept in the configuration directory.
+     */
+    public GeminiHistory() {
+	this(GeminiConfig.configDir());
+    }
+
+    /**
+     * Create a history kept in the given directory.
+     *
+     * @param dir the directory to keep the history and bookmarks in
+     */
+    public GeminiHistory(final File dir) {
+	this.dir = dir;
+    }
+
+    /**
+     * Load the saved history and bookmarks in the background. Visits
+     * and bookmarks added in the meantime are kept, and are saved after
+     * the load.
+     */
+    public void loadAsync() {
+	writer.execute(this::load);
+    }
+
+    /**
+     * Load the saved history and bookmarks, waiting for the load to
+     * finish.
+     */
+    public void load() {
+	loadBookmarks();
+	File f = new File(dir, HISTORY_FILE);
+	if (!f.exists()) {
+	    return;
+	}
+	Map<String, Entry> loaded = new HashMap<>();
+	int lines = 0;
+	try (BufferedReader br = Files.newBufferedReader(f.toPath(),
+						StandardCharsets.UTF_8)) {
+	    String s;
+	    while ((s = br.readLine()) != null) {
+		lines++;
+		int t1 = s.indexOf('\t');
+		int t2 = s.indexOf('\t', t1 + 1);
+		if (t1 > 0 && t2 > t1) {
+		    try {
+			String url = s.substring(t2 + 1);
+			loaded.merge(url,
+			    new Entry(url, Integer.parseInt(s, 0, t1, 10),
+				      Long.parseLong(s, t1 + 1, t2, 10),
+				      false), Entry::merge);
+		    } catch (NumberFormatException nfe) { }
+		}
+	    }
+	} catch (IOException ioe) {
+	    return;
+	}
+	// if most of the journal is repeat visits, rewrite it
+	if (lines > 2 * loaded.size() + 1000) {
+	    compact(loaded.values());
+	}
+	for (Entry e : loaded.values()) {
+	    add(e.url, e);
+	}
+    }
+
+    private void loadBookmarks() {
+	File f = new File(dir, BOOKMARKS_FILE);
+	if (!f.exists()) {
+	    return;
+	}
+	try {
+	    for (String s : Files.readAllLines(f.toPath(),
+					       StandardCharsets.UTF_8)) {
+		int tab = s.indexOf('\t');
+		String url = tab < 0 ? s.strip() : s.substring(0, tab);
+		if (!url.isEmpty()) {
+		    synchronized (bookmarks) {
+			bookmarks.putIfAbsent(url,
+				tab < 0 ? url : s.substring(tab + 1));
+		    }
+		    add(url, new Entry(url, 0, 0, true));
+		}
+	    }
+	} catch (IOException ioe) { }
+    }
+
+    /*
+     * Add an entry to the index, merging with any existing entry.
+     */
+    private void add(final String url, final Entry e) {
+	index.merge(key(url), e, Entry::merge);
+    }
+
+    private static String key(final String s) {
+	return s.startsWith(SCHEME) ? s.substring(SCHEME.length()) : s;
+    }
+
+    /*
+     * Rewrite the journal with one line per url.
+     */
+    private void compact(final Collection<Entry> entries) {
+	File tmp = new File(dir, HISTORY_FILE + ".tmp");
+	try (Writer w = Files.newBufferedWriter(tmp.toPath(),
+						StandardCharsets.UTF_8)) {
+	    for (Entry e : entries) {
+		w.write(e.count + "\t" + e.last + "\t" + e.url + "\n");
+	    }
+	} catch (IOException ioe) {
+	    return;
+	}
+	try {
+	    Files.move(tmp.toPath(), new File(dir, HISTORY_FILE).toPath(),
+		       StandardCopyOption.REPLACE_EXISTING,
+		       StandardCopyOption.ATOMIC_MOVE);
+	} catch (IOException ioe) { }
+    }
+
+    /**
+     * Record a visit to a url.
+     *
+     * @param url the url visited
+     */
+    public void visit(final String url) {
+	final long now = System.currentTimeMillis();
+	add(url, new Entry(url, 1, now, false));
+	final String line = "1\t" + now + "\t" + url + "\n";
+	writer.execute(() -> {
+		try {
+		    Files.write(new File(dir, HISTORY_FILE).toPath(),
+				line.getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND);
+		} catch (IOException ioe) { }
+	    });
+    }
+
+    /**
+     * Get the urls starting with the given text, best first. The text
+     * may leave out the "gemini://" prefix.
+     *
+     * @param prefix the text typed so far
+     * @param max the maximum number of urls returned
+     *
+     * @return a List of matching urls
+     */
+    public List<String> complete(final String prefix, final int max) {
+	String p = key(prefix.strip());
+	if (p.isEmpty() || max <= 0) {
+	    return Collections.emptyList();
+	}
+	// the best matches found so far, best first
+	Entry[] best = new Entry[max];
+	double[] scores = new double[max];
+	int n = 0;
+	for (Entry e : index.subMap(p, true, p + Character.MAX_VALUE, false)
+		 .values()) {
+	    double score = e.rank;
+	    if (n == max && score <= scores[n - 1]) {
+		continue;
+	    }
+	    int i = n < max ? n++ : n - 1;
+	    while (i > 0 && scores[i - 1] < score) {
+		best[i] = best[i - 1];
+		scores[i] = scores[i - 1];
+		i--;
+	    }
+	    best[i] = e;
+	    scores[i] = score;
+	}
+	List<String> urls = new ArrayList<>(n);
+	for (int i = 0; i < n; i++) {
+	    urls.add(best[i].url);
+	}
+	return urls;
+    }
+
+    /**
+     * Get the number of urls in the history and bookmarks.
+     *
+     * @return the number of urls known
+     */
+    public int size() {
+	return index.size();
+    }
+
+    /**
+     * Add a bookmark.
+     *
+     * @param url the url to bookmark
+     * @param title the title of the bookmark
+     */
+    public void addBookmark(final String url, final String title) {
+	synchronized (bookmarks) {
+	    bookmarks.put(url, title);
+	}
+	add(url, new Entry(url, 0, System.currentTimeMillis(), true));
+	writer.execute(this::saveBookmarks);
+    }
+
+    /**
+     * Remove a bookmark.
+     *
+     * @param url the url no longer to be bookmarked
+     */
+    public void removeBookmark(final String url) {
+	synchronized (bookmarks) {
+	    if (bookmarks.remove(url) == null) {
+		return;
+	    }
+	}
+	index.computeIfPresent(key(url), (k, e) -> e.count > 0
+			       ? e.bookmark(false) : null);
+	writer.execute(this::saveBookmarks);
+    }
+
+    /**
+     * Get whether a url is bookmarked.
+     *
+     * @param url the url to check
+     *
+     * @return true if the url is bookmarked
+     */
+    public boolean isBookmarked(final String url) {
+	synchronized (bookmarks) {
+	    return bookmarks.containsKey(url);
+	}
+    }
+
+    /**
+     * Get the bookmarks.
+     *
+     * @return a Map of bookmarked url to title, in the order they were
+     * added
+     */
+    public Map<String, String> getBookmarks() {
+	synchronized (bookmarks) {
+	    return new LinkedHashMap<>(bookmarks);
+	}
+    }
+
+    /*
+     * Save the bookmarks.
+     */
+    private void saveBookmarks() {
+	List<String> lines = new ArrayList<>();
+	for (Map.Entry<String, String> me : getBookmarks().entrySet()) {
+	    lines.add(me.getKey() + "\t" + me.getValue().replace('\t', ' '));
+	}
+	File tmp = new File(dir, BOOKMARKS_FILE + ".tmp");
+	try {
+	    Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+	    Files.move(tmp.toPath(), new File(dir, BOOKMARKS_FILE).toPath(),
+		       StandardCopyOption.REPLACE_EXISTING,
+		       StandardCopyOption.ATOMIC_MOVE);
+	} catch (IOException ioe) { }
+    }
+
+    /**
+     * Finish writing any visits and bookmarks not yet saved. Nothing
+     * more can be recorded afterwards.
+     */
+    public void close() {
+	writer.shutdown();
+	try {
+	    writer.awaitTermination(5, TimeUnit.SECONDS);
+	} catch (InterruptedException ie) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+}
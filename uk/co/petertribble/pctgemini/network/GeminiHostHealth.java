@@ -0,0 +1,332 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URISyntaxException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of which servers can't be reached or have asked for fewer
+ * requests, so that requests to them can wait or fail at once rather
+ * than tying up a thread and a socket.
+ *
+ * <p>If a server can't be connected to, requests to it are held back
+ * for a time that starts at 2 seconds and doubles with each further
+ * failure, up to 10 minutes. Once that time has passed, one request is
+ * let through to try the server again, and the others wait until it
+ * has finished. If a server answers 44 SLOW DOWN, requests to it are
+ * held back for the number of seconds it gives.
+ *
+ * <p>Permanent failures (5x responses) are remembered for each url, so
+ * asking again soon gets the same answer without a request. A 52 GONE
+ * is remembered for an hour, and other permanent failures for a
+ * minute.
+ */
+public final class GeminiHostHealth {
+
+    /**
+     * The time requests are held back after the first connect failure,
+     * in milliseconds.
+     */
+    private static final long BASE_BACKOFF = 2000;
+
+    /**
+     * The longest time requests are held back after connect failures,
+     * in milliseconds.
+     */
+    private static final long MAX_BACKOFF = 10L * 60 * 1000;
+
+    /**
+     * The wait assumed if a 44 response doesn't give one, in seconds.
+     */
+    private static final long DEFAULT_SLOWDOWN = 5;
+
+    /**
+     * The longest wait accepted from a 44 response, in seconds.
+     */
+    private static final long MAX_SLOWDOWN = 3600;
+
+    /**
+     * How long a 52 GONE response is remembered, in milliseconds.
+     */
+    private static final long GONE_TTL = 3600L * 1000;
+
+    /**
+     * How long other permanent failures are remembered, in milliseconds.
+     */
+    private static final long PERMFAIL_TTL = 60L * 1000;
+
+    /**
+     * The most permanent failures remembered.
+     */
+    private static final int MAX_FAILURES = 1024;
+
+    /**
+     * The state of each server, keyed by host and port.
+     */
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * The permanent failures, keyed by url, least recently added first.
+     */
+    private final Map<String, Failure> failures =
+	new LinkedHashMap<String, Failure>() {
+	    private static final long serialVersionUID = 1L;
+
+	    @Override
+	    protected boolean removeEldestEntry(
+			final Map.Entry<String, Failure> eldest) {
+		return size() > MAX_FAILURES;
+	    }
+	};
+
+    /*
+     * The state of a server. Threads waiting for the server to become
+     * available wait on this object, and are notified when its state
+     * changes.
+     */
+    private static final class Host {
+	private final String name;
+	// consecutive connect failures
+	private int nfailed;
+	// requests are held back until this nanoTime
+	private long until;
+	// whether a request is trying the server after connect failures
+	private boolean probing;
+	// why requests are being held back
+	private String reason = "";
+
+	Host(final String name) {
+	    this.name = name;
+	    until = System.nanoTime();
+	}
+    }
+
+    /*
+     * A permanent failure, and when it expires.
+     */
+    private static final class Failure {
+	private final GeminiResponse response;
+	private final long expires;
+
+	Failure(final GeminiResponse response, final long expires) {
+	    this.response = response;
+	    this.expires = expires;
+	}
+    }
+
+    /**
+     * Create an empty GeminiHostHealth, with every server assumed to be
+     * available.
+     */
+    public GeminiHostHealth() {
+    }
+
+    private Host host(final GeminiURL gurl) {
+	String name = gurl.getHost() + ":" + gurl.getPort();
+	return hosts.computeIfAbsent(name, Host::new);
+    }
+
+    /*
+     * Make a request, unless the server is known to be unavailable or
+     * the url to have failed permanently. If the server is being held
+     * back, wait for up to maxWait milliseconds for it to become
+     * available, and fail if that isn't long enough. The outcome is
+     * recorded.
+     */
+    GeminiResponse request(final GeminiURL gurl, final GeminiRequest greq,
+			   final long maxWait) throws IOException {
+	if (!gurl.isGemini() || gurl.getHost() == null) {
+	    return GeminiCoalescer.complete(greq, gurl.toString());
+	}
+	GeminiResponse gresp = cachedFailure(gurl.toString());
+	if (gresp != null) {
+	    return gresp;
+	}
+	Host h = host(gurl);
+	admit(h, maxWait);
+	try {
+	    gresp = GeminiCoalescer.complete(greq, gurl.toString());
+	} catch (IOException | RuntimeException e) {
+	    failed(h, e instanceof IOException && greq.isConnectFailure(),
+		   e.getMessage());
+	    throw e;
+	}
+	succeeded(h, gurl.toString(), gresp);
+	return gresp;
+    }
+
+    /*
+     * Wait until the server may be sent a request.
+     */
+    private static void admit(final Host h, final long maxWait)
+	    throws IOException {
+	long start = System.nanoTime();
+	long maxNanos = TimeUnit.MILLISECONDS.toNanos(maxWait);
+	synchronized (h) {
+	    while (true) {
+		long now = System.nanoTime();
+		if (now - h.until >= 0) {
+		    if (h.nfailed == 0) {
+			return;
+		    }
+		    if (!h.probing) {
+			// this request tries the server again
+			h.probing = true;
+			return;
+		    }
+		}
+		// wait for the hold to end, or for the probe to finish
+		long wait = now - h.until < 0 ? h.until - now : -1;
+		long remaining = maxNanos - (now - start);
+		if (remaining <= 0 || wait > remaining) {
+		    throw new IOException(h.name + " unavailable: "
+			+ h.reason + (wait > 0 ? ", retry in "
+				      + (wait / 1_000_000_000 + 1) + "s" : ""));
+		}
+		try {
+		    TimeUnit.NANOSECONDS.timedWait(h,
+			wait < 0 ? remaining : Math.min(wait, remaining));
+		} catch (InterruptedException ie) {
+		    Thread.currentThread().interrupt();
+		    throw new InterruptedIOException("Interrupted waiting for "
+						     + h.name);
+		}
+	    }
+	}
+    }
+
+    /*
+     * Record a request that got a response.
+     */
+    private void succeeded(final Host h, final String url,
+			   final GeminiResponse gresp) {
+	synchronized (h) {
+	    h.nfailed = 0;
+	    h.probing = false;
+	    if (gresp.minorCode() == 44) {
+		long secs;
+		try {
+		    secs = Long.parseLong(gresp.metaText().strip());
+		} catch (NumberFormatException nfe) {
+		    secs = DEFAULT_SLOWDOWN;
+		}
+		secs = Math.min(Math.max(secs, 1), MAX_SLOWDOWN);
+		long until = System.nanoTime()
+		    + TimeUnit.SECONDS.toNanos(secs);
+		if (until - h.until > 0) {
+		    h.until = until;
+		}
+		h.reason = "asked to slow down";
+	    }
+	    h.notifyAll();
+	}
+	if (gresp.majorCode() == GeminiResponse.RES_PERMFAIL) {
+	    long ttl = gresp.minorCode() == 52 ? GONE_TTL : PERMFAIL_TTL;
+	    synchronized (failures) {
+		failures.put(url, new Failure(gresp,
+			System.currentTimeMillis() + ttl));
+	    }
+	}
+    }
+
+    /*
+     * Record a request that failed. If it couldn't connect, hold back
+     * further requests for longer each time.
+     */
+    private static void failed(final Host h, final boolean connect,
+			       final String msg) {
+	synchronized (h) {
+	    h.probing = false;
+	    if (connect) {
+		h.nfailed++;
+		long backoff = Math.min(MAX_BACKOFF,
+				BASE_BACKOFF << Math.min(h.nfailed - 1, 20));
+		h.until = System.nanoTime()
+		    + TimeUnit.MILLISECONDS.toNanos(backoff);
+		h.reason = msg == null ? "connection failed" : msg;
+	    }
+	    h.notifyAll();
+	}
+    }
+
+    /*
+     * Get the remembered permanent failure for a url, if there is one.
+     */
+    private GeminiResponse cachedFailure(final String url) {
+	synchronized (failures) {
+	    Failure f = failures.get(url);
+	    if (f == null) {
+		return null;
+	    }
+	    if (System.currentTimeMillis() > f.expires) {
+		failures.remove(url);
+		return null;
+	    }
+	    return f.response;
+	}
+    }
+
+    /**
+     * Get how long it will be before a request to the server for a url
+     * will be made. If the server is being tried again after failing, a
+     * request would wait for that to finish, so this returns 0 even
+     * though the request may then be held back again.
+     *
+     * @param url the url to be requested
+     *
+     * @return the time until the server may be sent a request, in
+     * milliseconds, or 0 if it may be sent one now
+     */
+    public long getRetryDelay(final String url) {
+	Host h;
+	try {
+	    GeminiURL gurl = GeminiURL.parse(url);
+	    h = hosts.get(gurl.getHost() + ":" + gurl.getPort());
+	} catch (URISyntaxException use) {
+	    return 0;
+	}
+	if (h == null) {
+	    return 0;
+	}
+	synchronized (h) {
+	    return Math.max(0, TimeUnit.NANOSECONDS.toMillis(
+				h.until - System.nanoTime()));
+	}
+    }
+
+    /**
+     * Forget everything, so that every server is assumed to be
+     * available and no failures are remembered.
+     */
+    public void clear() {
+	for (Host h : hosts.values()) {
+	    synchronized (h) {
+		h.nfailed = 0;
+		h.until = System.nanoTime();
+		h.notifyAll();
+	    }
+	}
+	synchronized (failures) {
+	    failures.clear();
+	}
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records the details of recent requests, for the network inspector.
+ * Recording is off unless enabled, and then the only cost to a request
+ * is checking a flag. When enabled, completed requests are written into
+ * a fixed size ring buffer without locking, so requests never wait for
+ * each other or for a reader, and the oldest records are overwritten.
+ */
+public final class GeminiInspector {
+
+    /**
+     * The number of records kept, which must be a power of 2.
+     */
+    private static final int SIZE = 1024;
+
+    /**
+     * The ring buffer of records.
+     */
+    private static final AtomicReferenceArray<GeminiRequestRecord> RING =
+	new AtomicReferenceArray<>(SIZE);
+
+    /**
+     * The sequence number of the next record.
+     */
+    private static final AtomicLong NEXT = new AtomicLong();
+
+    /**
+     * Whether requests are being recorded.
+     */
+    private static volatile boolean enabled;
+
+    /*
+     * This class cannot be instantiated.
+     */
+    private GeminiInspector() {
+    }
+
+    /**
+     * Get whether requests are being recorded.
+     *
+     * @return true if requests are being recorded
+     */
+    public static boolean isEnabled() {
+	return enabled;
+    }
+
+    /**
+     * Turn recording on or off.
+     *
+     * @param enable true to record requests
+     */
+    public static void setEnabled(final boolean enable) {
+	enabled = enable;
+    }
+
+    /*
+     * Start a record for a request, if recording is enabled.
+     */
+    static GeminiRequestRecord start(final String url) {
+	return enabled ? new GeminiRequestRecord(url) : null;
+    }
+
+    /*
+     * Publish a completed record.
+     */
+    static void record(final GeminiRequestRecord rec) {
+	long seq = NEXT.getAndIncrement();
+	rec.setSeq(seq);
+	RING.set((int) (seq & (SIZE - 1)), rec);
+    }
+
+    /*
+     * Record a request answered from the cache, if recording is enabled.
+     */
+    static void recordHit(final String url, final GeminiResponse gresp) {
+	if (enabled) {
+	    GeminiRequestRecord rec = new GeminiRequestRecord(url);
+	    rec.cacheHit(gresp);
+	    record(rec);
+	}
+    }
+
+    /**
+     * Get the number of records published so far, which is also the
+     * sequence number the next record will have.
+     *
+     * @return the number of records published
+     */
+    public static long count() {
+	return NEXT.get();
+    }
+
+    /**
+     * Get the records published since the given sequence number, oldest
+     * first. If more records than the buffer holds have been published
+     * since, the oldest have been lost. To fetch new records, pass one
+     * more than the sequence number of the last record returned.
+     *
+     * @param seq the sequence number of the first record wanted
+     *
+     * @return a List of records
+     */
+    public static List<GeminiRequestRecord> since(final long seq) {
+	long end = NEXT.get();
+	List<GeminiRequestRecord> recs = new ArrayList<>();
+	for (long i = Math.max(seq, end - SIZE); i < end; i++) {
+	    GeminiRequestRecord rec = RING.get((int) (i & (SIZE - 1)));
+	    if (rec == null || rec.getSeq() < i) {
+		// claimed but not yet written, so nothing later is complete
+		break;
+	    }
+	    if (rec.getSeq() == i) {
+		recs.add(rec);
+	    }
+	}
+	return recs;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The MIME type of a successful response, parsed from the meta text, for
+ * example "text/gemini; charset=utf-8; lang=en". The type and subtype are
+ * case-insensitive and are held in lower case, as are parameter names.
+ * As the gemini specification requires, an empty meta text is taken to
+ * mean "text/gemini; charset=utf-8", and text is assumed to be utf-8
+ * unless a charset is given.
+ */
+public final class GeminiMimeType {
+
+    /**
+     * The type assumed if a response doesn't give one.
+     */
+    public static final String DEFAULT_TYPE = "text/gemini";
+
+    private final String type;
+    private final String subtype;
+    private final Map<String, String> params;
+
+    private GeminiMimeType(final String type, final String subtype,
+			   final Map<String, String> params) {
+	this.type = type;
+	this.subtype = subtype;
+	this.params = params;
+    }
+
+    /**
+     * Parse a MIME type. Anything that isn't of the form type/subtype is
+     * treated as application/octet-stream, and malformed parameters are
+     * ignored.
+     *
+     * @param meta the meta text of a response
+     *
+     * @return the parsed GeminiMimeType
+     */
+    public static GeminiMimeType parse(final String meta) {
+	String s = meta == null ? "" : meta.strip();
+	if (s.isEmpty()) {
+	    return new GeminiMimeType("text", "gemini",
+				      Collections.emptyMap());
+	}
+	int semi = s.indexOf(';');
+	String base = (semi < 0 ? s : s.substring(0, semi)).strip()
+	    .toLowerCase(Locale.ROOT);
+	int slash = base.indexOf('/');
+	if (slash <= 0 || slash == base.length() - 1) {
+	    return new GeminiMimeType("application", "octet-stream",
+				      Collections.emptyMap());
+	}
+	Map<String, String> params = Collections.emptyMap();
+	while (semi >= 0) {
+	    int next = s.indexOf(';', semi + 1);
+	    String p = next < 0 ? s.substring(semi + 1)
+		: s.substring(semi + 1, next);
+	    int eq = p.indexOf('=');
+	    if (eq > 0) {
+		if (params.isEmpty()) {
+		    params = new HashMap<>();
+		}
+		params.put(p.substring(0, eq).strip().toLowerCase(Locale.ROOT),
+			   unquote(p.substring(eq + 1).strip()));
+	    }
+	    semi = next;
+	}
+	return new GeminiMimeType(base.substring(0, slash),
+				  base.substring(slash + 1), params);
+    }
+
+    private static String unquote(final String s) {
+	if (s.length() > 1 && s.charAt(0) == '"'
+		&& s.charAt(s.length() - 1) == '"') {
+	    return s.substring(1, s.length() - 1);
+	}
+	return s;
+    }
+
+    /**
+     * Get the top-level type, such as "text" or "image".
+     *
+     * @return the type
+     */
+    public String getType() {
+	return type;
+    }
+
+    /**
+     * Get the subtype, such as "gemini" or "png".
+     *
+     * @return the subtype
+     */
+    public String getSubtype() {
+	return subtype;
+    }
+
+    /**
+     * Get the type and subtype without any parameters, such as
+     * "text/gemini".
+     *
+     * @return the base type
+     */
+    public String getBaseType() {
+	return type + "/" + subtype;
+    }
+
+    /**
+     * Get whether this is the given base type.
+     *
+     * @param base a type and subtype, such as "text/gemini"
+     *
+     * @return true if this type matches, ignoring parameters
+     */
+    public boolean is(final String base) {
+	int len = type.length();
+	return base.length() == len + 1 + subtype.length()
+	    && base.regionMatches(true, 0, type, 0, len)
+	    && base.charAt(len) == '/'
+	    && base.regionMatches(true, len + 1, subtype, 0, subtype.length());
+    }
+
+    /**
+     * Get a parameter.
+     *
+     * @param name the name of the parameter, such as "lang"
+     *
+     * @return the value of the parameter, or null if it isn't present
+     */
+    public String getParameter(final String name) {
+	return params.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Get the character set of a text type. If there's no charset
+     * parameter, or it names a character set that isn't supported,
+     * utf-8 is assumed.
+     *
+     * @return the Charset to decode the body with
+     */
+    public Charset getCharset() {
+	String cs = params.get("charset");
+	if (cs != null) {
+	    try {
+		return Charset.forName(cs);
+	    } catch (IllegalCharsetNameException
+		     | UnsupportedCharsetException e) { }
+	}
+	return StandardCharsets.UTF_8;
+    }
+
+    @Override
+    public String toString() {
+	StringBuilder sb = new StringBuilder(getBaseType());
+	for (Map.Entry<String, String> me : params.entrySet()) {
+	    sb.append("; ").append(me.getKey()).append('=')
+		.append(me.getValue());
+	}
+	return sb.toString();
+    }
+}
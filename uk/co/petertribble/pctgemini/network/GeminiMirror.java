@@ -0,0 +1,657 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mirror a capsule to a local directory for offline reading. Starting
+ * from a root url, every page at or below the root's directory on the
+ * same host is fetched, using a bounded number of threads, and written
+ * into the output directory. Links between mirrored pages are rewritten
+ * as relative links, so the local copy can be browsed as file: urls.
+ *
+ * <p>Progress is recorded in a journal under the .mirror directory of
+ * the output directory: a line is appended when a url is queued and
+ * when it has been saved. If a mirror is interrupted, running it again
+ * replays the journal and carries on with the urls that were queued but
+ * not finished. When a mirror completes, the hash of every page is
+ * saved, and a later mirror doesn't rewrite pages that haven't changed.
+ *
+ * <p>Directories are saved as index.gmi, and pages whose name has no
+ * extension are assumed to be gemtext and saved with .gmi added. Urls
+ * with a query are not mirrored.
+ */
+public final class GeminiMirror {
+
+    /**
+     * The default number of pages fetched at once.
+     */
+    private static final int DEFAULT_THREADS = 4;
+
+    /**
+     * How many times to retry a request that was asked to slow down.
+     */
+    private static final int MAX_RETRIES = 3;
+
+    /**
+     * The longest we'll wait when asked to slow down, in seconds.
+     */
+    private static final int MAX_WAIT = 60;
+
+    /**
+     * How long to wait to connect to a server, in milliseconds.
+     */
+    private static final int CONNECT_TIMEOUT = 15000;
+
+    /**
+     * How long to wait for data from a server, in milliseconds.
+     */
+    private static final int READ_TIMEOUT = 30000;
+
+    /**
+     * The directory, within the output directory, holding the state.
+     */
+    private static final String STATE_DIR = ".mirror";
+
+    /**
+     * The name of the journal file.
+     */
+    private static final String JOURNAL_FILE = "journal";
+
+    /**
+     * The name of the file holding page hashes from the last mirror.
+     */
+    private static final String HASH_FILE = "hashes";
+
+    /**
+     * The name given to directory pages.
+     */
+    private static final String INDEX_PAGE = "index.gmi";
+
+    /**
+     * The url the mirror starts from.
+     */
+    private final GeminiURL root;
+    /**
+     * Urls must be below this path to be mirrored.
+     */
+    private final String scopePath;
+    /**
+     * The directory the mirror is written to.
+     */
+    private final File outdir;
+    /**
+     * The directory holding the journal and hashes.
+     */
+    private final File statedir;
+    /**
+     * The number of pages fetched at once.
+     */
+    private final int nthreads;
+    /**
+     * Every url that has been queued.
+     */
+    private final Set<String> seen = new HashSet<>();
+    /**
+     * The hashes of pages saved by the last complete mirror.
+     */
+    private final Map<String, String> oldHashes = new HashMap<>();
+    /**
+     * The hashes of pages saved by this mirror.
+     */
+    private final Map<String, String> newHashes = new ConcurrentHashMap<>();
+    /**
+     * The journal of progress.
+     */
+    private Writer journal;
+    /**
+     * The threads fetching pages.
+     */
+    private ExecutorService executor;
+    /**
+     * The number of urls queued or being fetched.
+     */
+    private int pending;
+    /**
+     * The number of pages written.
+     */
+    private final AtomicInteger nwritten = new AtomicInteger();
+    /**
+     * The number of pages found to be unchanged.
+     */
+    private final AtomicInteger nunchanged = new AtomicInteger();
+    /**
+     * The number of urls that couldn't be saved.
+     */
+    private final AtomicInteger nfailed = new AtomicInteger();
+    /**
+     * Holds all the threads back when the server asks us to slow down,
+     * or can't be reached.
+     */
+    private final GeminiHostHealth health = new GeminiHostHealth();
+
+    /**
+     * Create a mirror of a capsule.
+     *
+     * @param rooturl the url to start from
+     * @param outdir the directory to write the mirror to
+     * @param nthreads the number of pages to fetch at once
+     *
+     * @throws URISyntaxException if the root url is invalid
+     */
+    public GeminiMirror(final String rooturl, final File outdir,
+			final int nthreads) throws URISyntaxException {
+	root = GeminiURL.parse(rooturl);
+	if (!root.isGemini() || root.getHost() == null) {
+	    throw new URISyntaxException(rooturl, "Not a gemini url");
+	}
+	String p = root.getPath();
+	scopePath = p.substring(0, p.lastIndexOf('/') + 1);
+	this.outdir = outdir;
+	this.statedir = new File(outdir, STATE_DIR);
+	this.nthreads = nthreads;
+    }
+
+    /**
+     * Run the mirror, returning when every page has been fetched. If an
+     * earlier run of a mirror to the same directory was interrupted, it
+     * is resumed.
+     *
+     * @throws InterruptedIOException if the thread is interrupted, in
+     * which case the journal is kept so the mirror can be resumed
+     * @throws IOException if the state of the mirror cannot be saved
+     */
+    public void run() throws IOException {
+	statedir.mkdirs();
+	loadHashes();
+	List<String> frontier = replayJournal();
+	journal = new BufferedWriter(new OutputStreamWriter(
+		new FileOutputStream(new File(statedir, JOURNAL_FILE), true),
+		StandardCharsets.UTF_8));
+	AtomicInteger tcount = new AtomicInteger();
+	executor = Executors.newFixedThreadPool(nthreads, r -> {
+		Thread t = new Thread(r, "mirror-" + tcount.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	    });
+	boolean complete;
+	try {
+	    if (frontier.isEmpty() && seen.isEmpty()) {
+		enqueue(root.toString());
+	    } else {
+		System.out.println("Resuming with " + frontier.size()
+				   + " pages to fetch");
+		for (String url : frontier) {
+		    submit(url);
+		}
+	    }
+	    complete = waitForCompletion();
+	} finally {
+	    // closed first, so no more pages are submitted
+	    try {
+		closeJournal();
+	    } finally {
+		executor.shutdown();
+	    }
+	}
+	if (!complete) {
+	    // pages may still be being fetched, so keep the journal as is
+	    throw new InterruptedIOException("Mirror interrupted, run again"
+					     + " to resume");
+	}
+	saveHashes();
+	new File(statedir, JOURNAL_FILE).delete();
+	System.out.println(nwritten.get() + " written, " + nunchanged.get()
+			   + " unchanged, " + nfailed.get() + " failed");
+	System.out.println("Mirror at " + new File(outdir,
+				localPath(root)).toURI());
+    }
+
+    /*
+     * Read the hashes saved by the last complete mirror.
+     */
+    private void loadHashes() throws IOException {
+	File f = new File(statedir, HASH_FILE);
+	if (f.exists()) {
+	    for (String line : Files.readAllLines(f.toPath(),
+						  StandardCharsets.UTF_8)) {
+		String[] ds = line.split(" ", 2);
+		if (ds.length == 2) {
+		    oldHashes.put(ds[0], ds[1]);
+		}
+	    }
+	}
+    }
+
+    /*
+     * Save the hashes of the pages saved by this mirror.
+     */
+    private void saveHashes() throws IOException {
+	List<String> lines = new ArrayList<>(newHashes.size());
+	for (Map.Entry<String, String> me : newHashes.entrySet()) {
+	    lines.add(me.getKey() + " " + me.getValue());
+	}
+	File tmp = new File(statedir, HASH_FILE + ".tmp");
+	Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+	Files.move(tmp.toPath(), new File(statedir, HASH_FILE).toPath(),
+		   StandardCopyOption.REPLACE_EXISTING,
+		   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*
+     * Read the journal of an interrupted mirror, if any, and return the
+     * urls that were queued but not finished, in the order queued.
+     */
+    private List<String> replayJournal() throws IOException {
+	File f = new File(statedir, JOURNAL_FILE);
+	Set<String> queued = new LinkedHashSet<>();
+	if (f.exists()) {
+	    for (String line : Files.readAllLines(f.toPath(),
+						  StandardCharsets.UTF_8)) {
+		String[] ds = line.split(" ");
+		if (ds.length >= 2 && "Q".equals(ds[0])) {
+		    seen.add(ds[1]);
+		    queued.add(ds[1]);
+		} else if (ds.length == 3 && "D".equals(ds[0])) {
+		    queued.remove(ds[1]);
+		    if (!"-".equals(ds[2])) {
+			newHashes.put(ds[1], ds[2]);
+		    }
+		}
+	    }
+	}
+	return new ArrayList<>(queued);
+    }
+
+    /*
+     * Append a line to the journal. Each line is flushed, so that an
+     * interrupted mirror loses at most the pages being fetched.
+     */
+    private synchronized void record(final String line) {
+	if (journal == null) {
+	    // closed after an interrupt, the page will be fetched again
+	    return;
+	}
+	try {
+	    journal.write(line);
+	    journal.write('\n');
+	    journal.flush();
+	} catch (IOException ioe) {
+	    System.err.println("Unable to write journal: "
+			       + ioe.getMessage());
+	}
+    }
+
+    /*
+     * Close the journal. Fetches still running after an interrupt
+     * record nothing more.
+     */
+    private synchronized void closeJournal() throws IOException {
+	Writer w = journal;
+	journal = null;
+	w.close();
+    }
+
+    /*
+     * Queue a url, unless it has been seen before.
+     */
+    private synchronized void enqueue(final String url) {
+	if (seen.add(url)) {
+	    record("Q " + url);
+	    submit(url);
+	}
+    }
+
+    /*
+     * Hand a url to the fetch threads, unless the mirror has been
+     * interrupted, when it's left for the next run.
+     */
+    private synchronized void submit(final String url) {
+	if (journal == null) {
+	    return;
+	}
+	pending++;
+	executor.execute(() -> {
+		try {
+		    fetchPage(url);
+		} finally {
+		    finished();
+		}
+	    });
+    }
+
+    private synchronized void finished() {
+	pending--;
+	if (pending == 0) {
+	    notifyAll();
+	}
+    }
+
+    /*
+     * Wait for every page to be fetched. Returns false, with the
+     * interrupt flag set, if interrupted first.
+     */
+    private synchronized boolean waitForCompletion() {
+	while (pending > 0) {
+	    try {
+		wait();
+	    } catch (InterruptedException ie) {
+		Thread.currentThread().interrupt();
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /*
+     * Fetch a page, save it, and queue the pages it links to.
+     */
+    private void fetchPage(final String url) {
+	String hash = "-";
+	try {
+	    GeminiURL gurl = GeminiURL.parse(url);
+	    GeminiResponse gresp = request(gurl);
+	    if (gresp == null) {
+		nfailed.incrementAndGet();
+	    } else if (gresp.hasBody()) {
+		hash = savePage(gurl, gresp);
+	    } else if (gresp.majorCode() == GeminiResponse.RES_REDIRECT) {
+		hash = saveRedirect(gurl, gresp.metaText());
+	    } else {
+		System.err.println(url + ": " + gresp.minorCode() + " "
+				   + gresp.metaText());
+		nfailed.incrementAndGet();
+	    }
+	} catch (URISyntaxException | IOException e) {
+	    System.err.println(url + ": " + e.getMessage());
+	    nfailed.incrementAndGet();
+	}
+	if (!"-".equals(hash)) {
+	    newHashes.put(url, hash);
+	}
+	record("D " + url + " " + hash);
+    }
+
+    /*
+     * Make a request, trying again if the server asks us to slow down.
+     * The wait is shared, so every thread holds back, and a request
+     * fails if the server wants us to wait longer than MAX_WAIT. Returns
+     * null if the request failed.
+     */
+    private GeminiResponse request(final GeminiURL gurl) {
+	for (int i = 0;; i++) {
+	    GeminiResponse gresp;
+	    GeminiRequest greq = new GeminiRequest(gurl);
+	    greq.setTimeouts(CONNECT_TIMEOUT, READ_TIMEOUT);
+	    try {
+		gresp = health.request(gurl, greq, MAX_WAIT * 1000L);
+	    } catch (IOException ioe) {
+		System.err.println(gurl + ": " + ioe.getMessage());
+		return null;
+	    }
+	    if (gresp.minorCode() != 44 || i >= MAX_RETRIES) {
+		return gresp;
+	    }
+	}
+    }
+
+    /*
+     * Save a page, rewriting its links if it's gemtext, unless it's the
+     * same as the last time it was mirrored. Returns the page's hash.
+     */
+    private String savePage(final GeminiURL gurl, final GeminiResponse gresp)
+	    throws IOException {
+	byte[] body = gresp.bodyBytes();
+	String hash = GeminiHash.toHex(GeminiHash.hash(body));
+	String path = localPath(gurl);
+	if (gresp.mimeType().is("text/gemini")) {
+	    body = rewrite(gurl, path,
+			   new String(body, StandardCharsets.UTF_8));
+	}
+	File f = localFile(path);
+	if (hash.equals(oldHashes.get(gurl.toString())) && f.exists()) {
+	    nunchanged.incrementAndGet();
+	} else {
+	    write(f, body);
+	}
+	return hash;
+    }
+
+    /*
+     * Save a redirect as a page linking to the new location.
+     */
+    private String saveRedirect(final GeminiURL gurl, final String target)
+	    throws IOException, URISyntaxException {
+	GeminiURL turl = gurl.resolve(target);
+	String path = localPath(gurl);
+	String link = turl.toString();
+	if (inScope(turl)) {
+	    enqueue(link);
+	    link = relativePath(path, localPath(turl));
+	}
+	byte[] body = ("=> " + link + " Moved to " + turl + "\n")
+	    .getBytes(StandardCharsets.UTF_8);
+	write(localFile(path), body);
+	return GeminiHash.toHex(GeminiHash.hash(body));
+    }
+
+    /*
+     * Write a file, creating its directory if necessary.
+     */
+    private void write(final File f, final byte[] body) throws IOException {
+	f.getParentFile().mkdirs();
+	Files.write(f.toPath(), body);
+	nwritten.incrementAndGet();
+    }
+
+    /*
+     * Queue the in-scope pages linked from a gemtext page, and rewrite
+     * its links so they work locally: links to mirrored pages become
+     * relative links to the local copy, and other relative links are
+     * made absolute. Preformatted text is left alone.
+     */
+    private byte[] rewrite(final GeminiURL gurl, final String path,
+			   final String text) {
+	StringBuilder sb = new StringBuilder(text.length() + 256);
+	boolean pre = false;
+	int from = 0;
+	while (from < text.length()) {
+	    int to = text.indexOf('\n', from);
+	    if (to < 0) {
+		to = text.length();
+	    }
+	    int end = to > from && text.charAt(to - 1) == '\r' ? to - 1 : to;
+	    String line = text.substring(from, end);
+	    if (line.startsWith("```")) {
+		pre = !pre;
+	    }
+	    if (!pre && line.startsWith("=>")) {
+		line = rewriteLink(gurl, path, line);
+	    }
+	    sb.append(line).append('\n');
+	    from = to + 1;
+	}
+	return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Rewrite a single link line.
+     */
+    private String rewriteLink(final GeminiURL gurl, final String path,
+			       final String line) {
+	String s = line.substring(2).strip();
+	if (s.isEmpty()) {
+	    return line;
+	}
+	int i = 0;
+	while (i < s.length() && !Character.isWhitespace(s.charAt(i))) {
+	    i++;
+	}
+	String link = s.substring(0, i);
+	String label = s.substring(i).strip();
+	GeminiURL turl;
+	try {
+	    turl = gurl.resolve(link);
+	} catch (URISyntaxException use) {
+	    return line;
+	}
+	String newlink;
+	if (inScope(turl)) {
+	    enqueue(turl.toString());
+	    newlink = relativePath(path, localPath(turl));
+	} else if (link.indexOf(':') < 0) {
+	    newlink = turl.toString();
+	} else {
+	    return line;
+	}
+	return label.isEmpty() ? "=> " + newlink
+	    : "=> " + newlink + " " + label;
+    }
+
+    /*
+     * Is this url part of the capsule being mirrored?
+     */
+    private boolean inScope(final GeminiURL u) {
+	return u.isGemini() && u.getQuery() == null
+	    && root.getHost().equals(u.getHost())
+	    && root.getPort() == u.getPort()
+	    && pathOf(u).startsWith(scopePath)
+	    && !localPath(u).startsWith(STATE_DIR);
+    }
+
+    private static String pathOf(final GeminiURL u) {
+	String p = u.getPath();
+	return p.isEmpty() ? "/" : p;
+    }
+
+    /*
+     * The location of a page's local copy, relative to the output
+     * directory, still percent-encoded as in the url.
+     */
+    private String localPath(final GeminiURL u) {
+	String rel = pathOf(u).substring(scopePath.length());
+	if (rel.isEmpty() || rel.endsWith("/")) {
+	    return rel + INDEX_PAGE;
+	}
+	String name = rel.substring(rel.lastIndexOf('/') + 1);
+	return name.indexOf('.') < 0 ? rel + ".gmi" : rel;
+    }
+
+    /*
+     * The local file for a page, refusing any path that would end up
+     * outside the output directory once decoded.
+     */
+    private File localFile(final String path) throws IOException {
+	File f = new File(outdir, decode(path));
+	if (!f.getCanonicalPath().startsWith(
+		outdir.getCanonicalPath() + File.separator)) {
+	    throw new IOException("Path outside mirror: " + path);
+	}
+	return f;
+    }
+
+    /*
+     * The relative link from one local page to another.
+     */
+    private static String relativePath(final String from, final String to) {
+	String[] fs = from.split("/", -1);
+	String[] ts = to.split("/", -1);
+	int common = 0;
+	while (common < fs.length - 1 && common < ts.length - 1
+	       && fs[common].equals(ts[common])) {
+	    common++;
+	}
+	StringBuilder sb = new StringBuilder();
+	for (int i = common; i < fs.length - 1; i++) {
+	    sb.append("../");
+	}
+	for (int i = common; i < ts.length; i++) {
+	    if (i > common) {
+		sb.append('/');
+	    }
+	    sb.append(ts[i]);
+	}
+	return sb.toString();
+    }
+
+    /*
+     * Decode percent escapes in a path, to give a file name.
+     */
+    private static String decode(final String s) {
+	if (s.indexOf('%') < 0) {
+	    return s;
+	}
+	ByteArrayOutputStream bos = new ByteArrayOutputStream(s.length());
+	for (int i = 0; i < s.length(); i++) {
+	    char c = s.charAt(i);
+	    if (c == '%' && i + 2 < s.length()
+		    && Character.digit(s.charAt(i + 1), 16) >= 0
+		    && Character.digit(s.charAt(i + 2), 16) >= 0) {
+		bos.write(Integer.parseInt(s.substring(i + 1, i + 3), 16));
+		i += 2;
+	    } else {
+		byte[] b = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+		bos.write(b, 0, b.length);
+	    }
+	}
+	return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Mirror a capsule. The arguments are the url to start from, the
+     * directory to write to, and optionally the number of pages to fetch
+     * at once.
+     *
+     * @param args command line arguments
+     */
+    public static void main(final String[] args) {
+	if (args.length < 2) {
+	    System.err.println("Usage: GeminiMirror url directory [threads]");
+	    System.exit(1);
+	}
+	int nthreads = args.length > 2 ? Integer.parseInt(args[2])
+	    : DEFAULT_THREADS;
+	try {
+	    new GeminiMirror(args[0], new File(args[1]), nthreads).run();
+	} catch (URISyntaxException | IOException e) {
+	    System.err.println(e.getMessage());
+	    System.exit(1);
+	}
+    }
+}
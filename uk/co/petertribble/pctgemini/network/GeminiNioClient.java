@@ -0,0 +1,660 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * A GeminiTransport using non-blocking channels and SSLEngine, so that a
+ * few threads can drive thousands of concurrent requests. Each thread
+ * runs a selector loop that handles the connect, TLS handshake, request,
+ * and response for every connection assigned to it. Network buffers are
+ * direct buffers drawn from a shared pool.
+ *
+ * <p>Requests may be made asynchronously with send(), or synchronously
+ * through the GeminiTransport interface. A request fails if nothing is
+ * sent or received for the timeout, or if the response body is larger
+ * than the limit.
+ */
+public final class GeminiNioClient implements GeminiTransport {
+
+    /**
+     * The default time a request may go without sending or receiving
+     * any data, in milliseconds. This isn't a limit on the time for the
+     * whole request, so a large download proceeds as long as data keeps
+     * arriving.
+     */
+    public static final int DEFAULT_TIMEOUT = 30_000;
+
+    /**
+     * The default largest response body accepted, in bytes.
+     */
+    public static final int DEFAULT_MAX_BODY_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The maximum number of idle buffers of each size kept in the pool.
+     */
+    private static final int MAX_POOLED = 256;
+
+    /**
+     * The number of threads used for name resolution.
+     */
+    private static final int RESOLVER_THREADS = 8;
+
+    /**
+     * How often the selector loops check for timeouts, in milliseconds.
+     */
+    private static final int SELECT_INTERVAL = 500;
+
+    /**
+     * The selector loops.
+     */
+    private final SelectorLoop[] loops;
+    /**
+     * Picks the next selector loop.
+     */
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    /**
+     * Resolves host names, which would otherwise block a selector loop.
+     */
+    private final ExecutorService resolver;
+    /**
+     * The time a request may go without progress, in milliseconds.
+     */
+    private final int timeout;
+    /**
+     * The largest response body accepted, in bytes.
+     */
+    private final int maxBodySize;
+    /**
+     * Pooled buffers for network data.
+     */
+    private final BufferPool netPool;
+    /**
+     * Pooled buffers for decrypted application data.
+     */
+    private final BufferPool appPool;
+
+    /**
+     * Create a client with one selector thread per processor, and the
+     * default timeout and body size limit.
+     *
+     * @throws IOException if a selector cannot be opened
+     */
+    public GeminiNioClient() throws IOException {
+	this(Runtime.getRuntime().availableProcessors(), DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Create a client with the given number of selector threads, and
+     * the default body size limit.
+     *
+     * @param nthreads the number of selector threads
+     * @param timeout the time a request may go without sending or
+     * receiving any data, in milliseconds
+     *
+     * @throws IOException if a selector cannot be opened
+     */
+    public GeminiNioClient(final int nthreads, final int timeout)
+		throws IOException {
+	this(nthreads, timeout, DEFAULT_MAX_BODY_SIZE);
+    }
+
+    /**
+     * Create a client with the given number of selector threads, timeout,
+     * and body size limit.
+     *
+     * @param nthreads the number of selector threads
+     * @param timeout the time a request may go without sending or
+     * receiving any data, in milliseconds
+     * @param maxBodySize the largest response body accepted, in bytes
+     *
+     * @throws IOException if a selector cannot be opened
+     */
+    public GeminiNioClient(final int nthreads, final int timeout,
+			   final int maxBodySize) throws IOException {
+	this.timeout = timeout;
+	this.maxBodySize = maxBodySize;
+	SSLEngine engine = GeminiSocketFactory.getContext().createSSLEngine();
+	netPool = new BufferPool(engine.getSession().getPacketBufferSize());
+	appPool = new BufferPool(engine.getSession()
+				 .getApplicationBufferSize());
+	AtomicInteger tcount = new AtomicInteger();
+	resolver = Executors.newFixedThreadPool(RESOLVER_THREADS, r -> {
+		Thread t = new Thread(r,
+			"gemini-resolve-" + tcount.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	    });
+	loops = new SelectorLoop[Math.max(1, nthreads)];
+	for (int i = 0; i < loops.length; i++) {
+	    loops[i] = new SelectorLoop();
+	    Thread t = new Thread(loops[i], "gemini-nio-" + i);
+	    t.setDaemon(true);
+	    t.start();
+	}
+    }
+
+    /**
+     * Send a request asynchronously. Cancelling the returned future
+     * abandons the request and closes its connection.
+     *
+     * @param url the url to request
+     *
+     * @return a CompletableFuture that will hold the response
+     */
+    public CompletableFuture<GeminiResponse> send(final GeminiURL url) {
+	CompletableFuture<GeminiResponse> cf = new CompletableFuture<>();
+	if (url.getHost() == null || url.getHost().isEmpty()) {
+	    cf.completeExceptionally(new IOException("No host in url: " + url));
+	    return cf;
+	}
+	SelectorLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(),
+						loops.length)];
+	resolver.execute(() -> {
+		if (cf.isDone()) {
+		    return;
+		}
+		InetSocketAddress addr = new InetSocketAddress(url.getHost(),
+							       url.getPort());
+		if (addr.isUnresolved()) {
+		    cf.completeExceptionally(new IOException(
+			"Unable to resolve " + url.getHost()));
+		} else {
+		    loop.add(new Connection(url, addr, cf));
+		}
+	    });
+	return cf;
+    }
+
+    @Override
+    public GeminiResponse exchange(final GeminiURL url) throws IOException {
+	try {
+	    return send(url).get();
+	} catch (InterruptedException ie) {
+	    Thread.currentThread().interrupt();
+	    throw new InterruptedIOException("Interrupted waiting for " + url);
+	} catch (ExecutionException ee) {
+	    Throwable cause = ee.getCause();
+	    if (cause instanceof IOException) {
+		throw (IOException) cause;
+	    }
+	    throw new IOException(cause);
+	}
+    }
+
+    /**
+     * Stop the selector threads. Requests in progress are failed.
+     */
+    public void close() {
+	for (SelectorLoop loop : loops) {
+	    loop.shutdown();
+	}
+	resolver.shutdownNow();
+    }
+
+    /*
+     * A pool of direct buffers of a fixed size.
+     */
+    private static final class BufferPool {
+	private final int size;
+	private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger idle = new AtomicInteger();
+
+	BufferPool(final int size) {
+	    this.size = size;
+	}
+
+	ByteBuffer acquire() {
+	    ByteBuffer buf = pool.poll();
+	    if (buf == null) {
+		return ByteBuffer.allocateDirect(size);
+	    }
+	    idle.decrementAndGet();
+	    return buf;
+	}
+
+	/*
+	 * Return a buffer to the pool, unless it's one that was grown
+	 * beyond the pool's size.
+	 */
+	void release(final ByteBuffer buf) {
+	    if (buf != null && buf.capacity() == size
+		    && idle.get() < MAX_POOLED) {
+		buf.clear();
+		idle.incrementAndGet();
+		pool.offer(buf);
+	    }
+	}
+    }
+
+    /*
+     * A selector and the thread that services it.
+     */
+    private final class SelectorLoop implements Runnable {
+	private final Selector selector;
+	private final Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+	private volatile boolean running = true;
+
+	SelectorLoop() throws IOException {
+	    selector = Selector.open();
+	}
+
+	void add(final Connection conn) {
+	    pending.add(conn);
+	    selector.wakeup();
+	}
+
+	void shutdown() {
+	    running = false;
+	    selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+	    while (running) {
+		try {
+		    selector.select(SELECT_INTERVAL);
+		} catch (IOException ioe) {
+		    break;
+		}
+		Connection conn;
+		while ((conn = pending.poll()) != null) {
+		    conn.start(selector);
+		}
+		Iterator<SelectionKey> iter =
+		    selector.selectedKeys().iterator();
+		while (iter.hasNext()) {
+		    SelectionKey key = iter.next();
+		    iter.remove();
+		    ((Connection) key.attachment()).ready(key);
+		}
+		long now = System.currentTimeMillis();
+		for (SelectionKey key : selector.keys()) {
+		    ((Connection) key.attachment()).checkTimeout(now);
+		}
+	    }
+	    IOException ioe = new IOException("Client closed");
+	    for (SelectionKey key : selector.keys()) {
+		((Connection) key.attachment()).fail(ioe);
+	    }
+	    try {
+		selector.close();
+	    } catch (IOException ioe2) { }
+	}
+    }
+
+    /*
+     * The state of a single request. All methods other than the
+     * constructor are called on the selector thread.
+     */
+    private final class Connection {
+	private final GeminiURL url;
+	private final InetSocketAddress addr;
+	private final CompletableFuture<GeminiResponse> future;
+	private final ByteBuffer request;
+	private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+	private final byte[] scratch = new byte[4096];
+	private long deadline;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private SSLEngine engine;
+	private ByteBuffer netIn;
+	private ByteBuffer netOut;
+	private ByteBuffer appIn;
+	private boolean finished;
+
+	Connection(final GeminiURL url, final InetSocketAddress addr,
+		   final CompletableFuture<GeminiResponse> future) {
+	    this.url = url;
+	    this.addr = addr;
+	    this.future = future;
+	    request = ByteBuffer.wrap((url.toString() + "\r\n")
+				      .getBytes(StandardCharsets.UTF_8));
+	    progress();
+	}
+
+	/*
+	 * Data has been sent or received, so restart the timeout.
+	 */
+	private void progress() {
+	    deadline = System.currentTimeMillis() + timeout;
+	}
+
+	/*
+	 * Open the channel and start connecting.
+	 */
+	void start(final Selector selector) {
+	    if (future.isDone()) {
+		return;
+	    }
+	    try {
+		SSLContext ctx = GeminiSocketFactory.getContext();
+		engine = ctx.createSSLEngine(url.getHost(), url.getPort());
+		engine.setUseClientMode(true);
+		if (!isAddressLiteral(url.getHost())) {
+		    SSLParameters params = engine.getSSLParameters();
+		    params.setServerNames(List.of(
+				new SNIHostName(url.getHost())));
+		    engine.setSSLParameters(params);
+		}
+		netIn = netPool.acquire();
+		netOut = netPool.acquire();
+		appIn = appPool.acquire();
+		channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		key = channel.register(selector, 0, this);
+		if (channel.connect(addr)) {
+		    connected();
+		} else {
+		    key.interestOps(SelectionKey.OP_CONNECT);
+		}
+	    } catch (IOException | IllegalArgumentException e) {
+		fail(e);
+	    }
+	}
+
+	/*
+	 * The channel is ready for some operation.
+	 */
+	void ready(final SelectionKey skey) {
+	    try {
+		if (skey.isConnectable()) {
+		    if (channel.finishConnect()) {
+			connected();
+		    }
+		} else {
+		    process();
+		}
+	    } catch (IOException | RuntimeException e) {
+		fail(e);
+	    }
+	}
+
+	private void connected() throws IOException {
+	    progress();
+	    engine.beginHandshake();
+	    process();
+	}
+
+	/*
+	 * Drive the engine as far as possible without blocking. Returns
+	 * having set the interest ops for whatever we're waiting for.
+	 */
+	private void process() throws IOException {
+	    while (!finished) {
+		if (!flush()) {
+		    key.interestOps(SelectionKey.OP_WRITE);
+		    return;
+		}
+		switch (engine.getHandshakeStatus()) {
+		case NEED_TASK:
+		    Runnable task;
+		    while ((task = engine.getDelegatedTask()) != null) {
+			task.run();
+		    }
+		    break;
+		case NEED_WRAP:
+		    wrap(ByteBuffer.allocate(0));
+		    break;
+		case NEED_UNWRAP:
+		case NEED_UNWRAP_AGAIN:
+		    if (!unwrap()) {
+			key.interestOps(SelectionKey.OP_READ);
+			return;
+		    }
+		    break;
+		default:
+		    // the handshake is complete, send the request then read
+		    if (request.hasRemaining()) {
+			wrap(request);
+		    } else if (!unwrap()) {
+			key.interestOps(SelectionKey.OP_READ);
+			return;
+		    }
+		    break;
+		}
+	    }
+	}
+
+	/*
+	 * Write any pending network data, returning true if it was all
+	 * written.
+	 */
+	private boolean flush() throws IOException {
+	    if (netOut.position() == 0) {
+		return true;
+	    }
+	    netOut.flip();
+	    if (channel.write(netOut) > 0) {
+		progress();
+	    }
+	    netOut.compact();
+	    return netOut.position() == 0;
+	}
+
+	private void wrap(final ByteBuffer src) throws IOException {
+	    SSLEngineResult res = engine.wrap(src, netOut);
+	    if (res.getStatus() == SSLEngineResult.Status.CLOSED) {
+		throw new EOFException("Connection closed by " + url.getHost());
+	    }
+	    /*
+	     * BUFFER_OVERFLOW is normally handled by the flush on the next
+	     * pass, but if there's nothing to flush the buffer is too small
+	     * for the session.
+	     */
+	    if (res.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW
+		    && netOut.position() == 0) {
+		netOut = grow(netPool, netOut,
+			      engine.getSession().getPacketBufferSize());
+	    }
+	}
+
+	/*
+	 * Unwrap whatever network data is available, reading more from the
+	 * channel if needed. Returns false if we must wait for more data.
+	 */
+	private boolean unwrap() throws IOException {
+	    while (true) {
+		netIn.flip();
+		SSLEngineResult res = engine.unwrap(netIn, appIn);
+		netIn.compact();
+		drainApp();
+		switch (res.getStatus()) {
+		case OK:
+		    return true;
+		case CLOSED:
+		    complete();
+		    return true;
+		case BUFFER_OVERFLOW:
+		    /*
+		     * The application buffer has just been drained, so it
+		     * must be smaller than the session now needs.
+		     */
+		    appIn = grow(appPool, appIn, engine.getSession()
+				 .getApplicationBufferSize());
+		    break;
+		default:
+		    // BUFFER_UNDERFLOW, need more data from the network
+		    if (!netIn.hasRemaining()) {
+			// a record larger than the buffer
+			netIn = grow(netPool, netIn,
+				     engine.getSession().getPacketBufferSize());
+		    }
+		    int n = channel.read(netIn);
+		    if (n < 0) {
+			/*
+			 * Many servers close without a close_notify, so
+			 * treat the end of the stream as the end of the
+			 * response.
+			 */
+			complete();
+			return true;
+		    }
+		    if (n == 0) {
+			return false;
+		    }
+		    progress();
+		    break;
+		}
+	    }
+	}
+
+	/*
+	 * Replace a buffer, in write mode, with a larger one holding the
+	 * same data, for when the session needs larger buffers than the
+	 * pool's.
+	 */
+	private ByteBuffer grow(final BufferPool pool, final ByteBuffer buf,
+				final int size) {
+	    ByteBuffer nbuf = ByteBuffer.allocateDirect(
+		Math.max(size, buf.capacity() * 2));
+	    buf.flip();
+	    nbuf.put(buf);
+	    pool.release(buf);
+	    return nbuf;
+	}
+
+	/*
+	 * Move decrypted data out of the application buffer, failing if
+	 * there's more than the header and the largest body allowed.
+	 */
+	private void drainApp() throws IOException {
+	    appIn.flip();
+	    if (appIn.remaining() > maxBodySize + GeminiRequest.MAXHEADER + 2L
+		    - data.size()) {
+		throw new IOException(tooLarge());
+	    }
+	    while (appIn.hasRemaining()) {
+		int n = Math.min(appIn.remaining(), scratch.length);
+		appIn.get(scratch, 0, n);
+		data.write(scratch, 0, n);
+	    }
+	    appIn.clear();
+	}
+
+	/*
+	 * The response is complete, so split it into header and body.
+	 */
+	private void complete() {
+	    if (finished) {
+		return;
+	    }
+	    byte[] b = data.toByteArray();
+	    int nl = 0;
+	    while (nl < b.length && b[nl] != '\n') {
+		nl++;
+	    }
+	    if (nl == b.length) {
+		fail(new IOException("No response header from "
+				     + url.getHost()));
+		return;
+	    }
+	    int hend = (nl > 0 && b[nl - 1] == '\r') ? nl - 1 : nl;
+	    GeminiResponse gresp = new GeminiResponse(
+		new String(b, 0, hend, StandardCharsets.UTF_8));
+	    if (gresp.hasBody()) {
+		if (b.length - nl - 1 > maxBodySize) {
+		    fail(new IOException(tooLarge()));
+		    return;
+		}
+		byte[] body = new byte[b.length - nl - 1];
+		System.arraycopy(b, nl + 1, body, 0, body.length);
+		gresp.addBody(body);
+	    }
+	    cleanup();
+	    future.complete(gresp);
+	}
+
+	private String tooLarge() {
+	    return "Response larger than " + maxBodySize + " bytes";
+	}
+
+	void checkTimeout(final long now) {
+	    if (future.isCancelled()) {
+		cleanup();
+	    } else if (now > deadline) {
+		fail(new SocketTimeoutException("Timed out requesting " + url));
+	    }
+	}
+
+	void fail(final Throwable t) {
+	    if (finished) {
+		return;
+	    }
+	    cleanup();
+	    future.completeExceptionally(t);
+	}
+
+	private void cleanup() {
+	    finished = true;
+	    if (key != null) {
+		key.cancel();
+	    }
+	    if (channel != null) {
+		try {
+		    channel.close();
+		} catch (IOException ioe) { }
+	    }
+	    netPool.release(netIn);
+	    netPool.release(netOut);
+	    appPool.release(appIn);
+	    netIn = null;
+	    netOut = null;
+	    appIn = null;
+	}
+    }
+
+    /*
+     * SNI must not be used with address literals.
+     */
+    private static boolean isAddressLiteral(final String host) {
+	if (host.startsWith("[")) {
+	    return true;
+	}
+	for (int i = 0; i < host.length(); i++) {
+	    char c = host.charAt(i);
+	    if (c != '.' && (c < '0' || c > '9')) {
+		return false;
+	    }
+	}
+	return true;
+    }
+}
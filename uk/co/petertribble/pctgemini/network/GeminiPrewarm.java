@@ -0,0 +1,190 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Connections opened speculatively, because a request to the server is
+ * expected soon. The name lookup, connection, and TLS handshake are done
+ * in the background, and the connected socket is kept for a few seconds
+ * so the next request to that host and port can use it. If it's not used
+ * in that time it's closed, but the name and the TLS session are still
+ * cached, so a later connection is still quicker.
+ *
+ * <p>A gemini connection carries a single request, so each socket is
+ * used at most once, and at most one is kept for each host and port.
+ */
+final class GeminiPrewarm {
+
+    /**
+     * How long a connected socket is kept, in milliseconds.
+     */
+    private static final long WINDOW = 5000;
+
+    /**
+     * The most connections held or in progress at once.
+     */
+    private static final int MAX_WARM = 4;
+
+    /**
+     * Makes the connections.
+     */
+    private static final ExecutorService EXECUTOR =
+	Executors.newFixedThreadPool(2, r -> {
+		Thread t = new Thread(r, "gemini-prewarm");
+		t.setDaemon(true);
+		return t;
+	    });
+
+    /**
+     * Closes connections when they expire. This is kept apart from the
+     * threads making connections, so that a slow server can't stop
+     * connections from being closed.
+     */
+    private static final ScheduledExecutorService EXPIRY =
+	Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "gemini-prewarm-expiry");
+		t.setDaemon(true);
+		return t;
+	    });
+
+    /**
+     * The connections, keyed by host and port.
+     */
+    private static final Map<String, Warm> WARM = new ConcurrentHashMap<>();
+
+    /*
+     * A connection, which may still be being made, and the factory it
+     * came from, as it can only be used by requests using that factory.
+     */
+    private static final class Warm {
+	private final SSLSocketFactory factory;
+	private final CompletableFuture<SSLSocket> socket =
+	    new CompletableFuture<>();
+
+	Warm(final SSLSocketFactory factory) {
+	    this.factory = factory;
+	}
+
+	/*
+	 * Close the socket, once it's connected, as it won't be used.
+	 */
+	void discard() {
+	    socket.thenAccept(s -> {
+		    try {
+			s.close();
+		    } catch (IOException ioe) { }
+		});
+	}
+    }
+
+    /*
+     * This class cannot be instantiated.
+     */
+    private GeminiPrewarm() {
+    }
+
+    /*
+     * Start connecting to a server in the background, unless there's
+     * already a connection to it or the limit has been reached. The
+     * wanted check is made on the background thread, just before
+     * connecting. Connecting and the handshake each give up after the
+     * timeout, or after WINDOW if the timeout is 0 or longer, so a
+     * server that doesn't answer can't hold a thread for long.
+     */
+    static void warm(final SSLSocketFactory factory, final String host,
+		     final int port, final int timeout,
+		     final BooleanSupplier wanted) {
+	final String key = host + ":" + port;
+	if (WARM.size() >= MAX_WARM || WARM.containsKey(key)) {
+	    return;
+	}
+	final Warm w = new Warm(factory);
+	if (WARM.putIfAbsent(key, w) != null) {
+	    return;
+	}
+	EXECUTOR.execute(() -> {
+		if (!wanted.getAsBoolean()) {
+		    WARM.remove(key, w);
+		    w.socket.completeExceptionally(
+			new IOException("Not wanted"));
+		    return;
+		}
+		int t = timeout > 0 && timeout < WINDOW ? timeout
+		    : (int) WINDOW;
+		try {
+		    w.socket.complete(GeminiSocketFactory.getSocket(factory,
+						host, port, t, null));
+		} catch (IOException | RuntimeException e) {
+		    WARM.remove(key, w);
+		    w.socket.completeExceptionally(e);
+		    return;
+		}
+		EXPIRY.schedule(() -> {
+			if (WARM.remove(key, w)) {
+			    w.discard();
+			}
+		    }, WINDOW, TimeUnit.MILLISECONDS);
+	    });
+    }
+
+    /*
+     * Take the connection to a server, if there is one, waiting for it
+     * if it's still being made, but for no longer than WINDOW. Returns
+     * null if there's no usable connection, and the caller must connect
+     * itself.
+     */
+    static SSLSocket take(final SSLSocketFactory factory, final String host,
+			  final int port) {
+	Warm w = WARM.remove(host + ":" + port);
+	if (w == null) {
+	    return null;
+	}
+	if (w.factory != factory) {
+	    w.discard();
+	    return null;
+	}
+	try {
+	    SSLSocket s = w.socket.get(WINDOW, TimeUnit.MILLISECONDS);
+	    if (s.isClosed()) {
+		return null;
+	    }
+	    return s;
+	} catch (ExecutionException ee) {
+	    return null;
+	} catch (TimeoutException te) {
+	    w.discard();
+	    return null;
+	} catch (InterruptedException ie) {
+	    Thread.currentThread().interrupt();
+	    w.discard();
+	    return null;
+	}
+    }
+}
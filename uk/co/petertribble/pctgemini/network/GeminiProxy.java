@@ -0,0 +1,337 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A caching proxy for gemini requests, shared by all the clients on the
+ * local machine. Clients connect to the proxy in plain text and send a
+ * gemini request line holding the full url, as they would to a gemini
+ * server, and get back the response.
+ *
+ * <p>Responses are held in a persistent cache in the configuration
+ * directory, and are served from the cache for a limited time. The proxy
+ * makes all its requests through the one SSLContext, so TLS sessions to a
+ * server are resumed rather than renegotiated, whichever client asked,
+ * and concurrent requests for the same url are combined.
+ *
+ * <p>The proxy only listens on the loopback address.
+ */
+public final class GeminiProxy {
+
+    /**
+     * The port the proxy listens on by default.
+     */
+    public static final int DEFAULT_PORT = 1966;
+
+    /**
+     * How long responses are served from the cache by default, in
+     * seconds.
+     */
+    private static final long DEFAULT_MAXAGE = 3600;
+
+    /**
+     * The number of requests handled at once.
+     */
+    private static final int DEFAULT_THREADS = 32;
+
+    /**
+     * The longest request line accepted, not counting the CRLF.
+     */
+    private static final int MAX_REQUEST = 1024;
+
+    /**
+     * How long to wait for a client to send its request, in milliseconds.
+     */
+    private static final int TIMEOUT = 10000;
+
+    /**
+     * How long to wait to connect to a server, in milliseconds.
+     */
+    private static final int UPSTREAM_CONNECT_TIMEOUT = 15000;
+
+    /**
+     * How long to wait for data from a server, in milliseconds.
+     */
+    private static final int UPSTREAM_READ_TIMEOUT = 30000;
+
+    /**
+     * How often the cache index is saved, in seconds.
+     */
+    private static final long SAVE_INTERVAL = 60;
+
+    /**
+     * The port to listen on.
+     */
+    private final int port;
+    /**
+     * The shared cache.
+     */
+    private final GeminiCache cache;
+    /**
+     * How long responses are served from the cache, in milliseconds.
+     */
+    private final long maxage;
+    /**
+     * Combines concurrent requests for the same url.
+     */
+    private final GeminiCoalescer coalescer =
+	new GeminiCoalescer(GeminiProxy::upstream);
+    /**
+     * The threads handling requests.
+     */
+    private final ExecutorService executor;
+    /**
+     * Saves the cache index periodically.
+     */
+    private final ScheduledExecutorService saver;
+    /**
+     * The listening socket.
+     */
+    private ServerSocket server;
+    /**
+     * The number of requests handled.
+     */
+    private final AtomicLong nrequests = new AtomicLong();
+    /**
+     * The number of requests answered from the cache.
+     */
+    private final AtomicLong nhits = new AtomicLong();
+
+    /**
+     * Create a proxy.
+     *
+     * @param port the port to listen on
+     * @param cache the cache to hold responses
+     * @param maxage how long responses are served from the cache, in
+     * seconds
+     */
+    public GeminiProxy(final int port, final GeminiCache cache,
+		       final long maxage) {
+	this.port = port;
+	this.cache = cache;
+	this.maxage = TimeUnit.SECONDS.toMillis(maxage);
+	AtomicInteger tcount = new AtomicInteger();
+	executor = Executors.newFixedThreadPool(DEFAULT_THREADS, r -> {
+		Thread t = new Thread(r, "proxy-" + tcount.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	    });
+	saver = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "proxy-save");
+		t.setDaemon(true);
+		return t;
+	    });
+    }
+
+    /**
+     * Start listening for requests.
+     *
+     * @throws IOException if the port cannot be opened
+     */
+    public void start() throws IOException {
+	server = new ServerSocket(port, 64, InetAddress.getLoopbackAddress());
+	Thread t = new Thread(this::acceptLoop, "proxy-accept");
+	t.setDaemon(true);
+	t.start();
+	saver.scheduleWithFixedDelay(cache::save, SAVE_INTERVAL,
+				     SAVE_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the proxy, saving the cache.
+     */
+    public void stop() {
+	try {
+	    server.close();
+	} catch (IOException ioe) { }
+	saver.shutdown();
+	executor.shutdown();
+	cache.save();
+    }
+
+    /*
+     * Accept connections until the server socket is closed.
+     */
+    private void acceptLoop() {
+	while (!server.isClosed()) {
+	    try {
+		final Socket sock = server.accept();
+		executor.execute(() -> handle(sock));
+	    } catch (IOException ioe) { }
+	}
+    }
+
+    /*
+     * Handle one request.
+     */
+    private void handle(final Socket sock) {
+	try (Socket s = sock;
+	     OutputStream out = new BufferedOutputStream(
+			s.getOutputStream())) {
+	    s.setSoTimeout(TIMEOUT);
+	    String request = readRequest(s.getInputStream());
+	    if (request == null) {
+		reply(out, "59 Bad request", null);
+		return;
+	    }
+	    GeminiURL gurl;
+	    try {
+		gurl = GeminiURL.parse(request);
+	    } catch (URISyntaxException use) {
+		reply(out, "59 Bad request", null);
+		return;
+	    }
+	    if (!gurl.isGemini()) {
+		reply(out, "53 Proxy request refused", null);
+		return;
+	    }
+	    nrequests.incrementAndGet();
+	    String url = gurl.toString();
+	    GeminiResponse gresp = cache.get(url, maxage);
+	    if (gresp == null) {
+		try {
+		    gresp = coalescer.fetch(url);
+		} catch (IOException ioe) {
+		    reply(out, "43 " + (ioe.getMessage() == null
+					? "Proxy error" : ioe.getMessage()),
+			  null);
+		    return;
+		}
+		if (gresp.hasBody()) {
+		    cache.put(url, gresp);
+		}
+	    } else {
+		nhits.incrementAndGet();
+	    }
+	    reply(out, gresp.header(), gresp.hasBody()
+		  ? gresp.bodyBytes() : null);
+	} catch (IOException ioe) { }
+    }
+
+    /*
+     * Make a request to a server, giving up if the server doesn't
+     * answer in time, so that a stalled server can't hold a thread, or
+     * the clients waiting on the same url, for ever.
+     */
+    private static GeminiResponse upstream(final String url)
+	    throws IOException {
+	GeminiRequest greq = new GeminiRequest(url);
+	greq.setTimeouts(UPSTREAM_CONNECT_TIMEOUT, UPSTREAM_READ_TIMEOUT);
+	return GeminiCoalescer.complete(greq, url);
+    }
+
+    /*
+     * Read the request line. Returns null if the line is too long or
+     * the client didn't send a complete line.
+     */
+    private static String readRequest(final InputStream in)
+	    throws IOException {
+	ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+	int c;
+	while ((c = in.read()) != -1) {
+	    if (c == '\n') {
+		return bos.toString(StandardCharsets.UTF_8.name()).strip();
+	    }
+	    if (bos.size() > MAX_REQUEST) {
+		return null;
+	    }
+	    bos.write(c);
+	}
+	return null;
+    }
+
+    /*
+     * Send a response.
+     */
+    private static void reply(final OutputStream out, final String header,
+			      final byte[] body) throws IOException {
+	out.write((header + "\r\n").getBytes(StandardCharsets.UTF_8));
+	if (body != null) {
+	    out.write(body);
+	}
+	out.flush();
+    }
+
+    /**
+     * Get the number of requests handled.
+     *
+     * @return the number of requests handled
+     */
+    public long requestCount() {
+	return nrequests.get();
+    }
+
+    /**
+     * Get the number of requests answered from the cache.
+     *
+     * @return the number of cache hits
+     */
+    public long hitCount() {
+	return nhits.get();
+    }
+
+    /**
+     * Run a proxy. The optional arguments are the port to listen on and
+     * how long to serve responses from the cache, in seconds. Clients
+     * use the proxy if the pctgemini.proxy property is set to its port.
+     *
+     * @param args command line arguments
+     */
+    public static void main(final String[] args) {
+	/*
+	 * The proxy must connect to servers directly, so mustn't pick up
+	 * a client setting telling it to use a proxy.
+	 */
+	System.clearProperty("pctgemini.proxy");
+	int port = args.length > 0 ? Integer.parseInt(args[0])
+	    : DEFAULT_PORT;
+	long maxage = args.length > 1 ? Long.parseLong(args[1])
+	    : DEFAULT_MAXAGE;
+	GeminiCache cache = new GeminiCache(GeminiCache.DEFAULT_MAXSIZE,
+				GeminiConfig.configFile("proxycache"),
+				GeminiCache.DEFAULT_DISKSIZE);
+	final GeminiProxy proxy = new GeminiProxy(port, cache, maxage);
+	try {
+	    proxy.start();
+	} catch (IOException ioe) {
+	    System.err.println("Unable to listen on port " + port + ": "
+			       + ioe.getMessage());
+	    System.exit(1);
+	}
+	Runtime.getRuntime().addShutdownHook(new Thread(proxy::stop));
+	System.out.println("Proxy listening on localhost:" + port);
+	try {
+	    Thread.sleep(Long.MAX_VALUE);
+	} catch (InterruptedException ie) { }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A transport that sends requests through a GeminiProxy running on the
+ * local machine, so that every client shares the proxy's cache and TLS
+ * sessions. The request is sent in plain text, which is why the proxy
+ * only accepts connections from the local machine.
+ */
+public final class GeminiProxyTransport implements GeminiTransport {
+
+    /**
+     * How long to wait for the proxy, in milliseconds.
+     */
+    private static final int TIMEOUT = 30000;
+
+    /**
+     * The port the proxy listens on.
+     */
+    private final int port;
+
+    /**
+     * Create a transport that uses a proxy on the local machine.
+     *
+     * @param port the port the proxy listens on
+     */
+    public GeminiProxyTransport(final int port) {
+	this.port = port;
+    }
+
+    /**
+     * Send a request through the proxy, accepting a response body of up
+     * to GeminiNioClient.DEFAULT_MAX_BODY_SIZE bytes.
+     *
+     * @param url the url to request
+     *
+     * @return the response
+     *
+     * @throws IOException if the proxy can't be reached or the response
+     * is too large
+     */
+    @Override
+    public GeminiResponse exchange(final GeminiURL url) throws IOException {
+	return exchange(url, GeminiNioClient.DEFAULT_MAX_BODY_SIZE);
+    }
+
+    @Override
+    public GeminiResponse exchange(final GeminiURL url, final int maxsize)
+	    throws IOException {
+	try (Socket sock = new Socket()) {
+	    sock.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+					       port), TIMEOUT);
+	    sock.setSoTimeout(TIMEOUT);
+	    OutputStream out = sock.getOutputStream();
+	    out.write((url.toString() + "\r\n")
+		      .getBytes(StandardCharsets.UTF_8));
+	    out.flush();
+	    InputStream in = new BufferedInputStream(sock.getInputStream());
+	    GeminiResponse gresp =
+		new GeminiResponse(GeminiRequest.readHeader(in));
+	    if (gresp.hasBody()) {
+		gresp.addBody(GeminiRequest.readBody(in, maxsize));
+	    }
+	    return gresp;
+	}
+    }
+}
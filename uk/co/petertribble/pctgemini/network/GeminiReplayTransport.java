@@ -0,0 +1,117 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A transport that answers requests from an archive written by a
+ * GeminiCapture, without using the network. Requests for a url are
+ * answered with the responses captured for it in the order they were
+ * captured; once those run out, the last one is repeated. A request that
+ * failed when captured fails again with the same message, and a url
+ * that wasn't captured fails.
+ *
+ * <p>Optionally, each request takes as long as it did when captured, so
+ * that the timing of a session can be reproduced as well as its
+ * content.
+ *
+ * <p>If the pctgemini.replay property names an archive, every request
+ * made with a GeminiRequest is replayed from it, with the original
+ * timing if the pctgemini.replaytiming property is true.
+ */
+public final class GeminiReplayTransport implements GeminiTransport {
+
+    /**
+     * The captured requests for each url, in the order they were made.
+     */
+    private final Map<String, List<GeminiCapture.Entry>> entries =
+	new HashMap<>();
+    /**
+     * How many times each url has been replayed.
+     */
+    private final Map<String, Integer> replayed = new HashMap<>();
+    /**
+     * Whether to reproduce the time taken by each request.
+     */
+    private final boolean timing;
+
+    /**
+     * Create a transport that replays requests from an archive.
+     *
+     * @param f the archive written by a GeminiCapture
+     * @param timing if true, each request takes as long as it did when
+     * it was captured
+     *
+     * @throws IOException if the archive can't be read
+     */
+    public GeminiReplayTransport(final File f, final boolean timing)
+	    throws IOException {
+	this.timing = timing;
+	for (GeminiCapture.Entry e : GeminiCapture.read(f)) {
+	    entries.computeIfAbsent(e.getRecord().getUrl(),
+				    k -> new ArrayList<>()).add(e);
+	}
+    }
+
+    /**
+     * Get the number of distinct urls that can be replayed.
+     *
+     * @return the number of urls in the archive
+     */
+    public int size() {
+	return entries.size();
+    }
+
+    @Override
+    public GeminiResponse exchange(final GeminiURL url) throws IOException {
+	String surl = url.toString();
+	List<GeminiCapture.Entry> l = entries.get(surl);
+	if (l == null) {
+	    throw new IOException("Not captured: " + surl);
+	}
+	GeminiCapture.Entry e;
+	synchronized (replayed) {
+	    int i = replayed.merge(surl, 1, Integer::sum) - 1;
+	    e = l.get(Math.min(i, l.size() - 1));
+	}
+	GeminiRequestRecord rec = e.getRecord();
+	if (timing) {
+	    try {
+		TimeUnit.NANOSECONDS.sleep(rec.getTotal());
+	    } catch (InterruptedException ie) {
+		Thread.currentThread().interrupt();
+		throw new InterruptedIOException("Interrupted replaying "
+						 + surl);
+	    }
+	}
+	if (rec.getError() != null) {
+	    throw new IOException(rec.getError());
+	}
+	// a new response each time, sharing the captured body
+	GeminiResponse gresp = e.getResponse();
+	return gresp.hasBody()
+	    ? new GeminiResponse(gresp.header(), gresp.bodyBytes())
+	    : new GeminiResponse(gresp.header());
+    }
+}
@@ -15,15 +15,20 @@
 
 package uk.co.petertribble.pctgemini.network;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 
 /**
  * Make a request to a gemini server.
@@ -49,15 +54,65 @@ public class GeminiRequest {
      */
     public static final int STAT_FAIL = 4;
 
-    /**
-     * The default Gemini port is 1965.
-     */
-    private static final int GEMINI_PORT = 1965;
-
     /**
      * The size of the incoming byte buffer.
      */
     private static final int INBUFSIZE = 32_768;
+    /**
+     * The longest header line: a 2 digit status, a space, and up to
+     * 1024 bytes of meta text.
+     */
+    static final int MAXHEADER = 1027;
+    /**
+     * The transport used by requests that haven't been given one. If
+     * null, requests connect directly with a blocking socket.
+     */
+    private static volatile GeminiTransport defaultTransport;
+
+    /*
+     * Setting the pctgemini.replay property to a GeminiCapture archive
+     * answers all requests from that archive. Otherwise, setting the
+     * pctgemini.proxy property to the port of a GeminiProxy on the
+     * local machine sends all requests through the proxy, or setting the
+     * pctgemini.transport property to nio selects the non-blocking
+     * transport for all requests. Setting the pctgemini.capture property
+     * to a file captures all requests to it.
+     */
+    static {
+	String replay = System.getProperty("pctgemini.replay");
+	String proxy = System.getProperty("pctgemini.proxy");
+	if (replay != null) {
+	    try {
+		defaultTransport = new GeminiReplayTransport(new File(replay),
+				Boolean.getBoolean("pctgemini.replaytiming"));
+	    } catch (IOException ioe) {
+		System.err.println("Unable to replay " + replay + ": "
+				   + ioe.getMessage());
+	    }
+	} else if (proxy != null) {
+	    try {
+		defaultTransport =
+		    new GeminiProxyTransport(Integer.parseInt(proxy));
+	    } catch (NumberFormatException nfe) {
+		System.err.println("Invalid proxy " + proxy);
+	    }
+	} else if ("nio".equals(System.getProperty("pctgemini.transport"))) {
+	    try {
+		defaultTransport = new GeminiNioClient();
+	    } catch (IOException ioe) {
+	    }
+	}
+	String capture = System.getProperty("pctgemini.capture");
+	if (capture != null) {
+	    try {
+		GeminiCapture.setActive(new GeminiCapture(new File(capture)));
+	    } catch (IOException ioe) {
+		System.err.println("Unable to capture to " + capture + ": "
+				   + ioe.getMessage());
+	    }
+	}
+    }
+
     /**
      * Request status, should be one of the STAT codes above.
      */
@@ -71,13 +126,42 @@ public class GeminiRequest {
      */
     private GeminiResponse response;
     /**
-     * The requested url.
+     * The requested url, as given.
+     */
+    private final String surl;
+    /**
+     * The parsed url, null until the connection is initiated.
+     */
+    private GeminiURL gurl;
+    /**
+     * The transport for this request, null to connect directly.
+     */
+    private GeminiTransport transport;
+    /**
+     * The factory for direct connections, null to use the default.
+     */
+    private SSLSocketFactory factory;
+    /**
+     * The connect timeout, in milliseconds, 0 for none.
+     */
+    private int connectTimeout;
+    /**
+     * The read timeout, in milliseconds, 0 for none.
+     */
+    private int readTimeout;
+    /**
+     * The largest body accepted, in bytes.
      */
-    private final String gurl;
+    private int maxBodySize = Integer.MAX_VALUE;
     /**
-     * A backing url used to parse the requested url.
+     * Set once a direct connection has been made and its TLS handshake
+     * has completed.
      */
-    private URI backurl;
+    private boolean connected;
+    /**
+     * Set if a direct connection couldn't be made.
+     */
+    private boolean connectFailed;
 
     /**
      * Set up a request to the given URL.
@@ -85,6 +169,17 @@ public class GeminiRequest {
      * @param url the URL to be retrieved.
      */
     public GeminiRequest(final String url) {
+	surl = url;
+	status = STAT_INIT;
+    }
+
+    /**
+     * Set up a request to the given, already parsed, URL.
+     *
+     * @param url the URL to be retrieved.
+     */
+    public GeminiRequest(final GeminiURL url) {
+	surl = url.toString();
 	gurl = url;
 	status = STAT_INIT;
     }
@@ -94,22 +189,118 @@ public class GeminiRequest {
      */
     public void doConnect() {
 	// setup
-	String host = getHost();
-	int port = getPort();
+	if (gurl == null) {
+	    try {
+		gurl = GeminiURL.parse(surl);
+	    } catch (URISyntaxException use) {
+		status = STAT_FAIL;
+		statusMsg = "Invalid url: " + use.getMessage();
+		return;
+	    }
+	}
+	if ("file".equals(gurl.getScheme())) {
+	    readFile();
+	    return;
+	}
+	String host = gurl.getHost();
+	if (host == null || host.isEmpty()) {
+	    status = STAT_FAIL;
+	    statusMsg = "No host in url: " + surl;
+	    return;
+	}
 	status = STAT_ACTIVE;
+	GeminiTransport gt = transport == null ? defaultTransport : transport;
+	// replayed requests aren't captured again
+	boolean capturing = GeminiCapture.getActive() != null
+	    && !(gt instanceof GeminiReplayTransport);
+	GeminiRequestRecord rec = capturing
+	    ? new GeminiRequestRecord(gurl.toString())
+	    : GeminiInspector.start(gurl.toString());
+	if (gt == null) {
+	    connectDirect(host, gurl.getPort(), rec);
+	} else {
+	    try {
+		response = gt.exchange(gurl, maxBodySize);
+		status = STAT_SUCCESS;
+	    } catch (IOException ioe) {
+		status = STAT_FAIL;
+		statusMsg = ioe.getMessage();
+	    }
+	}
+	if (rec != null) {
+	    rec.finish(response, status == STAT_FAIL ? statusMsg : null);
+	    if (GeminiInspector.isEnabled()) {
+		GeminiInspector.record(rec);
+	    }
+	    if (capturing) {
+		GeminiCapture.capture(rec, response);
+	    }
+	}
+    }
+
+    /*
+     * Connect directly to the server, recording the time taken by each
+     * step if rec isn't null. A connection made in advance by
+     * GeminiPrewarm is used if there is one, in which case there are no
+     * steps to record. If the server has closed that connection before
+     * a response is read, a new connection is made.
+     */
+    private void connectDirect(final String host, final int port,
+			       final GeminiRequestRecord rec) {
+	SSLSocket warm = GeminiPrewarm.take(factory, host, port);
+	if (warm != null) {
+	    try (SSLSocket sslsock = warm) {
+		exchange(sslsock, rec, true);
+		status = STAT_SUCCESS;
+		return;
+	    } catch (IOException ioe) {
+		if (response != null) {
+		    status = STAT_FAIL;
+		    statusMsg = ioe.getMessage();
+		    return;
+		}
+	    }
+	}
 	/*
 	 * The convenience method GeminiSocketFactory.getSocket() is
 	 * called here, which returns a configured socket that's had
-	 * setSSLParameters() invoked on it already, as we can't do that
-	 * manipulation inside the try-with-resources block.
+	 * setSSLParameters() invoked on it and completed its handshake
+	 * already, as we can't do that manipulation inside the
+	 * try-with-resources block. Whatever happened on a warmed
+	 * connection, this one hasn't been made yet.
 	 */
-	try (SSLSocket sslsock = GeminiSocketFactory.getSocket(host, port);
-	     InputStream instream = sslsock.getInputStream();
+	connected = false;
+	try (SSLSocket sslsock = factory == null && connectTimeout == 0
+		? GeminiSocketFactory.getSocket(host, port, rec)
+		: GeminiSocketFactory.getSocket(factory, host, port,
+						connectTimeout, rec)) {
+	    connected = true;
+	    exchange(sslsock, rec, false);
+	    status = STAT_SUCCESS;
+	} catch (IOException ioe) {
+	    // indicate a failure at the connection level
+	    status = STAT_FAIL;
+	    statusMsg = ioe.getMessage();
+	    connectFailed = !connected;
+	}
+    }
+
+    /*
+     * Send the request on a connected socket and read the response. On
+     * a warmed connection, getting no response at all is an error, so
+     * that the request can be retried on a new connection.
+     */
+    private void exchange(final SSLSocket sslsock,
+			  final GeminiRequestRecord rec, final boolean warmed)
+	    throws IOException {
+	try (InputStream instream =
+		new BufferedInputStream(sslsock.getInputStream());
 	     OutputStream outstream = sslsock.getOutputStream();
 	     PrintStream reqstream =
 	         new PrintStream(outstream, false, StandardCharsets.UTF_8); ) {
+	    sslsock.setSoTimeout(readTimeout);
 	    // the spec says terminate with <CR><LF> so be explicit
-	    reqstream.print(gurl + "\r\n");
+	    reqstream.print(gurl.toString() + "\r\n");
 	    reqstream.flush();
 	    /*
 	     * Now we read what we get back, but we have to do it in 2
@@ -118,77 +309,183 @@ public class GeminiRequest {
 	     * at the \n and skip any \r). Then we read the body as a byte
 	     * array because it could be any mime type.
 	     */
-	    int i = instream.read();
-	    StringBuilder hbuf = new StringBuilder();
-	    while (i != -1) {
-		char c = (char) i;
-		if (c == '\n') {
-		    break;
-		}
-		if (c != '\r') {
-		    hbuf.append(c);
-		}
-		i = instream.read();
+	    String header = readHeader(instream);
+	    if (warmed && header.isEmpty()) {
+		throw new IOException("Connection closed");
+	    }
+	    response = new GeminiResponse(header);
+	    if (rec != null) {
+		rec.firstByteDone();
 	    }
-	    // once we have a header, create the response object
-	    response = new GeminiResponse(hbuf.toString());
 	    // and only read the body if we have a 2x code
 	    if (response.hasBody()) {
-		byte[] b = readBody(instream);
+		byte[] b = readBody(instream, maxBodySize);
 		response.addBody(b);
 	    }
-	    status = STAT_SUCCESS;
-	} catch (IOException ioe) {
-	    // indicate a failure at the connection level
-	    status = STAT_FAIL;
-	    statusMsg = ioe.getMessage();
 	}
     }
 
     /*
-     * Break the URL string into parts.
-     *
-     * protocol://host[:port]/path...
-     *
-     * We cheat by rewriting the protocol from gemini which isn't
-     * supported to http which is. This works fine as we're only interested
-     * in parsing it.
+     * Read a local file, such as a page saved by GeminiMirror, and
+     * present it as if it had come from a server. A directory shows its
+     * index.gmi page.
      */
-    private void setBackURL() {
-	if (backurl == null) {
-	    try {
-		backurl = new URI(gurl.replace("gemini://", "http://"));
-	    } catch (URISyntaxException mue) {
+    private void readFile() {
+	try {
+	    File f = new File(new URI(gurl.toString()));
+	    if (f.isDirectory()) {
+		f = new File(f, "index.gmi");
 	    }
+	    if (f.isFile()) {
+		response = new GeminiResponse("20 " + fileType(f));
+		response.addBody(Files.readAllBytes(f.toPath()));
+	    } else {
+		response = new GeminiResponse("51 Not found");
+	    }
+	    status = STAT_SUCCESS;
+	} catch (URISyntaxException | IllegalArgumentException
+		 | IOException e) {
+	    status = STAT_FAIL;
+	    statusMsg = e.getMessage();
 	}
     }
 
-    private String getHost() {
-	setBackURL();
-	return backurl.getHost();
+    /*
+     * Work out the mime type of a local file.
+     */
+    private static String fileType(final File f) {
+	String name = f.getName();
+	if (name.endsWith(".gmi") || name.endsWith(".gemini")) {
+	    return "text/gemini";
+	}
+	String type = null;
+	try {
+	    type = Files.probeContentType(f.toPath());
+	} catch (IOException ioe) { }
+	return type == null ? "application/octet-stream" : type;
     }
 
-    private int getPort() {
-	setBackURL();
-	int nport = backurl.getPort();
-	return nport == -1 ? GEMINI_PORT : nport;
+    /*
+     * Read the header line, up to the terminating newline, skipping
+     * any carriage return. The header is UTF-8, and anything beyond
+     * the maximum length is discarded.
+     */
+    static String readHeader(final InputStream instream) throws IOException {
+	byte[] hbuf = new byte[MAXHEADER];
+	int n = 0;
+	int i = instream.read();
+	while (i != -1 && i != '\n') {
+	    if (i != '\r' && n < MAXHEADER) {
+		hbuf[n++] = (byte) i;
+	    }
+	    i = instream.read();
+	}
+	return new String(hbuf, 0, n, StandardCharsets.UTF_8);
     }
 
     /*
-     * Read the rest of the data into a byte array.
+     * Read the rest of the data into a byte array, failing if there's
+     * more than maxsize bytes or the read times out. Other errors end
+     * the body, as some servers reset the connection rather than
+     * closing it.
      */
-    private byte[] readBody(final InputStream instream) {
+    static byte[] readBody(final InputStream instream, final int maxsize)
+	    throws IOException {
 	byte[] inbuf = new byte[INBUFSIZE];
-	int nread;
 	ByteArrayOutputStream outbuf = new ByteArrayOutputStream();
-	try {
-	    while ((nread = instream.read(inbuf)) != -1) {
-		outbuf.write(inbuf, 0, nread);
+	while (true) {
+	    int nread;
+	    try {
+		nread = instream.read(inbuf);
+	    } catch (SocketTimeoutException ste) {
+		throw ste;
+	    } catch (IOException ioe) {
+		break;
 	    }
-	} catch (IOException ioe) { }
+	    if (nread == -1) {
+		break;
+	    }
+	    if (nread > maxsize - outbuf.size()) {
+		throw new IOException("Response larger than " + maxsize
+				      + " bytes");
+	    }
+	    outbuf.write(inbuf, 0, nread);
+	}
 	return outbuf.toByteArray();
     }
 
+    /**
+     * Use the given transport for this request, rather than connecting
+     * directly.
+     *
+     * @param transport the GeminiTransport to use, or null to connect
+     * directly
+     */
+    public void setTransport(final GeminiTransport transport) {
+	this.transport = transport;
+    }
+
+    /**
+     * Set the timeouts for a direct connection. The connect timeout
+     * applies to each of connecting and the TLS handshake, and the read
+     * timeout to each read of the response.
+     *
+     * @param connect the connect timeout, in milliseconds, or 0 to wait
+     * indefinitely
+     * @param read the read timeout, in milliseconds, or 0 to wait
+     * indefinitely
+     */
+    public void setTimeouts(final int connect, final int read) {
+	connectTimeout = connect;
+	readTimeout = read;
+    }
+
+    /**
+     * Set the largest response body that will be accepted. A request
+     * for a larger response fails.
+     *
+     * @param maxsize the maximum size of the body, in bytes
+     */
+    public void setMaxBodySize(final int maxsize) {
+	maxBodySize = maxsize;
+    }
+
+    /*
+     * Make direct connections using the given factory rather than the
+     * default one.
+     */
+    void setSocketFactory(final SSLSocketFactory sf) {
+	factory = sf;
+    }
+
+    /**
+     * Set the transport used by all requests that haven't been given
+     * their own.
+     *
+     * @param transport the GeminiTransport to use, or null to connect
+     * directly
+     */
+    public static void setDefaultTransport(final GeminiTransport transport) {
+	defaultTransport = transport;
+    }
+
+    /*
+     * Get whether the request failed because a direct connection to the
+     * server couldn't be made: the name lookup, connection, or TLS
+     * handshake failed.
+     */
+    boolean isConnectFailure() {
+	return connectFailed;
+    }
+
+    /*
+     * Get the transport used by requests that haven't been given their
+     * own, null if they connect directly.
+     */
+    static GeminiTransport getDefaultTransport() {
+	return defaultTransport;
+    }
+
     /**
      * Get the current status of this request.
      *
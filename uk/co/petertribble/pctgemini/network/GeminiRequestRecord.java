@@ -0,0 +1,282 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+/**
+ * A record of a single request, as kept by the GeminiInspector. It holds
+ * the outcome of the request and how long each phase took: resolving the
+ * host name, connecting, the TLS handshake, waiting for the first byte
+ * of the response, and reading the rest of the response. Phases that
+ * didn't happen, for example because the response came from the cache,
+ * have a time of -1.
+ *
+ * <p>A record is filled in by the thread making the request, and is only
+ * visible to others once it has been completed and published.
+ */
+public final class GeminiRequestRecord {
+
+    private long seq;
+    private final String url;
+    private final long startTime;
+    private final long t0;
+    private long last;
+    private long dns = -1;
+    private long connect = -1;
+    private long tls = -1;
+    private long firstByte = -1;
+    private long transfer = -1;
+    private long total;
+    private int status;
+    private String meta = "";
+    private int bytes;
+    private boolean cacheHit;
+    private String error;
+
+    /**
+     * Start recording a request.
+     *
+     * @param url the url being requested
+     */
+    public GeminiRequestRecord(final String url) {
+	this.url = url;
+	startTime = System.currentTimeMillis();
+	t0 = System.nanoTime();
+	last = t0;
+    }
+
+    /*
+     * Recreate a record that was saved, such as by GeminiCapture, from
+     * its start time and the time taken by each phase, in the order
+     * name lookup, connect, TLS handshake, first byte, transfer, and
+     * total.
+     */
+    GeminiRequestRecord(final String url, final long startTime,
+			final long[] phases, final GeminiResponse gresp,
+			final String errmsg) {
+	this.url = url;
+	this.startTime = startTime;
+	t0 = 0;
+	dns = phases[0];
+	connect = phases[1];
+	tls = phases[2];
+	firstByte = phases[3];
+	transfer = phases[4];
+	total = phases[5];
+	if (gresp != null) {
+	    status = gresp.minorCode();
+	    meta = gresp.metaText();
+	    bytes = gresp.bodyLength();
+	}
+	error = errmsg;
+    }
+
+    /*
+     * The time since the previous phase ended, starting a new phase.
+     */
+    private long lap() {
+	long now = System.nanoTime();
+	long t = now - last;
+	last = now;
+	return t;
+    }
+
+    /*
+     * Mark the end of name resolution.
+     */
+    void dnsDone() {
+	dns = lap();
+    }
+
+    /*
+     * Mark the end of the tcp connection.
+     */
+    void connectDone() {
+	connect = lap();
+    }
+
+    /*
+     * Mark the end of the TLS handshake.
+     */
+    void tlsDone() {
+	tls = lap();
+    }
+
+    /*
+     * Mark the arrival of the response header.
+     */
+    void firstByteDone() {
+	firstByte = lap();
+    }
+
+    /*
+     * Mark the end of the request, successful or not.
+     */
+    void finish(final GeminiResponse gresp, final String errmsg) {
+	long now = System.nanoTime();
+	if (firstByte >= 0) {
+	    transfer = now - last;
+	}
+	total = now - t0;
+	if (gresp != null) {
+	    status = gresp.minorCode();
+	    meta = gresp.metaText();
+	    bytes = gresp.bodyLength();
+	}
+	error = errmsg;
+    }
+
+    /*
+     * Mark this as a request answered from the cache.
+     */
+    void cacheHit(final GeminiResponse gresp) {
+	cacheHit = true;
+	finish(gresp, null);
+    }
+
+    /*
+     * Set the sequence number, when the record is published.
+     */
+    void setSeq(final long seq) {
+	this.seq = seq;
+    }
+
+    /**
+     * Get the sequence number of this record.
+     *
+     * @return the sequence number, counting from 0
+     */
+    public long getSeq() {
+	return seq;
+    }
+
+    /**
+     * Get the url requested.
+     *
+     * @return the url
+     */
+    public String getUrl() {
+	return url;
+    }
+
+    /**
+     * Get the time the request started.
+     *
+     * @return the start time, in milliseconds since the epoch
+     */
+    public long getStartTime() {
+	return startTime;
+    }
+
+    /**
+     * Get the time taken to resolve the host name.
+     *
+     * @return the time in nanoseconds, or -1
+     */
+    public long getDns() {
+	return dns;
+    }
+
+    /**
+     * Get the time taken to connect.
+     *
+     * @return the time in nanoseconds, or -1
+     */
+    public long getConnect() {
+	return connect;
+    }
+
+    /**
+     * Get the time taken by the TLS handshake.
+     *
+     * @return the time in nanoseconds, or -1
+     */
+    public long getTls() {
+	return tls;
+    }
+
+    /**
+     * Get the time from sending the request to reading the response
+     * header.
+     *
+     * @return the time in nanoseconds, or -1
+     */
+    public long getFirstByte() {
+	return firstByte;
+    }
+
+    /**
+     * Get the time taken to read the response body.
+     *
+     * @return the time in nanoseconds, or -1
+     */
+    public long getTransfer() {
+	return transfer;
+    }
+
+    /**
+     * Get the total time taken by the request.
+     *
+     * @return the time in nanoseconds
+     */
+    public long getTotal() {
+	return total;
+    }
+
+    /**
+     * Get the two-digit status code of the response.
+     *
+     * @return the status, or 0 if there was no response
+     */
+    public int getStatus() {
+	return status;
+    }
+
+    /**
+     * Get the meta text of the response.
+     *
+     * @return the meta text, empty if there was no response
+     */
+    public String getMeta() {
+	return meta;
+    }
+
+    /**
+     * Get the size of the response body.
+     *
+     * @return the body size, in bytes
+     */
+    public int getBytes() {
+	return bytes;
+    }
+
+    /**
+     * Get whether the response came from the cache.
+     *
+     * @return true if this was a cache hit
+     */
+    public boolean isCacheHit() {
+	return cacheHit;
+    }
+
+    /**
+     * Get the error that stopped the request, if any.
+     *
+     * @return the error message, or null if the request completed
+     */
+    public String getError() {
+	return error;
+    }
+}
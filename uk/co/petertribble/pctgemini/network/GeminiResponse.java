@@ -16,9 +16,9 @@
 package uk.co.petertribble.pctgemini.network;
 
 import java.io.ByteArrayInputStream;
-import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
+import java.io.Reader;
 
 /**
  * Contains a response from a gemini server.
@@ -81,6 +81,18 @@ public class GeminiResponse {
 	parseheader(header);
     }
 
+    /**
+     * Create a GeminiResponse from a header line and a body that have
+     * been saved previously.
+     *
+     * @param header a 1-line String containing the response header
+     * @param inbody the body of the response
+     */
+    public GeminiResponse(final String header, final byte[] inbody) {
+	parseheader(header);
+	body = inbody; // NOPMD
+    }
+
     /**
      * Add the body content, if appropriate. This should only be called
      * from GeminiRequest.
@@ -96,13 +108,18 @@ public class GeminiResponse {
      *
      * <STATUS><SPACE><META><CR><LF>
      *
-     * so we just break it in 2.
+     * so we just break it in 2, without using a regular expression as
+     * this is done for every response.
      */
     private void parseheader(final String header) {
-	String[] headers = header.split("\\s+", 2);
+	int len = header.length();
+	int i = 0;
+	while (i < len && !Character.isWhitespace(header.charAt(i))) {
+	    i++;
+	}
 	// status is the first word, parse that
 	try {
-	    rescode2 = Integer.parseInt(headers[0]);
+	    rescode2 = Integer.parseInt(header, 0, i, 10);
 	} catch (NumberFormatException e) {
 	    rescode2 = 0;
 	}
@@ -123,7 +140,10 @@ public class GeminiResponse {
 		rescode1 = RES_NEEDMORE;
 	    }
 	}
-	metastring = headers.length > 1 ? headers[1] : "";
+	while (i < len && Character.isWhitespace(header.charAt(i))) {
+	    i++;
+	}
+	metastring = header.substring(i);
     }
 
     /**
@@ -146,7 +166,8 @@ public class GeminiResponse {
     }
 
     /**
-     * Get the response body as a String.
+     * Get the response body as a String, decoded using the charset given
+     * in the meta text, or utf-8 if none is.
      *
      * @return the response body as a String.
      */
@@ -154,16 +175,61 @@ public class GeminiResponse {
 	if (body == null) {
 	    return "";
 	}
-	String s = "";
-	InputStreamReader isr = new InputStreamReader(
-		     new ByteArrayInputStream(body), StandardCharsets.UTF_8);
-	try {
-	    int l = body.length;
-	    char[] cc = new char[l];
-	    isr.read(cc, 0, l);
-	    s = new String(cc);
-	} catch (IOException e) { }
-	return s;
+	return new String(body, mimeType().getCharset());
+    }
+
+    /**
+     * Get a Reader over the response body, so the body can be processed
+     * without first converting it all to a String. The body is decoded
+     * using the charset given in the meta text, or utf-8 if none is.
+     *
+     * @return a Reader that returns the decoded response body
+     */
+    public Reader bodyAsReader() {
+	if (body == null) {
+	    return Reader.nullReader();
+	}
+	return new InputStreamReader(bodyAsStream(),
+				     mimeType().getCharset());
+    }
+
+    /**
+     * Get an InputStream over the raw response body, without copying it.
+     *
+     * @return an InputStream that returns the response body
+     */
+    public InputStream bodyAsStream() {
+	return body == null ? InputStream.nullInputStream()
+	    : new ByteArrayInputStream(body);
+    }
+
+    /**
+     * Get the MIME type of the body, from the meta text. This is only
+     * meaningful for a successful response.
+     *
+     * @return the parsed GeminiMimeType
+     */
+    public GeminiMimeType mimeType() {
+	return GeminiMimeType.parse(metastring);
+    }
+
+    /**
+     * Get the raw response body. The returned array is shared and must
+     * not be modified.
+     *
+     * @return the response body, or an empty array if there is no body
+     */
+    public byte[] bodyBytes() {
+	return body == null ? new byte[0] : body; // NOPMD
+    }
+
+    /**
+     * Get the size of the response body.
+     *
+     * @return the length of the response body in bytes
+     */
+    public int bodyLength() {
+	return body == null ? 0 : body.length;
     }
 
     /**
@@ -190,6 +256,16 @@ public class GeminiResponse {
 	return rescode2;
     }
 
+    /**
+     * Get the header line, without the trailing CRLF, so the response
+     * can be reconstructed later.
+     *
+     * @return the response header
+     */
+    public String header() {
+	return rescode2 + " " + metastring;
+    }
+
     /**
      * Get the meta text. This is anything on the response line after the
      * initial two-digit response code.
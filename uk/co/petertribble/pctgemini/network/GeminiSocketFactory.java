@@ -16,13 +16,18 @@
 package uk.co.petertribble.pctgemini.network;
 
 import java.io.IOException;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.util.List;
 import javax.net.ssl.SNIHostName;
 import javax.net.ssl.SNIServerName;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
@@ -37,6 +42,10 @@ public final class GeminiSocketFactory {
      * The singleton SocketFactory that will be configured.
      */
     private static SSLSocketFactory geminifactory;
+    /**
+     * The SSLContext the factory was created from.
+     */
+    private static SSLContext geminicontext;
 
     /*
      * This class cannot be instantiated
@@ -49,45 +58,163 @@ public final class GeminiSocketFactory {
      */
     private static void initFactory() {
 	try {
-	    SSLContext sslContext = SSLContext.getInstance("TLS");
-	    GeminiTrustManager gtm = new GeminiTrustManager();
-	    X509TrustManager[] xtm = {gtm};
-	    sslContext.init(null, xtm, new SecureRandom());
+	    SSLContext sslContext = newContext(new GeminiTrustManager());
+	    geminicontext = sslContext;
 	    geminifactory = sslContext.getSocketFactory();
-	} catch (NoSuchAlgorithmException | KeyManagementException e) {
+	} catch (GeneralSecurityException e) {
 	}
     }
 
+    /*
+     * Create an SSLContext that uses the given TrustManager. Sockets
+     * made from the same context share its TLS session cache.
+     */
+    static SSLContext newContext(final X509TrustManager tm)
+		throws GeneralSecurityException {
+	SSLContext sslContext = SSLContext.getInstance("TLS");
+	X509TrustManager[] xtm = {tm};
+	sslContext.init(null, xtm, new SecureRandom());
+	return sslContext;
+    }
+
     /*
      * Get the configured SocketFactory.
      *
      * @return the singleton SSLSocketFactory provided by this class
      */
-    private static SSLSocketFactory getFactory() {
+    private static synchronized SSLSocketFactory getFactory() {
 	if (geminifactory == null) {
 	    initFactory();
 	}
 	return geminifactory;
     }
 
+    /*
+     * Get the configured SSLContext.
+     *
+     * @return the SSLContext used by this class
+     */
+    static synchronized SSLContext getContext() {
+	if (geminicontext == null) {
+	    initFactory();
+	}
+	return geminicontext;
+    }
+
+    /**
+     * Initialize the factory, and exercise the TLS implementation by
+     * generating a client hello, so that the provider initialisation,
+     * random number seeding, and class loading are done before the
+     * first request. This doesn't touch the network. It's intended to
+     * be called on a background thread during startup.
+     */
+    public static void warmUp() {
+	getFactory();
+	SSLContext ctx = getContext();
+	if (ctx == null) {
+	    return;
+	}
+	try {
+	    SSLEngine engine = ctx.createSSLEngine("localhost",
+						   GeminiURL.GEMINI_PORT);
+	    engine.setUseClientMode(true);
+	    engine.beginHandshake();
+	    ByteBuffer netbuf = ByteBuffer.allocate(
+			engine.getSession().getPacketBufferSize());
+	    engine.wrap(ByteBuffer.allocate(0), netbuf);
+	    engine.closeOutbound();
+	} catch (SSLException e) {
+	}
+    }
+
     /**
      * Create an SSLSocket using the configured SocketFactory. The Socket
-     * returned will have the SNI parameter appropriately set.
+     * returned will have the SNI parameter appropriately set, and will
+     * have completed the TLS handshake.
      *
      * @param host the name of the host to connect to
      * @param port the port to connect to
      *
      * @return an SSLSocket
      *
-     * @throws IOException if the underlying socket creation fails
+     * @throws IOException if the underlying socket creation or the TLS
+     * handshake fails
      */
     public static SSLSocket getSocket(final String host, final int port)
 		throws IOException {
-	SSLSocket sslsock = (SSLSocket) getFactory().createSocket(host, port);
+	return getSocket(host, port, null);
+    }
+
+    /*
+     * Create an SSLSocket, as getSocket(host, port), but resolving the
+     * host, connecting, and performing the TLS handshake as separate
+     * steps so that the time taken by each can be recorded. The record
+     * may be null. Either way the handshake is done here, so that a
+     * failure is seen as a failure to connect.
+     */
+    static SSLSocket getSocket(final String host, final int port,
+			       final GeminiRequestRecord rec)
+		throws IOException {
+	if (rec == null) {
+	    SSLSocket sslsock = (SSLSocket) getFactory().createSocket(host,
+								      port);
+	    try {
+		setServerName(sslsock, host);
+		sslsock.startHandshake();
+	    } catch (IOException | RuntimeException e) {
+		sslsock.close();
+		throw e;
+	    }
+	    return sslsock;
+	}
+	return getSocket(null, host, port, 0, rec);
+    }
+
+    /*
+     * Create an SSLSocket from the given factory, or the default factory
+     * if it's null. Connecting and the handshake each give up after the
+     * timeout, in milliseconds, or wait indefinitely if it's 0. The time
+     * taken by each step is recorded if rec isn't null.
+     */
+    static SSLSocket getSocket(final SSLSocketFactory factory,
+			       final String host, final int port,
+			       final int timeout,
+			       final GeminiRequestRecord rec)
+		throws IOException {
+	InetAddress addr = InetAddress.getByName(host);
+	if (rec != null) {
+	    rec.dnsDone();
+	}
+	Socket sock = new Socket();
+	try {
+	    sock.connect(new InetSocketAddress(addr, port), timeout);
+	    sock.setSoTimeout(timeout);
+	    if (rec != null) {
+		rec.connectDone();
+	    }
+	    SSLSocketFactory sf = factory == null ? getFactory() : factory;
+	    SSLSocket sslsock = (SSLSocket) sf.createSocket(sock, host, port,
+							    true);
+	    setServerName(sslsock, host);
+	    sslsock.startHandshake();
+	    if (rec != null) {
+		rec.tlsDone();
+	    }
+	    return sslsock;
+	} catch (IOException ioe) {
+	    sock.close();
+	    throw ioe;
+	}
+    }
+
+    /*
+     * Set the SNI parameter on a socket.
+     */
+    private static void setServerName(final SSLSocket sslsock,
+				      final String host) {
 	SSLParameters params = new SSLParameters();
 	List<SNIServerName> hlist = List.of(new SNIHostName(host));
 	params.setServerNames(hlist);
 	sslsock.setSSLParameters(params);
-	return sslsock;
     }
 }
@@ -0,0 +1,55 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+import java.io.IOException;
+
+/**
+ * A means of sending a request to a gemini server and reading the
+ * response. A GeminiRequest normally connects directly using a blocking
+ * socket, but may be given a GeminiTransport to use instead.
+ */
+public interface GeminiTransport {
+
+    /**
+     * Send a request for the given url and read the complete response.
+     * This method blocks until the response has been read.
+     *
+     * @param url the url to request
+     *
+     * @return the response
+     *
+     * @throws IOException if the request fails at the connection level
+     */
+    GeminiResponse exchange(GeminiURL url) throws IOException;
+
+    /**
+     * Send a request for the given url and read the complete response,
+     * failing if the body is larger than the given size. By default the
+     * size is ignored, for transports that apply their own limit.
+     *
+     * @param url the url to request
+     * @param maxsize the largest response body to accept, in bytes
+     *
+     * @return the response
+     *
+     * @throws IOException if the request fails at the connection level
+     */
+    default GeminiResponse exchange(final GeminiURL url, final int maxsize)
+	    throws IOException {
+	return exchange(url);
+    }
+}
@@ -0,0 +1,531 @@
+/*
+ * SPDX-License-Identifier: CDDL-1.0
+ *
+ * This file and its contents are supplied under the terms of the
+ * Common Development and Distribution License ("CDDL"), version 1.0.
+ * You may only use this file in accordance with the terms of version
+ * 1.0 of the CDDL.
+ *
+ * A full copy of the text of the CDDL should have accompanied this
+ * source. A copy of the CDDL is also available via the Internet at
+ * http://www.illumos.org/license/CDDL.
+ *
+ * Copyright 2026 Peter C. Tribble
+ */
+
+package uk.co.petertribble.pctgemini.network;
+
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An immutable url, held in canonical form, with relative resolution as
+ * described in RFC 3986.
+ *
+ * <p>The canonical form has the scheme and host in lower case, no port
+ * if it's the default for the scheme, an empty path replaced by /, dot
+ * segments removed, percent-encoding normalised, and no fragment (which
+ * is never sent to the server). Two urls that refer to the same resource
+ * therefore have the same canonical form, and can be used as keys for
+ * caching and history.
+ *
+ * <p>Parsed urls are interned in a bounded table, so that repeatedly
+ * parsing the same url is cheap and returns the same object.
+ */
+public final class GeminiURL {
+
+    /**
+     * The default Gemini port is 1965.
+     */
+    public static final int GEMINI_PORT = 1965;
+
+    /**
+     * The maximum number of entries in the intern table.
+     */
+    private static final int MAX_INTERNED = 4096;
+
+    /**
+     * Interned urls, keyed by both the original spelling and the
+     * canonical form.
+     */
+    private static final Map<String, GeminiURL> INTERNED =
+	new LinkedHashMap<>(256, 0.75f, true) {
+	    private static final long serialVersionUID = 1L;
+	    @Override
+	    protected boolean removeEldestEntry(
+			final Map.Entry<String, GeminiURL> eldest) {
+		return size() > MAX_INTERNED;
+	    }
+	};
+
+    /**
+     * Upper case hex digits, for percent-encoding.
+     */
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * The scheme, in lower case.
+     */
+    private final String scheme;
+    /**
+     * The authority in canonical form, or null if there isn't one.
+     */
+    private final String authority;
+    /**
+     * The host, in lower case, or null if there's no authority.
+     */
+    private final String host;
+    /**
+     * The explicit port, or -1 if the default is to be used.
+     */
+    private final int port;
+    /**
+     * The path, never null.
+     */
+    private final String path;
+    /**
+     * The query, without the leading ?, or null if there isn't one.
+     */
+    private final String query;
+    /**
+     * The canonical string form of the url.
+     */
+    private final String canonical;
+
+    private GeminiURL(final String scheme, final String authority,
+		      final String path, final String query)
+		throws URISyntaxException {
+	this.scheme = scheme;
+	this.query = query;
+	if (authority == null) {
+	    this.authority = null;
+	    host = null;
+	    port = -1;
+	    this.path = path;
+	} else {
+	    // split off any userinfo, then the port
+	    int at = authority.lastIndexOf('@');
+	    int hstart = at + 1;
+	    int hend = authority.length();
+	    int colon = authority.lastIndexOf(':');
+	    int bracket = authority.lastIndexOf(']');
+	    int nport = -1;
+	    if (colon >= hstart && colon > bracket) {
+		hend = colon;
+		if (colon + 1 < authority.length()) {
+		    try {
+			nport = Integer.parseInt(
+				authority.substring(colon + 1));
+		    } catch (NumberFormatException nfe) {
+			throw new URISyntaxException(authority, "Invalid port");
+		    }
+		    if (nport < 0 || nport > 65_535) {
+			throw new URISyntaxException(authority,
+						     "Invalid port");
+		    }
+		}
+	    }
+	    if (nport == defaultPort(scheme)) {
+		nport = -1;
+	    }
+	    port = nport;
+	    host = authority.substring(hstart, hend).toLowerCase(Locale.ROOT);
+	    StringBuilder sb = new StringBuilder(authority.length());
+	    if (at >= 0) {
+		sb.append(authority, 0, hstart);
+	    }
+	    sb.append(host);
+	    if (port != -1) {
+		sb.append(':').append(port);
+	    }
+	    this.authority = sb.toString();
+	    this.path = path.isEmpty() ? "/" : path;
+	}
+	StringBuilder sb = new StringBuilder(scheme.length() + 3
+			+ (this.authority == null ? 0 : this.authority.length())
+			+ this.path.length()
+			+ (query == null ? 0 : query.length() + 1));
+	sb.append(scheme).append(':');
+	if (this.authority != null) {
+	    sb.append("//").append(this.authority);
+	}
+	sb.append(this.path);
+	if (query != null) {
+	    sb.append('?').append(query);
+	}
+	canonical = sb.toString();
+    }
+
+    /**
+     * Parse a url, returning the interned canonical instance.
+     *
+     * @param s the url to parse, which must be absolute
+     *
+     * @return the GeminiURL
+     *
+     * @throws URISyntaxException if the url is not a valid absolute url
+     */
+    public static GeminiURL parse(final String s) throws URISyntaxException {
+	GeminiURL gurl;
+	synchronized (INTERNED) {
+	    gurl = INTERNED.get(s);
+	}
+	if (gurl != null) {
+	    return gurl;
+	}
+	int[] parts = split(s);
+	if (parts[0] < 0) {
+	    throw new URISyntaxException(s, "Not an absolute url");
+	}
+	return intern(s, build(s, parts, null));
+    }
+
+    /**
+     * Parse a url, returning it in canonical form. If the url can't be
+     * parsed it's returned unchanged, so this can be used to derive a
+     * key from any url.
+     *
+     * @param s the url to normalize
+     *
+     * @return the canonical form of the url
+     */
+    public static String normalize(final String s) {
+	try {
+	    return parse(s).toString();
+	} catch (URISyntaxException use) {
+	    return s;
+	}
+    }
+
+    /**
+     * Resolve a reference relative to this url, following RFC 3986
+     * section 5.2. If the reference is absolute, it's simply normalized.
+     *
+     * @param ref the reference to resolve
+     *
+     * @return the target url
+     *
+     * @throws URISyntaxException if the reference can't be parsed
+     */
+    public GeminiURL resolve(final String ref) throws URISyntaxException {
+	int[] parts = split(ref);
+	if (parts[0] >= 0) {
+	    return parse(ref);
+	}
+	return intern(null, build(ref, parts, this));
+    }
+
+    /*
+     * Store a url in the intern table, under the original spelling as well
+     * as the canonical form. If an equal url is already present, that's
+     * returned instead.
+     */
+    private static GeminiURL intern(final String spelling,
+				    final GeminiURL gurl) {
+	synchronized (INTERNED) {
+	    GeminiURL old = INTERNED.putIfAbsent(gurl.canonical, gurl);
+	    GeminiURL ret = old == null ? gurl : old;
+	    if (spelling != null && !spelling.equals(gurl.canonical)) {
+		INTERNED.put(spelling, ret);
+	    }
+	    return ret;
+	}
+    }
+
+    /*
+     * Split a url reference into its components, as in RFC 3986
+     * appendix B, without creating any substrings. The result holds the
+     * end of the scheme (the index of the colon, or -1 if there's no
+     * scheme), the start and end of the authority (-1 if there's none),
+     * the end of the path, and the end of the query (the start of the
+     * fragment, or the length of the string).
+     */
+    private static int[] split(final String s) {
+	int len = s.length();
+	int[] parts = {-1, -1, -1, len, len};
+	int i = 0;
+	// a scheme is a letter followed by letters, digits, + - and .
+	while (i < len) {
+	    char c = s.charAt(i);
+	    if (c == ':') {
+		if (i > 0) {
+		    parts[0] = i;
+		}
+		break;
+	    }
+	    if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z'
+		  || i > 0 && (c >= '0' && c <= '9'
+			       || c == '+' || c == '-' || c == '.'))) {
+		break;
+	    }
+	    i++;
+	}
+	int pstart = parts[0] + 1;
+	if (s.startsWith("//", pstart)) {
+	    parts[1] = pstart + 2;
+	    int aend = parts[1];
+	    while (aend < len && "/?#".indexOf(s.charAt(aend)) < 0) {
+		aend++;
+	    }
+	    parts[2] = aend;
+	}
+	int hash = s.indexOf('#', pstart);
+	if (hash >= 0) {
+	    parts[4] = hash;
+	}
+	int qmark = s.indexOf('?', pstart);
+	parts[3] = (qmark >= 0 && qmark < parts[4]) ? qmark : parts[4];
+	return parts;
+    }
+
+    /*
+     * Build a url from the split reference, resolving it against the base
+     * if there is one.
+     */
+    private static GeminiURL build(final String s, final int[] parts,
+				   final GeminiURL base)
+		throws URISyntaxException {
+	int pstart = parts[2] >= 0 ? parts[2] : parts[0] + 1;
+	String rpath = encode(s, pstart, parts[3], false);
+	String rquery = parts[3] < parts[4]
+	    ? encode(s, parts[3] + 1, parts[4], true) : null;
+	if (base == null) {
+	    String scheme = s.substring(0, parts[0]).toLowerCase(Locale.ROOT);
+	    String auth = parts[1] >= 0
+		? encode(s, parts[1], parts[2], false) : null;
+	    return new GeminiURL(scheme, auth, removeDots(rpath), rquery);
+	}
+	if (parts[1] >= 0) {
+	    return new GeminiURL(base.scheme,
+				 encode(s, parts[1], parts[2], false),
+				 removeDots(rpath), rquery);
+	}
+	if (rpath.isEmpty()) {
+	    return new GeminiURL(base.scheme, base.authority, base.path,
+				 rquery == null ? base.query : rquery);
+	}
+	if (rpath.charAt(0) == '/') {
+	    return new GeminiURL(base.scheme, base.authority,
+				 removeDots(rpath), rquery);
+	}
+	// merge with the base path, as in section 5.2.3
+	String merged;
+	if (base.authority != null && base.path.isEmpty()) {
+	    merged = "/" + rpath;
+	} else {
+	    merged = base.path.substring(0, base.path.lastIndexOf('/') + 1)
+		+ rpath;
+	}
+	return new GeminiURL(base.scheme, base.authority, removeDots(merged),
+			     rquery);
+    }
+
+    /*
+     * Remove . and .. segments from a path, as in RFC 3986 section 5.2.4.
+     * The common case of a path without dot segments returns the path
+     * unchanged.
+     */
+    private static String removeDots(final String path) {
+	if (path.indexOf('.') < 0) {
+	    return path;
+	}
+	int len = path.length();
+	StringBuilder out = new StringBuilder(len);
+	int i = 0;
+	while (i < len) {
+	    if (path.startsWith("../", i)) {
+		i += 3;
+	    } else if (path.startsWith("./", i)) {
+		i += 2;
+	    } else if (path.startsWith("/./", i)) {
+		i += 2;
+	    } else if (i + 2 == len && path.startsWith("/.", i)) {
+		out.append('/');
+		i = len;
+	    } else if (path.startsWith("/../", i)) {
+		i += 3;
+		out.setLength(Math.max(0, out.lastIndexOf("/")));
+	    } else if (i + 3 == len && path.startsWith("/..", i)) {
+		out.setLength(Math.max(0, out.lastIndexOf("/")));
+		out.append('/');
+		i = len;
+	    } else if (i + 1 == len && path.charAt(i) == '.'
+		       || i + 2 == len && path.startsWith("..", i)) {
+		i = len;
+	    } else {
+		int next = path.indexOf('/', i + 1);
+		if (next < 0) {
+		    next = len;
+		}
+		out.append(path, i, next);
+		i = next;
+	    }
+	}
+	return out.toString();
+    }
+
+    /*
+     * Normalise the percent-encoding of part of a url. Escapes of
+     * unreserved characters are decoded, other escapes have their hex
+     * digits in upper case, and characters that may not appear in a url,
+     * such as spaces and non-ascii text, are encoded as UTF-8. If nothing
+     * needs changing the substring is returned directly.
+     */
+    private static String encode(final String s, final int from,
+				 final int to, final boolean isQuery) {
+	boolean clean = true;
+	for (int i = from; i < to && clean; i++) {
+	    char c = s.charAt(i);
+	    clean = c != '%' && isAllowed(c, isQuery);
+	}
+	if (clean) {
+	    return s.substring(from, to);
+	}
+	StringBuilder sb = new StringBuilder(to - from + 16);
+	int i = from;
+	while (i < to) {
+	    char c = s.charAt(i);
+	    if (c == '%' && i + 2 < to && hexval(s.charAt(i + 1)) >= 0
+		    && hexval(s.charAt(i + 2)) >= 0) {
+		int v = hexval(s.charAt(i + 1)) * 16 + hexval(s.charAt(i + 2));
+		if (isUnreserved((char) v)) {
+		    sb.append((char) v);
+		} else {
+		    appendEscape(sb, v);
+		}
+		i += 3;
+	    } else if (c < 0x80 && c != '%' && isAllowed(c, isQuery)) {
+		sb.append(c);
+		i++;
+	    } else {
+		int cpend = Character.isHighSurrogate(c) && i + 1 < to
+		    ? i + 2 : i + 1;
+		for (byte b : s.substring(i, cpend)
+			 .getBytes(StandardCharsets.UTF_8)) {
+		    appendEscape(sb, b & 0xff);
+		}
+		i = cpend;
+	    }
+	}
+	return sb.toString();
+    }
+
+    private static void appendEscape(final StringBuilder sb, final int v) {
+	sb.append('%').append(HEX[v >> 4]).append(HEX[v & 0xf]);
+    }
+
+    private static int hexval(final char c) {
+	return Character.digit(c, 16);
+    }
+
+    private static boolean isUnreserved(final char c) {
+	return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z'
+	    || c >= '0' && c <= '9' || c == '-' || c == '.' || c == '_'
+	    || c == '~';
+    }
+
+    /*
+     * Is the character allowed unescaped in a url? The reserved
+     * characters are allowed, as they're significant.
+     */
+    private static boolean isAllowed(final char c, final boolean isQuery) {
+	return isUnreserved(c) || "!$&'()*+,;=:@/[]".indexOf(c) >= 0
+	    || isQuery && c == '?';
+    }
+
+    private static int defaultPort(final String scheme) {
+	switch (scheme) {
+	case "gemini":
+	    return GEMINI_PORT;
+	case "http":
+	    return 80;
+	case "https":
+	    return 443;
+	default:
+	    return -2;
+	}
+    }
+
+    /**
+     * Get the scheme of this url, in lower case.
+     *
+     * @return the scheme
+     */
+    public String getScheme() {
+	return scheme;
+    }
+
+    /**
+     * Get whether this is a gemini url.
+     *
+     * @return true if the scheme is gemini
+     */
+    public boolean isGemini() {
+	return "gemini".equals(scheme);
+    }
+
+    /**
+     * Get the host of this url.
+     *
+     * @return the host, in lower case, or null if there isn't one
+     */
+    public String getHost() {
+	return host;
+    }
+
+    /**
+     * Get the port of this url. If no port was given, the default for
+     * the scheme is returned.
+     *
+     * @return the port to connect to
+     */
+    public int getPort() {
+	if (port != -1) {
+	    return port;
+	}
+	int dport = defaultPort(scheme);
+	return dport < 0 ? -1 : dport;
+    }
+
+    /**
+     * Get the path of this url.
+     *
+     * @return the path, which is never null
+     */
+    public String getPath() {
+	return path;
+    }
+
+    /**
+     * Get the query of this url.
+     *
+     * @return the query, without the leading ?, or null if there isn't one
+     */
+    public String getQuery() {
+	return query;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+	return o instanceof GeminiURL
+	    && canonical.equals(((GeminiURL) o).canonical);
+    }
+
+    @Override
+    public int hashCode() {
+	return canonical.hashCode();
+    }
+
+    /**
+     * Get the canonical form of this url.
+     *
+     * @return the url as a String, in canonical form
+     */
+    @Override
+    public String toString() {
+	return canonical;
+    }
+}